@@ -0,0 +1,112 @@
+package se.kth.iv1351.bankjdbc.benchmark;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import se.kth.iv1351.bankjdbc.integration.BankDBException;
+import se.kth.iv1351.bankjdbc.model.RentalAgreement;
+import se.kth.iv1351.bankjdbc.model.RentalAgreementDetails;
+
+/**
+ * The latency of listing a student's agreements with the brand and type of each
+ * instrument, in one joined query, and the way the interpreter did it before, one
+ * query for the agreements and one more per agreement for its instrument. Before each
+ * trial, every student with a rental gets <code>agreementsPerStudent</code> active
+ * agreements in all, and the added agreements are deleted after the trial. The rental
+ * counts are not changed, since only the agreements are listed.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class AgreementListingBenchmark
+{
+    private static final String LAST_AGREEMENT_SQL = "SELECT COALESCE(max(id), 0) FROM rental_agreement_for_instrument";
+    private static final String ADD_AGREEMENTS_SQL = "INSERT INTO rental_agreement_for_instrument (length, start_date, end_date, "
+        + "student_id, instrument_id, estimated_price, actual_price, terminated) SELECT 12, current_date, current_date + 365, "
+        + "s, 1 + (s * 31 + n) % ?, 1200, null, false FROM generate_series(10, ?, 10) s, generate_series(2, ?) n";
+    private static final String DELETE_ADDED_SQL = "DELETE FROM rental_agreement_for_instrument WHERE terminated = false AND id > ?";
+
+    @State(Scope.Benchmark)
+    public static class Agreements
+    {
+        @Param({"1", "10", "50"})
+        public int agreementsPerStudent;
+
+        private long lastAgreementBefore;
+
+        @Setup(Level.Trial)
+        public void addAgreements(BenchmarkDatabase db) throws SQLException
+        {
+            try(Connection connection = connect(db);
+                PreparedStatement last = connection.prepareStatement(LAST_AGREEMENT_SQL);
+                ResultSet result = last.executeQuery();
+                PreparedStatement add = connection.prepareStatement(ADD_AGREEMENTS_SQL);
+                Statement analyze = connection.createStatement())
+            {
+                result.next();
+                lastAgreementBefore = result.getLong(1);
+                add.setInt(1, db.instruments);
+                add.setInt(2, Math.min(db.students, db.instruments));
+                add.setInt(3, agreementsPerStudent);
+                add.executeUpdate();
+                analyze.execute("ANALYZE rental_agreement_for_instrument");
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void deleteAddedAgreements(BenchmarkDatabase db) throws SQLException
+        {
+            try(Connection connection = connect(db);
+                PreparedStatement delete = connection.prepareStatement(DELETE_ADDED_SQL))
+            {
+                delete.setLong(1, lastAgreementBefore);
+                delete.executeUpdate();
+            }
+        }
+    }
+
+    @Benchmark
+    public List<RentalAgreementDetails> listAgreementsWithInstruments(BenchmarkDatabase db, Agreements agreements)
+        throws BankDBException
+    {
+        return db.dao.listAgreementsWithInstruments(db.randomStudentIdWithRentals());
+    }
+
+    @Benchmark
+    public void listAgreementsThenFindEachInstrument(BenchmarkDatabase db, Agreements agreements, Blackhole blackhole)
+        throws BankDBException
+    {
+        for(RentalAgreement agreement : db.dao.listAgreements(db.randomStudentIdWithRentals()))
+        {
+            blackhole.consume(db.dao.findInstrument(agreement.getInstrumentId()));
+        }
+    }
+
+    private static Connection connect(BenchmarkDatabase db) throws SQLException
+    {
+        return DriverManager.getConnection(db.config.getUrl(), db.config.getUser(), db.config.getPassword());
+    }
+}
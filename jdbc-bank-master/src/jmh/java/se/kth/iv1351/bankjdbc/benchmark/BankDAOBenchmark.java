@@ -0,0 +1,138 @@
+package se.kth.iv1351.bankjdbc.benchmark;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import se.kth.iv1351.bankjdbc.integration.BankDBException;
+import se.kth.iv1351.bankjdbc.model.AvailabilitySummary;
+import se.kth.iv1351.bankjdbc.model.BatchResult;
+import se.kth.iv1351.bankjdbc.model.Instrument;
+import se.kth.iv1351.bankjdbc.model.RentalAgreement;
+import se.kth.iv1351.bankjdbc.model.RentalAgreementDetails;
+import se.kth.iv1351.bankjdbc.model.RentalRequest;
+import se.kth.iv1351.bankjdbc.model.Student;
+
+/**
+ * Throughput and latency distribution (including p99) of the DAO operations used by
+ * the interpreter. Each write benchmark terminates what it rented, so the amount of
+ * free stock stays the same however long the benchmark runs.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+public class BankDAOBenchmark
+{
+    private static final int BATCH_SIZE = 100;
+
+    @Benchmark
+    public List<Instrument> listAllInstruments(BenchmarkDatabase db) throws BankDBException
+    {
+        return db.dao.listAllInstruments();
+    }
+
+    @Benchmark
+    public List<Instrument> listInstruments(BenchmarkDatabase db) throws BankDBException
+    {
+        return db.dao.listInstruments(db.randomType());
+    }
+
+    @Benchmark
+    public List<Instrument> listFirstInstrumentsPage(BenchmarkDatabase db) throws BankDBException
+    {
+        return db.dao.listInstrumentsPage(null, 0, 100);
+    }
+
+    @Benchmark
+    public Instrument streamFirstInstrument(BenchmarkDatabase db) throws BankDBException
+    {
+        Instrument[] first = new Instrument[1];
+        db.dao.streamInstruments(null, instrument -> {
+            first[0] = instrument;
+            return false;
+        });
+        return first[0];
+    }
+
+    @Benchmark
+    public void streamAllInstruments(BenchmarkDatabase db, Blackhole blackhole) throws BankDBException
+    {
+        db.dao.streamInstruments(null, instrument -> {
+            blackhole.consume(instrument);
+            return true;
+        });
+    }
+
+    @Benchmark
+    public List<AvailabilitySummary> summarizeAvailability(BenchmarkDatabase db) throws BankDBException
+    {
+        return db.dao.summarizeAvailability();
+    }
+
+    @Benchmark
+    public Student findStudent(BenchmarkDatabase db) throws BankDBException
+    {
+        return db.dao.findStudent(db.randomStudentId());
+    }
+
+    @Benchmark
+    public List<RentalAgreement> listAgreements(BenchmarkDatabase db) throws BankDBException
+    {
+        return db.dao.listAgreements(db.randomStudentIdWithRentals());
+    }
+
+    @Benchmark
+    public List<RentalAgreementDetails> listAgreementsWithInstruments(BenchmarkDatabase db) throws BankDBException
+    {
+        return db.dao.listAgreementsWithInstruments(db.randomStudentIdWithRentals());
+    }
+
+    @Benchmark
+    public void rentInstrumentAndTerminateRental(BenchmarkDatabase db) throws BankDBException
+    {
+        Student student = db.dao.findStudent(db.randomStudentIdWithoutRentals());
+        int instrumentId = db.dao.rentInstrument(db.randomBrand(), db.randomType(), student, 1);
+        for(RentalAgreement agreement : db.dao.listAgreements(student.getId()))
+        {
+            if(agreement.getInstrumentId() == instrumentId)
+                db.dao.terminateRental(agreement);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public void rentInstrumentsAndTerminateRentals(BenchmarkDatabase db) throws BankDBException
+    {
+        List<RentalRequest> requests = new ArrayList<>();
+        for(int i = 0; i < BATCH_SIZE; i++)
+        {
+            requests.add(new RentalRequest(db.randomStudentIdWithoutRentals(), db.randomType(), db.randomBrand(), 1));
+        }
+        Set<Integer> rentingStudents = new LinkedHashSet<>();
+        for(BatchResult<RentalRequest> result : db.dao.rentInstruments(requests))
+        {
+            if(result.isSuccessful())
+                rentingStudents.add(result.getItem().getStudentId());
+        }
+        List<RentalAgreement> rented = new ArrayList<>();
+        for(int studentId : rentingStudents)
+        {
+            rented.addAll(db.dao.listAgreements(studentId));
+        }
+        db.dao.terminateRentals(rented);
+    }
+}
@@ -0,0 +1,118 @@
+package se.kth.iv1351.bankjdbc.benchmark;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import se.kth.iv1351.bankjdbc.integration.BankDAO;
+import se.kth.iv1351.bankjdbc.integration.PoolConfig;
+
+/**
+ * The database shared by all benchmarks in a trial. The database is filled by the
+ * <code>DataGenerator</code> unless it already holds the number of instruments and
+ * agreements given by the parameters, so the data set can be scaled from the command
+ * line, for example with <code>-p instruments=10000000 -p agreements=10000000</code>.
+ */
+@State(Scope.Benchmark)
+public class BenchmarkDatabase
+{
+    @Param({"10000"})
+    public int instruments;
+
+    @Param({"1000"})
+    public int students;
+
+    @Param({"10000"})
+    public int agreements;
+
+    public BankDAO dao;
+    public PoolConfig config;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception
+    {
+        config = PoolConfig.fromSystemProperties();
+        if(!hasExpectedSize())
+            DataGenerator.generate(config, instruments, students, agreements);
+        dao = new BankDAO(config);
+        System.out.printf("DAO started in %.1f ms%n", dao.getStartupMillis());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        System.out.println("Statements: " + dao.getStatementMetrics());
+        dao.close();
+    }
+
+    /**
+     * @return The id of a random student.
+     */
+    public int randomStudentId()
+    {
+        return ThreadLocalRandom.current().nextInt(1, students + 1);
+    }
+
+    /**
+     * @return The id of a random student that has no active agreement when the data is generated.
+     */
+    public int randomStudentIdWithoutRentals()
+    {
+        int id;
+        do
+        {
+            id = randomStudentId();
+        }
+        while(id % 10 == 0);
+        return id;
+    }
+
+    /**
+     * @return The id of a random student that has an active agreement when the data is generated.
+     */
+    public int randomStudentIdWithRentals()
+    {
+        int withRentals = Math.min(students, instruments) / 10;
+        return 10 * ThreadLocalRandom.current().nextInt(1, withRentals + 1);
+    }
+
+    public int randomInstrumentId()
+    {
+        return ThreadLocalRandom.current().nextInt(1, instruments + 1);
+    }
+
+    public String randomType()
+    {
+        return DataGenerator.TYPES[ThreadLocalRandom.current().nextInt(DataGenerator.TYPES.length)];
+    }
+
+    public String randomBrand()
+    {
+        return DataGenerator.BRANDS[ThreadLocalRandom.current().nextInt(DataGenerator.BRANDS.length)];
+    }
+
+    private boolean hasExpectedSize() throws Exception
+    {
+        try(Connection connection = DriverManager.getConnection(config.getUrl(), config.getUser(), config.getPassword());
+            Statement statement = connection.createStatement())
+        {
+            if(!connection.getMetaData().getTables(null, null, "instrument", null).next())
+                return false;
+            try(ResultSet counts = statement.executeQuery("SELECT (SELECT count(*) FROM instrument), (SELECT count(*) FROM student), "
+                    + "(SELECT count(*) FROM rental_agreement_for_instrument WHERE terminated)"))
+            {
+                counts.next();
+                return counts.getLong(1) == instruments && counts.getLong(2) == students && counts.getLong(3) == agreements;
+            }
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package se.kth.iv1351.bankjdbc.benchmark;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import se.kth.iv1351.bankjdbc.integration.BankDBException;
+import se.kth.iv1351.bankjdbc.integration.CatalogCache;
+import se.kth.iv1351.bankjdbc.model.Instrument;
+
+/**
+ * Answers <code>SHOW &lt;type&gt;</code> from the cached inventory snapshot, once by
+ * visiting the instruments in place and once by collecting them in a list. Run with
+ * <code>-prof gc</code> to see the allocation per operation.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+public class CatalogBenchmark
+{
+    @State(Scope.Benchmark)
+    public static class Catalog
+    {
+        CatalogCache cache;
+
+        @Setup(Level.Trial)
+        public void setUp(BenchmarkDatabase db) throws BankDBException
+        {
+            cache = new CatalogCache(db.dao, Long.MAX_VALUE, Integer.MAX_VALUE);
+            cache.listAllInstruments();
+            System.out.println("Cached catalog: " + cache.getMetrics());
+        }
+    }
+
+    @Benchmark
+    public void visitInstrumentsOfType(BenchmarkDatabase db, Catalog catalog, Blackhole blackhole) throws BankDBException
+    {
+        catalog.cache.forEachInstrument(db.randomType(), (id, type, brand, price) -> blackhole.consume(price));
+    }
+
+    @Benchmark
+    public List<Instrument> listInstrumentsOfType(BenchmarkDatabase db, Catalog catalog) throws BankDBException
+    {
+        return catalog.cache.listInstruments(db.randomType());
+    }
+}
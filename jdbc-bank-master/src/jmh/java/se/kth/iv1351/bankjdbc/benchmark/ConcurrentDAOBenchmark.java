@@ -0,0 +1,113 @@
+package se.kth.iv1351.bankjdbc.benchmark;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import se.kth.iv1351.bankjdbc.integration.BankDBException;
+import se.kth.iv1351.bankjdbc.model.RentalAgreement;
+import se.kth.iv1351.bankjdbc.model.Student;
+
+/**
+ * Calls every public DAO method from many threads at once, in a mix of reads and
+ * rentals. After each iteration the rental counts stored on the instruments and
+ * students are compared with the active agreements, and the benchmark fails if any
+ * count has been lost or doubled by a concurrent update.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+@Threads(32)
+public class ConcurrentDAOBenchmark
+{
+    private static final String LOST_INSTRUMENT_COUNTS_SQL = "SELECT count(*) FROM instrument i WHERE i.number_rented <> "
+        + "(SELECT count(*) FROM rental_agreement_for_instrument r WHERE r.instrument_id = i.id AND NOT r.terminated)";
+    private static final String LOST_STUDENT_COUNTS_SQL = "SELECT count(*) FROM student s WHERE COALESCE(s.number_of_instruments_rented, 0) <> "
+        + "(SELECT count(*) FROM rental_agreement_for_instrument r WHERE r.student_id = s.student_id AND NOT r.terminated)";
+
+    @State(Scope.Benchmark)
+    public static class RentalCountCheck
+    {
+        @TearDown(Level.Iteration)
+        public void verifyRentalCounts(BenchmarkDatabase db) throws SQLException
+        {
+            try(Connection connection = DriverManager.getConnection(db.config.getUrl(), db.config.getUser(), db.config.getPassword());
+                Statement statement = connection.createStatement())
+            {
+                long lostInstrumentCounts = count(statement, LOST_INSTRUMENT_COUNTS_SQL);
+                long lostStudentCounts = count(statement, LOST_STUDENT_COUNTS_SQL);
+                if(lostInstrumentCounts != 0 || lostStudentCounts != 0)
+                    throw new IllegalStateException(lostInstrumentCounts + " instruments and " + lostStudentCounts
+                                                    + " students have a rental count that does not match their active agreements");
+            }
+        }
+
+        private long count(Statement statement, String sql) throws SQLException
+        {
+            try(ResultSet result = statement.executeQuery(sql))
+            {
+                result.next();
+                return result.getLong(1);
+            }
+        }
+    }
+
+    @Benchmark
+    public void mixedWorkload(BenchmarkDatabase db, RentalCountCheck check, Blackhole blackhole) throws BankDBException
+    {
+        int operation = ThreadLocalRandom.current().nextInt(100);
+        if(operation < 30)
+            blackhole.consume(db.dao.listInstruments(db.randomType()));
+        else if(operation < 50)
+            blackhole.consume(db.dao.findStudent(db.randomStudentId()));
+        else if(operation < 60)
+            blackhole.consume(db.dao.listAgreements(db.randomStudentIdWithRentals()));
+        else if(operation < 70)
+            blackhole.consume(db.dao.listAgreementsWithInstruments(db.randomStudentIdWithRentals()));
+        else if(operation < 80)
+            blackhole.consume(db.dao.findInstrument(db.randomInstrumentId()));
+        else if(operation < 82)
+            blackhole.consume(db.dao.listAllInstruments());
+        else
+            rentAndTerminate(db);
+    }
+
+    private void rentAndTerminate(BenchmarkDatabase db) throws BankDBException
+    {
+        Student student = db.dao.findStudent(db.randomStudentIdWithoutRentals());
+        int instrumentId;
+        try
+        {
+            instrumentId = db.dao.rentInstrument(db.randomBrand(), db.randomType(), student, 1);
+        }
+        catch(BankDBException noFreeInstrument)
+        {
+            return;
+        }
+        for(RentalAgreement agreement : db.dao.listAgreements(student.getId()))
+        {
+            if(agreement.getInstrumentId() == instrumentId)
+                db.dao.terminateRental(agreement);
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package se.kth.iv1351.bankjdbc.benchmark;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import se.kth.iv1351.bankjdbc.integration.BankDAO;
+import se.kth.iv1351.bankjdbc.integration.BankDBException;
+import se.kth.iv1351.bankjdbc.integration.PoolConfig;
+import se.kth.iv1351.bankjdbc.model.RentalAgreement;
+import se.kth.iv1351.bankjdbc.model.Student;
+
+/**
+ * A TCP proxy in front of the database that drops every open connection at a fixed
+ * interval, to see that the DAO survives lost connections. While the proxy runs,
+ * the DAO is called in a loop, and the number of calls that failed is printed
+ * together with the DAO's retry counters.
+ *
+ * Usage: <code>java -Dsoundgood.db.url=jdbc:postgresql://localhost:15432/soundgood
+ * -cp target/benchmarks.jar se.kth.iv1351.bankjdbc.benchmark.ConnectionDropProxy
+ * [listenPort] [databaseHost] [databasePort] [dropEveryMillis] [seconds]</code>. The
+ * url must point at the proxy's port, the proxy forwards to the database host and
+ * port. The database is expected to be filled by the <code>DataGenerator</code>.
+ */
+public class ConnectionDropProxy
+{
+    private final ServerSocket serverSocket;
+    private final String targetHost;
+    private final int targetPort;
+    private final Set<Socket> openSockets = ConcurrentHashMap.newKeySet();
+
+    public static void main(String[] args) throws Exception
+    {
+        int listenPort = args.length > 0 ? Integer.parseInt(args[0]) : 15432;
+        String databaseHost = args.length > 1 ? args[1] : "localhost";
+        int databasePort = args.length > 2 ? Integer.parseInt(args[2]) : 5432;
+        long dropEveryMillis = args.length > 3 ? Long.parseLong(args[3]) : 2000;
+        long seconds = args.length > 4 ? Long.parseLong(args[4]) : 30;
+
+        ConnectionDropProxy proxy = new ConnectionDropProxy(listenPort, databaseHost, databasePort);
+        proxy.start(dropEveryMillis);
+        BankDAO dao = new BankDAO(PoolConfig.fromSystemProperties());
+        long calls = 0;
+        long failures = 0;
+        long end = System.currentTimeMillis() + seconds * 1000;
+        try
+        {
+            while(System.currentTimeMillis() < end)
+            {
+                try
+                {
+                    callDao(dao);
+                }
+                catch(BankDBException bdbe)
+                {
+                    failures++;
+                }
+                calls++;
+            }
+        }
+        finally
+        {
+            dao.close();
+            proxy.stop();
+        }
+        System.out.printf("%d calls, %d failed%n", calls, failures);
+        System.out.println("Retries: " + dao.getRetryMetrics());
+        System.out.println("Pool: " + dao.getPoolMetrics());
+    }
+
+    private static void callDao(BankDAO dao) throws BankDBException
+    {
+        dao.listInstruments(DataGenerator.TYPES[0]);
+        Student student = dao.findStudent(1);
+        if(student == null)
+            return;
+        dao.rentInstrument(DataGenerator.BRANDS[0], DataGenerator.TYPES[0], student, 1);
+        List<RentalAgreement> agreements = dao.listAgreements(student.getId());
+        for(RentalAgreement agreement : agreements)
+        {
+            dao.terminateRental(agreement);
+        }
+    }
+
+    private ConnectionDropProxy(int listenPort, String targetHost, int targetPort) throws IOException
+    {
+        this.serverSocket = new ServerSocket(listenPort);
+        this.targetHost = targetHost;
+        this.targetPort = targetPort;
+    }
+
+    private void start(long dropEveryMillis)
+    {
+        daemon("proxy-accept", this::acceptConnections);
+        daemon("proxy-dropper", () -> {
+            while(!serverSocket.isClosed())
+            {
+                try
+                {
+                    Thread.sleep(dropEveryMillis);
+                }
+                catch(InterruptedException ie)
+                {
+                    return;
+                }
+                dropAll();
+            }
+        });
+    }
+
+    private void stop() throws IOException
+    {
+        serverSocket.close();
+        dropAll();
+    }
+
+    private void acceptConnections()
+    {
+        while(!serverSocket.isClosed())
+        {
+            try
+            {
+                Socket client = serverSocket.accept();
+                Socket server = new Socket(targetHost, targetPort);
+                openSockets.add(client);
+                openSockets.add(server);
+                daemon("proxy-up", () -> pipe(client, server));
+                daemon("proxy-down", () -> pipe(server, client));
+            }
+            catch(IOException ioe)
+            {
+                // The proxy was stopped, or the database refused the connection.
+            }
+        }
+    }
+
+    private void pipe(Socket from, Socket to)
+    {
+        byte[] buffer = new byte[8192];
+        try(InputStream in = from.getInputStream(); OutputStream out = to.getOutputStream())
+        {
+            int read;
+            while((read = in.read(buffer)) >= 0)
+            {
+                out.write(buffer, 0, read);
+                out.flush();
+            }
+        }
+        catch(IOException ioe)
+        {
+            // One side was dropped, the other is closed below.
+        }
+        close(from);
+        close(to);
+    }
+
+    private void dropAll()
+    {
+        for(Socket socket : openSockets)
+        {
+            close(socket);
+        }
+    }
+
+    private void close(Socket socket)
+    {
+        openSockets.remove(socket);
+        try
+        {
+            socket.close();
+        }
+        catch(IOException ioe)
+        {
+            // Already closed.
+        }
+    }
+
+    private static void daemon(String name, Runnable task)
+    {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+}
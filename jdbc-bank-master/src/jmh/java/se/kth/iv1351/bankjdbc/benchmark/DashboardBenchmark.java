@@ -0,0 +1,69 @@
+package se.kth.iv1351.bankjdbc.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import se.kth.iv1351.bankjdbc.controller.AsyncController;
+import se.kth.iv1351.bankjdbc.controller.Controller;
+import se.kth.iv1351.bankjdbc.model.StudentDashboard;
+
+/**
+ * The end-to-end latency of one student's screen: the student, the student's agreements
+ * and the available instruments of a type. The sequential benchmark makes the three
+ * controller calls one after the other, the parallel one starts them at once through the
+ * <code>AsyncController</code> and waits for all of them.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+public class DashboardBenchmark
+{
+    @State(Scope.Benchmark)
+    public static class Controllers
+    {
+        Controller ctrl;
+        AsyncController asyncCtrl;
+
+        @Setup(Level.Trial)
+        public void setUp(BenchmarkDatabase db)
+        {
+            ctrl = new Controller(db.dao);
+            asyncCtrl = new AsyncController(ctrl, db.config.getMaxSize(), 1000);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown()
+        {
+            asyncCtrl.close();
+        }
+    }
+
+    @Benchmark
+    public StudentDashboard sequentialDashboard(BenchmarkDatabase db, Controllers controllers) throws Exception
+    {
+        int studentId = db.randomStudentIdWithRentals();
+        return new StudentDashboard(controllers.ctrl.getStudent(studentId),
+                                    controllers.ctrl.getRentalAgreementDetails(studentId),
+                                    controllers.ctrl.listInstruments(db.randomType()));
+    }
+
+    @Benchmark
+    public StudentDashboard parallelDashboard(BenchmarkDatabase db, Controllers controllers)
+    {
+        return controllers.asyncCtrl.getStudentDashboard(db.randomStudentIdWithRentals(), db.randomType()).join();
+    }
+}
@@ -0,0 +1,163 @@
+package se.kth.iv1351.bankjdbc.benchmark;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import se.kth.iv1351.bankjdbc.integration.PoolConfig;
+
+/**
+ * Fills the benchmark database with synthetic students, instruments and rental
+ * agreements. The tables are created from <code>log-phys model.sql</code> if they
+ * do not exist, and all rows are generated on the server with
+ * <code>generate_series</code>, so even ten million rows take seconds, not hours.
+ *
+ * Every tenth student has one active agreement, all other agreements are
+ * terminated history spread over the last ten years.
+ *
+ * If the availability summary table has been migrated, its trigger is disabled
+ * while the rows are generated and the summary is rebuilt once at the end,
+ * instead of being updated once per generated instrument.
+ *
+ * Usage: <code>java -cp target/benchmarks.jar se.kth.iv1351.bankjdbc.benchmark.DataGenerator
+ * [instruments] [students] [agreements]</code>, the connection is configured with
+ * the same <code>soundgood.db.*</code> system properties as the application.
+ */
+public class DataGenerator
+{
+    static final String SCHEMA_RESOURCE = "/log-phys model.sql";
+    static final String[] TYPES = {"guitar", "piano", "violin", "drums", "saxophone", "flute", "trumpet", "cello"};
+    static final String[] BRANDS = {"yamaha", "fender", "gibson", "roland", "selmer", "stradivarius"};
+    private static final String SUMMARY_TABLE = "instrument_availability";
+    private static final String SUMMARY_TRIGGER = "instrument_availability_trigger";
+
+    public static void main(String[] args) throws Exception
+    {
+        int instruments = args.length > 0 ? Integer.parseInt(args[0]) : 10_000;
+        int students = args.length > 1 ? Integer.parseInt(args[1]) : 1_000;
+        int agreements = args.length > 2 ? Integer.parseInt(args[2]) : 10_000;
+        long start = System.nanoTime();
+        generate(PoolConfig.fromSystemProperties(), instruments, students, agreements);
+        System.out.printf("Generated %d instruments, %d students and %d agreements in %.1f s%n",
+                          instruments, students, agreements, (System.nanoTime() - start) / 1e9);
+    }
+
+    /**
+     * Replaces the contents of the student, instrument and rental tables with generated rows.
+     *
+     * @param config      The database to fill.
+     * @param instruments The number of instruments.
+     * @param students    The number of students.
+     * @param agreements  The number of terminated agreements, the active ones come in addition.
+     * @throws SQLException If the database could not be filled.
+     * @throws IOException  If the schema could not be read.
+     */
+    public static void generate(PoolConfig config, int instruments, int students, int agreements) throws SQLException, IOException
+    {
+        try(Connection connection = DriverManager.getConnection(config.getUrl(), config.getUser(), config.getPassword()))
+        {
+            connection.setAutoCommit(false);
+            createSchemaIfMissing(connection);
+            boolean summarized = hasTable(connection, SUMMARY_TABLE);
+            try(Statement statement = connection.createStatement())
+            {
+                if(summarized)
+                    statement.execute("ALTER TABLE instrument DISABLE TRIGGER " + SUMMARY_TRIGGER);
+                statement.execute("TRUNCATE rental_agreement_for_instrument, instrument, student, parent RESTART IDENTITY CASCADE");
+            }
+            execute(connection, "INSERT INTO parent (first_name, last_name) SELECT 'Parent', 'P' || i FROM generate_series(1, ?) i",
+                    (students + 1) / 2);
+            execute(connection, "INSERT INTO student (first_name, last_name, age, personal_number, current_skill, "
+                    + "number_of_instruments_rented, parent_id) SELECT 'Student', 'S' || i, '15', lpad(i::text, 12, '0'), "
+                    + "'beginner', 0, 1 + (i - 1) / 2 FROM generate_series(1, ?) i", students);
+            try(PreparedStatement statement = connection.prepareStatement("INSERT INTO instrument (brand, type, number_rented, "
+                    + "full_stock, price) SELECT (?::varchar[])[1 + i % ?], (?::varchar[])[1 + (i / ?) % ?], 0, 1, 100 + (i % 20) * 25 "
+                    + "FROM generate_series(1, ?) i"))
+            {
+                statement.setArray(1, connection.createArrayOf("varchar", BRANDS));
+                statement.setInt(2, BRANDS.length);
+                statement.setArray(3, connection.createArrayOf("varchar", TYPES));
+                statement.setInt(4, BRANDS.length);
+                statement.setInt(5, TYPES.length);
+                statement.setInt(6, instruments);
+                statement.executeUpdate();
+            }
+            try(PreparedStatement statement = connection.prepareStatement("INSERT INTO rental_agreement_for_instrument (length, "
+                    + "start_date, end_date, student_id, instrument_id, estimated_price, actual_price, terminated) "
+                    + "SELECT 1 + i % 12, current_date - i % 3650, (current_date - i % 3650 + (1 + i % 12) * interval '1 month')::date, "
+                    + "1 + i % ?, 1 + i % ?, 100 * (1 + i % 12), 100 * (1 + i % 12), true FROM generate_series(1, ?) i"))
+            {
+                statement.setInt(1, students);
+                statement.setInt(2, instruments);
+                statement.setInt(3, agreements);
+                statement.executeUpdate();
+            }
+            int lastActive = Math.min(students, instruments);
+            execute(connection, "INSERT INTO rental_agreement_for_instrument (length, start_date, end_date, student_id, instrument_id, "
+                    + "estimated_price, actual_price, terminated) SELECT 12, current_date, (current_date + interval '12 months')::date, "
+                    + "s, s, 1200, null, false FROM generate_series(10, ?, 10) s", lastActive);
+            execute(connection, "UPDATE instrument SET number_rented = 1 WHERE id % 10 = 0 AND id <= ?", lastActive);
+            execute(connection, "UPDATE student SET number_of_instruments_rented = 1 WHERE student_id % 10 = 0 AND student_id <= ?",
+                    lastActive);
+            if(summarized)
+            {
+                try(Statement statement = connection.createStatement())
+                {
+                    statement.execute("SELECT rebuild_instrument_availability()");
+                    statement.execute("ALTER TABLE instrument ENABLE TRIGGER " + SUMMARY_TRIGGER);
+                }
+            }
+            connection.commit();
+            connection.setAutoCommit(true);
+            try(Statement statement = connection.createStatement())
+            {
+                statement.execute("ANALYZE");
+            }
+        }
+    }
+
+    private static boolean hasTable(Connection connection, String table) throws SQLException
+    {
+        try(ResultSet tables = connection.getMetaData().getTables(null, null, table, null))
+        {
+            return tables.next();
+        }
+    }
+
+    private static void createSchemaIfMissing(Connection connection) throws SQLException, IOException
+    {
+        if(hasTable(connection, "instrument"))
+            return;
+        String schema;
+        try(InputStream in = DataGenerator.class.getResourceAsStream(SCHEMA_RESOURCE))
+        {
+            if(in == null)
+                throw new IOException("Could not find " + SCHEMA_RESOURCE + " on the class path");
+            schema = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+        try(Statement statement = connection.createStatement())
+        {
+            for(String sql : schema.split(";"))
+            {
+                if(!sql.isBlank())
+                    statement.execute(sql);
+            }
+        }
+        connection.commit();
+    }
+
+    private static void execute(Connection connection, String sql, int parameter) throws SQLException
+    {
+        try(PreparedStatement statement = connection.prepareStatement(sql))
+        {
+            statement.setInt(1, parameter);
+            statement.executeUpdate();
+        }
+    }
+}
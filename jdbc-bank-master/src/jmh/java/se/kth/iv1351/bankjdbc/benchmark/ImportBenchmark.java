@@ -0,0 +1,133 @@
+package se.kth.iv1351.bankjdbc.benchmark;
+
+import java.io.StringReader;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import se.kth.iv1351.bankjdbc.integration.BankDBException;
+import se.kth.iv1351.bankjdbc.integration.ImportFormat;
+import se.kth.iv1351.bankjdbc.model.ImportResult;
+
+/**
+ * Loads the same instruments with the DAO's <code>COPY</code> import and with batched
+ * <code>INSERT</code> statements, committed in chunks of the same size. Each invocation
+ * loads all rows once, and the loaded rows are deleted after it. The batched inserts get
+ * their rows already parsed, while the import also parses and checks the CSV, so the
+ * comparison favours the inserts. The inserts use the same driver properties as the pool,
+ * so <code>reWriteBatchedInserts</code> applies to them if it is configured. The number
+ * of rows is set with <code>-p rows=1000000</code>.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ImportBenchmark
+{
+    private static final String IMPORTED_BRAND = "imported";
+    private static final String INSERT_SQL = "INSERT INTO instrument (brand, type, number_rented, full_stock, price) VALUES (?, ?, 0, ?, ?)";
+    private static final String DELETE_SQL = "DELETE FROM instrument WHERE brand = '" + IMPORTED_BRAND + "'";
+    private static final int BATCH_SIZE = 1000;
+    private static final int CHUNK_ROWS = 50_000;
+
+    @State(Scope.Benchmark)
+    public static class Rows
+    {
+        @Param({"100000"})
+        public int rows;
+
+        String csv;
+        String[] types;
+        int[] stocks;
+        int[] prices;
+
+        @Setup(Level.Trial)
+        public void setUp()
+        {
+            StringBuilder data = new StringBuilder("brand,type,full_stock,price\n");
+            types = new String[rows];
+            stocks = new int[rows];
+            prices = new int[rows];
+            for(int i = 0; i < rows; i++)
+            {
+                types[i] = DataGenerator.TYPES[i % DataGenerator.TYPES.length];
+                stocks[i] = 1 + i % 3;
+                prices[i] = 100 + (i % 20) * 25;
+                data.append(IMPORTED_BRAND).append(',').append(types[i]).append(',').append(stocks[i]).append(',')
+                    .append(prices[i]).append('\n');
+            }
+            csv = data.toString();
+        }
+
+        @TearDown(Level.Invocation)
+        public void deleteImported(BenchmarkDatabase db) throws SQLException
+        {
+            try(Connection connection = connect(db);
+                PreparedStatement statement = connection.prepareStatement(DELETE_SQL))
+            {
+                statement.executeUpdate();
+            }
+        }
+    }
+
+    @Benchmark
+    public ImportResult copyImport(BenchmarkDatabase db, Rows rows) throws BankDBException
+    {
+        ImportResult result = db.dao.importInstruments(new StringReader(rows.csv), ImportFormat.CSV);
+        if(result.getRowsImported() != rows.rows)
+            throw new IllegalStateException("Imported " + result);
+        return result;
+    }
+
+    @Benchmark
+    public int batchedInsert(BenchmarkDatabase db, Rows rows) throws SQLException
+    {
+        try(Connection connection = connect(db);
+            PreparedStatement statement = connection.prepareStatement(INSERT_SQL))
+        {
+            connection.setAutoCommit(false);
+            for(int i = 0; i < rows.rows; i++)
+            {
+                statement.setString(1, IMPORTED_BRAND);
+                statement.setString(2, rows.types[i]);
+                statement.setInt(3, rows.stocks[i]);
+                statement.setInt(4, rows.prices[i]);
+                statement.addBatch();
+                if((i + 1) % BATCH_SIZE == 0)
+                    statement.executeBatch();
+                if((i + 1) % CHUNK_ROWS == 0)
+                    connection.commit();
+            }
+            statement.executeBatch();
+            connection.commit();
+        }
+        return rows.rows;
+    }
+
+    private static Connection connect(BenchmarkDatabase db) throws SQLException
+    {
+        Properties properties = new Properties();
+        properties.putAll(db.config.getDriverProperties());
+        properties.setProperty("user", db.config.getUser());
+        properties.setProperty("password", db.config.getPassword());
+        return DriverManager.getConnection(db.config.getUrl(), properties);
+    }
+}
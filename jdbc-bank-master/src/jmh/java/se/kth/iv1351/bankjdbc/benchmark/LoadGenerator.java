@@ -0,0 +1,145 @@
+package se.kth.iv1351.bankjdbc.benchmark;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures the request rate and tail latency of the command server under many
+ * concurrent clients. Each client opens its own connection and sends the same
+ * command in a closed loop for the specified duration, waiting for the prompt
+ * that ends each response before sending the next command.
+ *
+ * Usage: <code>java -cp target/benchmarks.jar se.kth.iv1351.bankjdbc.benchmark.LoadGenerator
+ * [host] [port] [clients] [seconds] [command]</code>, for example
+ * <code>localhost 4711 1000 30 "show guitar"</code>.
+ */
+public class LoadGenerator
+{
+    private static final byte[] PROMPT = "> ".getBytes(StandardCharsets.UTF_8);
+
+    public static void main(String[] args) throws Exception
+    {
+        String host = args.length > 0 ? args[0] : "localhost";
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : 4711;
+        int clients = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+        int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 30;
+        String command = args.length > 4 ? args[4] : "show";
+
+        long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+        CountDownLatch done = new CountDownLatch(clients);
+        AtomicLong failures = new AtomicLong();
+        List<long[]> latenciesPerClient = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        for(int i = 0; i < clients; i++)
+        {
+            LatencyRecorder recorder = new LatencyRecorder();
+            Thread thread = new Thread(() -> {
+                try
+                {
+                    runClient(host, port, command, deadline, recorder);
+                }
+                catch(IOException ioe)
+                {
+                    failures.incrementAndGet();
+                }
+                finally
+                {
+                    synchronized(latenciesPerClient)
+                    {
+                        latenciesPerClient.add(recorder.toArray());
+                    }
+                    done.countDown();
+                }
+            }, "load-client-" + i);
+            threads.add(thread);
+        }
+        long start = System.nanoTime();
+        for(Thread thread : threads)
+        {
+            thread.start();
+        }
+        done.await();
+        double elapsedSeconds = (System.nanoTime() - start) / 1e9;
+
+        long[] latencies = latenciesPerClient.stream().flatMapToLong(Arrays::stream).sorted().toArray();
+        System.out.printf("clients: %d, requests: %d, failed clients: %d, elapsed: %.1f s%n",
+                          clients, latencies.length, failures.get(), elapsedSeconds);
+        System.out.printf("throughput: %.0f requests/s%n", latencies.length / elapsedSeconds);
+        if(latencies.length > 0)
+        {
+            System.out.printf("latency ms p50: %.3f, p99: %.3f, p99.9: %.3f, max: %.3f%n",
+                              percentile(latencies, 0.50), percentile(latencies, 0.99),
+                              percentile(latencies, 0.999), latencies[latencies.length - 1] / 1e6);
+        }
+    }
+
+    private static void runClient(String host, int port, String command, long deadline, LatencyRecorder recorder) throws IOException
+    {
+        try(Socket socket = new Socket(host, port))
+        {
+            socket.setTcpNoDelay(true);
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = socket.getOutputStream();
+            byte[] request = (command + "\n").getBytes(StandardCharsets.UTF_8);
+            readUntilPrompt(in);
+            while(System.nanoTime() < deadline)
+            {
+                long sent = System.nanoTime();
+                out.write(request);
+                out.flush();
+                readUntilPrompt(in);
+                recorder.record(System.nanoTime() - sent);
+            }
+            out.write("quit\n".getBytes(StandardCharsets.UTF_8));
+            out.flush();
+        }
+    }
+
+    private static void readUntilPrompt(InputStream in) throws IOException
+    {
+        int matched = 0;
+        while(matched < PROMPT.length)
+        {
+            int read = in.read();
+            if(read < 0)
+                throw new IOException("The server closed the connection");
+            if(read == PROMPT[matched])
+                matched++;
+            else
+                matched = read == PROMPT[0] ? 1 : 0;
+        }
+    }
+
+    private static double percentile(long[] sortedNanos, double percentile)
+    {
+        int index = (int) Math.ceil(percentile * sortedNanos.length) - 1;
+        return sortedNanos[Math.max(0, index)] / 1e6;
+    }
+
+    private static class LatencyRecorder
+    {
+        private long[] latencies = new long[1024];
+        private int count = 0;
+
+        void record(long nanos)
+        {
+            if(count == latencies.length)
+                latencies = Arrays.copyOf(latencies, count * 2);
+            latencies[count++] = nanos;
+        }
+
+        long[] toArray()
+        {
+            return Arrays.copyOf(latencies, count);
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package se.kth.iv1351.bankjdbc.benchmark;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import se.kth.iv1351.bankjdbc.integration.BankDBException;
+import se.kth.iv1351.bankjdbc.model.RentalAgreement;
+import se.kth.iv1351.bankjdbc.model.RentalAgreementDetails;
+import se.kth.iv1351.bankjdbc.model.Student;
+
+/**
+ * The latency of the operations on active rental agreements as the number of terminated
+ * agreements grows, run with for example <code>-p agreements=10000,1000000</code>. With
+ * the table partitioned by terminated, the latency should not depend on the number of
+ * terminated agreements.
+ * The plan of the active agreement lookup is printed before each trial, and should
+ * only read <code>rental_active</code>.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+public class RentalHistoryBenchmark
+{
+    private static final String EXPLAIN_ACTIVE_LOOKUP_SQL = "EXPLAIN SELECT * FROM rental_agreement_for_instrument "
+        + "WHERE student_id = 10 AND terminated = false";
+
+    @State(Scope.Benchmark)
+    public static class Plan
+    {
+        @Setup(Level.Trial)
+        public void printPlan(BenchmarkDatabase db) throws Exception
+        {
+            try(Connection connection = DriverManager.getConnection(db.config.getUrl(), db.config.getUser(), db.config.getPassword());
+                Statement statement = connection.createStatement();
+                ResultSet plan = statement.executeQuery(EXPLAIN_ACTIVE_LOOKUP_SQL))
+            {
+                while(plan.next())
+                {
+                    System.out.println(plan.getString(1));
+                }
+            }
+        }
+    }
+
+    @Benchmark
+    public List<RentalAgreement> listActiveAgreements(BenchmarkDatabase db, Plan plan) throws BankDBException
+    {
+        return db.dao.listAgreements(db.randomStudentIdWithRentals());
+    }
+
+    @Benchmark
+    public List<RentalAgreementDetails> listActiveAgreementsWithInstruments(BenchmarkDatabase db, Plan plan) throws BankDBException
+    {
+        return db.dao.listAgreementsWithInstruments(db.randomStudentIdWithRentals());
+    }
+
+    /**
+     * Terminating moves the agreement from the active partition to the partition of the
+     * month it started in.
+     */
+    @Benchmark
+    public void rentInstrumentAndTerminateRental(BenchmarkDatabase db, Plan plan) throws BankDBException
+    {
+        Student student = db.dao.findStudent(db.randomStudentIdWithoutRentals());
+        int instrumentId = db.dao.rentInstrument(db.randomBrand(), db.randomType(), student, 1);
+        for(RentalAgreement agreement : db.dao.listAgreements(student.getId()))
+        {
+            if(agreement.getInstrumentId() == instrumentId)
+                db.dao.terminateRental(agreement);
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package se.kth.iv1351.bankjdbc.benchmark;
+
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import se.kth.iv1351.bankjdbc.integration.BankDBException;
+import se.kth.iv1351.bankjdbc.model.Student;
+
+/**
+ * Rentals per second of the DAO's rental, one statement and one commit, against the
+ * rental the DAO made before it, four statements that each committed on their own:
+ * find a free instrument, insert the agreement, and set the rented counts of the student
+ * and of the instrument. The old statements are run here on a connection of their own,
+ * with the availability predicate of the current indexes so that both find the
+ * instrument the same way. The rentals of an iteration are deleted after it, so the free
+ * stock is the same in every iteration. Each iteration rents at most a few thousand
+ * instruments, run it with for example <code>-p instruments=100000</code> so that
+ * every type and brand keeps free instruments.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 10, time = 2)
+@Fork(1)
+public class RentalPathBenchmark
+{
+    private static final String LAST_AGREEMENT_SQL = "SELECT COALESCE(max(id), 0) FROM rental_agreement_for_instrument";
+    private static final String RETURN_RENTALS_SQL = "WITH removed AS (DELETE FROM rental_agreement_for_instrument "
+        + "WHERE terminated = false AND id > ? RETURNING student_id, instrument_id), "
+        + "returned_students AS (UPDATE student s SET number_of_instruments_rented = number_of_instruments_rented - r.rented "
+        + "FROM (SELECT student_id, count(*) AS rented FROM removed GROUP BY student_id) r WHERE s.student_id = r.student_id) "
+        + "UPDATE instrument i SET number_rented = number_rented - r.rented "
+        + "FROM (SELECT instrument_id, count(*) AS rented FROM removed GROUP BY instrument_id) r WHERE i.id = r.instrument_id";
+
+    private static final String FIND_FREE_INSTRUMENT_SQL = "SELECT id, price, number_rented FROM instrument "
+        + "WHERE type = ? AND brand = ? AND number_rented < full_stock LIMIT 1";
+    private static final String INSERT_AGREEMENT_SQL = "INSERT INTO rental_agreement_for_instrument (student_id, instrument_id, "
+        + "length, start_date, end_date, estimated_price, actual_price, terminated) VALUES (?, ?, ?, current_date, ?, ?, null, false)";
+    private static final String UPDATE_STUDENT_SQL = "UPDATE student SET number_of_instruments_rented = ? WHERE student_id = ?";
+    private static final String UPDATE_INSTRUMENT_SQL = "UPDATE instrument SET number_rented = ? WHERE id = ?";
+
+    /**
+     * Deletes the agreements rented in an iteration, and gives back their counts.
+     */
+    @State(Scope.Benchmark)
+    public static class Rentals
+    {
+        private long lastAgreementBefore;
+
+        @Setup(Level.Iteration)
+        public void rememberLastAgreement(BenchmarkDatabase db) throws SQLException
+        {
+            try(Connection connection = connect(db);
+                PreparedStatement statement = connection.prepareStatement(LAST_AGREEMENT_SQL);
+                ResultSet result = statement.executeQuery())
+            {
+                result.next();
+                lastAgreementBefore = result.getLong(1);
+            }
+        }
+
+        @TearDown(Level.Iteration)
+        public void returnRentals(BenchmarkDatabase db) throws SQLException
+        {
+            try(Connection connection = connect(db);
+                PreparedStatement statement = connection.prepareStatement(RETURN_RENTALS_SQL))
+            {
+                statement.setLong(1, lastAgreementBefore);
+                statement.executeUpdate();
+            }
+        }
+    }
+
+    /**
+     * The connection and statements of the old rental, one per thread, prepared once as
+     * the old DAO did.
+     */
+    @State(Scope.Thread)
+    public static class OldRental
+    {
+        Connection connection;
+        PreparedStatement findFreeInstrument;
+        PreparedStatement insertAgreement;
+        PreparedStatement updateStudent;
+        PreparedStatement updateInstrument;
+
+        @Setup(Level.Trial)
+        public void prepare(BenchmarkDatabase db) throws SQLException
+        {
+            connection = connect(db);
+            connection.setAutoCommit(false);
+            findFreeInstrument = connection.prepareStatement(FIND_FREE_INSTRUMENT_SQL);
+            insertAgreement = connection.prepareStatement(INSERT_AGREEMENT_SQL);
+            updateStudent = connection.prepareStatement(UPDATE_STUDENT_SQL);
+            updateInstrument = connection.prepareStatement(UPDATE_INSTRUMENT_SQL);
+        }
+
+        @TearDown(Level.Trial)
+        public void close() throws SQLException
+        {
+            connection.close();
+        }
+    }
+
+    @Benchmark
+    public int oneStatementRental(BenchmarkDatabase db, Rentals rentals) throws BankDBException
+    {
+        Student student = db.dao.findStudent(db.randomStudentIdWithoutRentals());
+        return db.dao.rentInstrument(db.randomBrand(), db.randomType(), student, 1);
+    }
+
+    @Benchmark
+    public int fourStatementRental(BenchmarkDatabase db, Rentals rentals, OldRental old) throws BankDBException, SQLException
+    {
+        Student student = db.dao.findStudent(db.randomStudentIdWithoutRentals());
+        int instrumentId;
+        int numberRented;
+        double price;
+        old.findFreeInstrument.setString(1, db.randomType());
+        old.findFreeInstrument.setString(2, db.randomBrand());
+        try(ResultSet result = old.findFreeInstrument.executeQuery())
+        {
+            if(!result.next())
+                throw new IllegalStateException("No free instrument, run with more instruments");
+            instrumentId = result.getInt(1);
+            price = result.getDouble(2);
+            numberRented = result.getInt(3);
+        }
+        old.connection.commit();
+
+        old.insertAgreement.setInt(1, student.getId());
+        old.insertAgreement.setInt(2, instrumentId);
+        old.insertAgreement.setInt(3, 1);
+        old.insertAgreement.setDate(4, Date.valueOf(LocalDate.now().plusMonths(1)));
+        old.insertAgreement.setDouble(5, price);
+        old.insertAgreement.executeUpdate();
+        old.connection.commit();
+
+        student.incrementNrRented();
+        old.updateStudent.setInt(1, student.getNrRented());
+        old.updateStudent.setInt(2, student.getId());
+        old.updateStudent.executeUpdate();
+        old.connection.commit();
+
+        old.updateInstrument.setInt(1, numberRented + 1);
+        old.updateInstrument.setInt(2, instrumentId);
+        old.updateInstrument.executeUpdate();
+        old.connection.commit();
+        return instrumentId;
+    }
+
+    private static Connection connect(BenchmarkDatabase db) throws SQLException
+    {
+        return DriverManager.getConnection(db.config.getUrl(), db.config.getUser(), db.config.getPassword());
+    }
+}
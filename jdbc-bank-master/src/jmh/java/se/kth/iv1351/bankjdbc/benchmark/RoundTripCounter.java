@@ -0,0 +1,149 @@
+package se.kth.iv1351.bankjdbc.benchmark;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.net.SocketFactory;
+
+import se.kth.iv1351.bankjdbc.integration.BankDAO;
+import se.kth.iv1351.bankjdbc.integration.PoolConfig;
+import se.kth.iv1351.bankjdbc.model.RentalAgreement;
+import se.kth.iv1351.bankjdbc.model.Student;
+
+/**
+ * Counts the round trips each DAO call makes to the database. The JDBC driver is
+ * given this class as its socket factory, and every time the driver flushes a
+ * message to the server, which it does once per exchange that waits for an answer,
+ * the counter is increased.
+ *
+ * Usage: <code>java -cp target/benchmarks.jar se.kth.iv1351.bankjdbc.benchmark.RoundTripCounter
+ * [instruments] [students] [agreements]</code>, the connection is configured with
+ * the same <code>soundgood.db.*</code> system properties as the application. The
+ * database is filled by the <code>DataGenerator</code> first.
+ */
+public class RoundTripCounter extends SocketFactory
+{
+    private static final LongAdder FLUSHES = new LongAdder();
+    private static final int CALLS_PER_COMMAND = 100;
+
+    public static void main(String[] args) throws Exception
+    {
+        int instruments = args.length > 0 ? Integer.parseInt(args[0]) : 10_000;
+        int students = args.length > 1 ? Integer.parseInt(args[1]) : 1_000;
+        int agreements = args.length > 2 ? Integer.parseInt(args[2]) : 10_000;
+        DataGenerator.generate(PoolConfig.fromSystemProperties(), instruments, students, agreements);
+
+        System.setProperty("soundgood.db.driver.socketFactory", RoundTripCounter.class.getName());
+        System.setProperty("soundgood.db.pool.minSize", "1");
+        System.setProperty("soundgood.db.pool.maxSize", "1");
+        BankDAO dao = new BankDAO(PoolConfig.fromSystemProperties());
+        try
+        {
+            report("listInstruments", () -> dao.listInstruments(DataGenerator.TYPES[0]));
+            report("listAllInstruments", () -> dao.listAllInstruments());
+            report("findStudent", () -> dao.findStudent(1));
+            report("findInstrument", () -> dao.findInstrument(1));
+            report("listAgreements", () -> dao.listAgreements(10));
+            report("listAgreementsWithInstruments", () -> dao.listAgreementsWithInstruments(10));
+            Student student = dao.findStudent(1);
+            long before = FLUSHES.sum();
+            for(int i = 0; i < CALLS_PER_COMMAND; i++)
+            {
+                dao.rentInstrument(DataGenerator.BRANDS[i % DataGenerator.BRANDS.length], DataGenerator.TYPES[0], student, 1);
+            }
+            print("rentInstrument", before);
+            List<RentalAgreement> rentedAgreements = dao.listAgreements(student.getId());
+            before = FLUSHES.sum();
+            for(RentalAgreement agreement : rentedAgreements.subList(0, CALLS_PER_COMMAND))
+            {
+                dao.terminateRental(agreement);
+            }
+            print("terminateRental", before);
+        }
+        finally
+        {
+            dao.close();
+        }
+    }
+
+    private interface Command
+    {
+        void run() throws Exception;
+    }
+
+    private static void report(String name, Command command) throws Exception
+    {
+        long before = FLUSHES.sum();
+        for(int i = 0; i < CALLS_PER_COMMAND; i++)
+        {
+            command.run();
+        }
+        print(name, before);
+    }
+
+    private static void print(String name, long flushesBefore)
+    {
+        System.out.printf("%-32s %6.2f round trips per call%n", name, (FLUSHES.sum() - flushesBefore) / (double) CALLS_PER_COMMAND);
+    }
+
+    @Override
+    public Socket createSocket()
+    {
+        return new CountingSocket();
+    }
+
+    @Override
+    public Socket createSocket(String host, int port) throws IOException
+    {
+        Socket socket = createSocket();
+        socket.connect(new InetSocketAddress(host, port));
+        return socket;
+    }
+
+    @Override
+    public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException
+    {
+        return createSocket(host, port);
+    }
+
+    @Override
+    public Socket createSocket(InetAddress host, int port) throws IOException
+    {
+        return createSocket(host.getHostAddress(), port);
+    }
+
+    @Override
+    public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException
+    {
+        return createSocket(address.getHostAddress(), port);
+    }
+
+    private static class CountingSocket extends Socket
+    {
+        @Override
+        public OutputStream getOutputStream() throws IOException
+        {
+            return new FilterOutputStream(super.getOutputStream())
+            {
+                @Override
+                public void write(byte[] bytes, int offset, int length) throws IOException
+                {
+                    out.write(bytes, offset, length);
+                }
+
+                @Override
+                public void flush() throws IOException
+                {
+                    FLUSHES.increment();
+                    out.flush();
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package se.kth.iv1351.bankjdbc.controller;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import se.kth.iv1351.bankjdbc.integration.ClientSession;
+import se.kth.iv1351.bankjdbc.model.AvailabilitySummary;
+import se.kth.iv1351.bankjdbc.model.Instrument;
+import se.kth.iv1351.bankjdbc.model.RentalAgreement;
+import se.kth.iv1351.bankjdbc.model.RentalAgreementDetails;
+import se.kth.iv1351.bankjdbc.model.Student;
+import se.kth.iv1351.bankjdbc.model.StudentDashboard;
+import se.kth.iv1351.bankjdbc.tracing.Span;
+import se.kth.iv1351.bankjdbc.tracing.Tracer;
+
+/**
+ * Calls the <code>Controller</code> without blocking the caller. Each method runs the
+ * corresponding controller method on a bounded pool of database threads and returns a
+ * future of its result, so a front-end can start several independent calls for one
+ * screen at once and wait only as long as the slowest of them. A future fails with the
+ * controller's exception if the call fails, or with a
+ * <code>RejectedExecutionException</code> if too many calls are already waiting.
+ *
+ * There should not be more database threads than connections in the pool, since more
+ * threads would only wait for a connection. A call continues the trace and the
+ * <code>ClientSession</code> of the thread that started it, so once a write has
+ * completed, every read started by the same thread reads from the primary for the
+ * read-your-writes window, whichever database thread the write and the read run on.
+ */
+public class AsyncController
+{
+    private static final String PROPERTY_PREFIX = "soundgood.async.";
+
+    private final Controller ctrl;
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * Creates a new instance, with the number of threads and the queue capacity found in the
+     * system properties <code>soundgood.async.threads</code> and <code>soundgood.async.queueCapacity</code>.
+     * There are as many threads as the pool has connections by default.
+     *
+     * @param ctrl The controller that is called.
+     */
+    public AsyncController(Controller ctrl)
+    {
+        this(ctrl, Integer.parseInt(System.getProperty(PROPERTY_PREFIX + "threads",
+                                                       System.getProperty("soundgood.db.pool.maxSize", "10"))),
+             Integer.parseInt(System.getProperty(PROPERTY_PREFIX + "queueCapacity", "1000")));
+    }
+
+    /**
+     * Creates a new instance.
+     *
+     * @param ctrl          The controller that is called.
+     * @param threads       The number of calls that run at the same time.
+     * @param queueCapacity The number of calls that can wait for a thread.
+     */
+    public AsyncController(Controller ctrl, int threads, int queueCapacity)
+    {
+        this.ctrl = ctrl;
+        AtomicInteger threadCount = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                                               new ArrayBlockingQueue<>(queueCapacity), runnable -> {
+            Thread thread = new Thread(runnable, "db-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * @see Controller#listInstruments(String)
+     */
+    public CompletableFuture<List<Instrument>> listInstruments(String typeOfInstrument)
+    {
+        return supply(() -> ctrl.listInstruments(typeOfInstrument));
+    }
+
+    /**
+     * @see Controller#listAllInstruments()
+     */
+    public CompletableFuture<List<Instrument>> listAllInstruments()
+    {
+        return supply(ctrl::listAllInstruments);
+    }
+
+    /**
+     * @see Controller#summarizeAvailability()
+     */
+    public CompletableFuture<List<AvailabilitySummary>> summarizeAvailability()
+    {
+        return supply(ctrl::summarizeAvailability);
+    }
+
+    /**
+     * @see Controller#getStudent(int)
+     */
+    public CompletableFuture<Student> getStudent(int id)
+    {
+        return supply(() -> ctrl.getStudent(id));
+    }
+
+    /**
+     * @see Controller#getRentalAgreement(int)
+     */
+    public CompletableFuture<List<RentalAgreement>> getRentalAgreement(int studentId)
+    {
+        return supply(() -> ctrl.getRentalAgreement(studentId));
+    }
+
+    /**
+     * @see Controller#getRentalAgreementDetails(int)
+     */
+    public CompletableFuture<List<RentalAgreementDetails>> getRentalAgreementDetails(int studentId)
+    {
+        return supply(() -> ctrl.getRentalAgreementDetails(studentId));
+    }
+
+    /**
+     * @see Controller#getInstrumentById(int)
+     */
+    public CompletableFuture<Instrument> getInstrumentById(int instrumentId)
+    {
+        return supply(() -> ctrl.getInstrumentById(instrumentId));
+    }
+
+    /**
+     * @see Controller#rentInstrument(String, String, Student, int)
+     */
+    public CompletableFuture<Void> rentInstrument(String type, String brand, Student student, int length)
+    {
+        return supply(() -> {
+            ctrl.rentInstrument(type, brand, student, length);
+            return null;
+        });
+    }
+
+    /**
+     * @see Controller#terminateRental(RentalAgreement)
+     */
+    public CompletableFuture<Void> terminateRental(RentalAgreement rentalAgreement)
+    {
+        return supply(() -> {
+            ctrl.terminateRental(rentalAgreement);
+            return null;
+        });
+    }
+
+    /**
+     * Reads the student, the student's agreements and the available instruments of the
+     * specified type at the same time, on three threads.
+     *
+     * @param studentId        The id of the student.
+     * @param typeOfInstrument The type of the instruments the student is looking for.
+     * @return The dashboard, when all three reads are done. The future fails if any of them fails.
+     */
+    public CompletableFuture<StudentDashboard> getStudentDashboard(int studentId, String typeOfInstrument)
+    {
+        CompletableFuture<Student> student = getStudent(studentId);
+        CompletableFuture<List<RentalAgreementDetails>> agreements = getRentalAgreementDetails(studentId);
+        CompletableFuture<List<Instrument>> instruments = listInstruments(typeOfInstrument);
+        return CompletableFuture.allOf(student, agreements, instruments)
+                                .thenApply(allDone -> new StudentDashboard(student.join(), agreements.join(), instruments.join()));
+    }
+
+    /**
+     * Stops accepting calls. Calls that have already been started are completed.
+     */
+    public void close()
+    {
+        executor.shutdown();
+    }
+
+    private interface Call<T>
+    {
+        T call() throws Exception;
+    }
+
+    private <T> CompletableFuture<T> supply(Call<T> call)
+    {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        Span caller = Tracer.current();
+        ClientSession session = ClientSession.current();
+        try
+        {
+            executor.execute(() -> {
+                Span previous = Tracer.attach(caller);
+                ClientSession previousSession = ClientSession.attach(session);
+                try
+                {
+                    future.complete(call.call());
+                }
+                catch(Exception e)
+                {
+                    future.completeExceptionally(e);
+                }
+                finally
+                {
+                    ClientSession.attach(previousSession);
+                    Tracer.attach(previous);
+                }
+            });
+        }
+        catch(RejectedExecutionException ree)
+        {
+            future.completeExceptionally(ree);
+        }
+        return future;
+    }
+}
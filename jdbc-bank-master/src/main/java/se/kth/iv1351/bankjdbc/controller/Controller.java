@@ -23,17 +23,39 @@
 
 package se.kth.iv1351.bankjdbc.controller;
 
+import java.io.OutputStream;
+import java.io.Reader;
+import java.time.LocalDate;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.function.Function;
 
 import se.kth.iv1351.bankjdbc.integration.BankDAO;
 import se.kth.iv1351.bankjdbc.integration.BankDBException;
+import se.kth.iv1351.bankjdbc.integration.CatalogCache;
+import se.kth.iv1351.bankjdbc.integration.CatalogCacheMetrics;
+import se.kth.iv1351.bankjdbc.integration.ImportFormat;
+import se.kth.iv1351.bankjdbc.integration.PoolMetrics;
+import se.kth.iv1351.bankjdbc.integration.RetryMetrics;
+import se.kth.iv1351.bankjdbc.integration.StatementMetrics;
+import se.kth.iv1351.bankjdbc.integration.StatementProfile;
+import se.kth.iv1351.bankjdbc.metrics.OperationMetrics;
+import se.kth.iv1351.bankjdbc.metrics.OperationStats;
+import se.kth.iv1351.bankjdbc.model.AvailabilitySummary;
+import se.kth.iv1351.bankjdbc.model.BatchResult;
+import se.kth.iv1351.bankjdbc.model.ImportResult;
 import se.kth.iv1351.bankjdbc.model.Instrument;
 import se.kth.iv1351.bankjdbc.model.InstrumentException;
+import se.kth.iv1351.bankjdbc.model.InstrumentVisitor;
 import se.kth.iv1351.bankjdbc.model.RentalAgreement;
+import se.kth.iv1351.bankjdbc.model.RentalAgreementDetails;
 import se.kth.iv1351.bankjdbc.model.RentalAgreementException;
+import se.kth.iv1351.bankjdbc.model.RentalRequest;
+import se.kth.iv1351.bankjdbc.model.StatementException;
 import se.kth.iv1351.bankjdbc.model.Student;
 import se.kth.iv1351.bankjdbc.model.StudentException;
+import se.kth.iv1351.bankjdbc.tracing.Span;
+import se.kth.iv1351.bankjdbc.tracing.Tracer;
 
 /**
  * This is the application's only controller, all calls to the model pass here.
@@ -43,6 +65,8 @@ import se.kth.iv1351.bankjdbc.model.StudentException;
  */
 public class Controller {
     private final BankDAO bankDb;
+    private final CatalogCache catalog;
+    private final OperationMetrics operations = new OperationMetrics("controller");
 
     /**
      * Creates a new instance, and retrieves a connection to the database.
@@ -50,7 +74,122 @@ public class Controller {
      * @throws BankDBException If unable to connect to the database.
      */
     public Controller() throws BankDBException {
-        bankDb = new BankDAO();
+        this(new BankDAO());
+    }
+
+    /**
+     * Creates a new instance that uses the specified DAO.
+     *
+     * @param bankDb The DAO used to reach the database.
+     */
+    public Controller(BankDAO bankDb) {
+        this.bankDb = bankDb;
+        catalog = new CatalogCache(bankDb);
+    }
+
+    /**
+     * @return The current state of the database connection pool, such as the
+     *         number of active and idle connections and how long callers wait
+     *         for a connection.
+     */
+    public PoolMetrics getPoolMetrics()
+    {
+        return bankDb.getPoolMetrics();
+    }
+
+    /**
+     * @return The number of calls, failures and latency percentiles of each controller method
+     *         that has been called, followed by those of each DAO method.
+     */
+    public List<OperationStats> getOperationStats()
+    {
+        List<OperationStats> stats = new ArrayList<>(operations.getStats());
+        stats.addAll(bankDb.getOperationStats());
+        return stats;
+    }
+
+    /**
+     * @return How many statements have been prepared and reused, and how long calls that
+     *         had to prepare a statement took compared to calls that did not.
+     */
+    public StatementMetrics getStatementMetrics()
+    {
+        return bankDb.getStatementMetrics();
+    }
+
+    /**
+     * @return How often each SQL statement has run and how long it took, the statement that
+     *         took the most time first.
+     */
+    public List<StatementProfile> getStatementProfiles()
+    {
+        return bankDb.getStatementProfiles();
+    }
+
+    /**
+     * Starts counting the executions of all SQL statements from zero again.
+     */
+    public void resetStatementProfiles()
+    {
+        bankDb.resetStatementProfiles();
+    }
+
+    /**
+     * Explains the plan of a statement with the parameters of its slowest execution. The
+     * statement is run again in a transaction that is rolled back.
+     *
+     * @param sql The statement, as returned by <code>StatementProfile.getSql()</code>.
+     * @return The lines of the plan.
+     * @throws StatementException If the statement has not run since the profiles were reset,
+     *                            or could not be explained.
+     */
+    public List<String> explainStatement(String sql) throws StatementException
+    {
+        return instrumented("explainStatement", () -> bankDb.explainStatement(sql),
+                            e -> new StatementException("Unable to explain the statement", e));
+    }
+
+    /**
+     * @return How often database calls have been retried after a lost connection,
+     *         a serialization failure or a deadlock.
+     */
+    public RetryMetrics getRetryMetrics()
+    {
+        return bankDb.getRetryMetrics();
+    }
+
+    /**
+     * @return The number of scheduled runs of the rental partition maintenance that have
+     *         failed. Rows of missing months wait in the default partition until a run succeeds.
+     */
+    public long getPartitionMaintenanceFailures()
+    {
+        return bankDb.getPartitionMaintenanceFailures();
+    }
+
+    /**
+     * @return How long it took to connect to the database, in milliseconds.
+     */
+    public double getStartupMillis()
+    {
+        return bankDb.getStartupMillis();
+    }
+
+    /**
+     * Closes all database connections, together with the statements prepared on them.
+     * The controller can not be used after this method has been called.
+     */
+    public void close()
+    {
+        bankDb.close();
+    }
+
+    /**
+     * @return The hits and misses of the cached instrument catalog.
+     */
+    public CatalogCacheMetrics getCatalogCacheMetrics()
+    {
+        return catalog.getMetrics();
     }
 
 
@@ -66,14 +205,8 @@ public class Controller {
         if(typeOfInstrument == null)
             return new ArrayList<>();
         
-        try
-        {
-            return bankDb.listInstruments(typeOfInstrument);
-        }
-        catch (Exception e)
-        {
-            throw new InstrumentException("Could not search for instrument", e);
-        }
+        return instrumented("listInstruments", () -> catalog.listInstruments(typeOfInstrument),
+                            e -> new InstrumentException("Could not search for instrument", e));
     }
 
     /**
@@ -83,14 +216,69 @@ public class Controller {
      */
     public List<Instrument> listAllInstruments() throws InstrumentException
     {
-        try
-        {
-            return bankDb.listAllInstruments();
-        }
-        catch(Exception e)
-        {
-            throw new InstrumentException("Unable to list instruments", e);
-        }
+        return instrumented("listAllInstruments", () -> catalog.listAllInstruments(),
+                            e -> new InstrumentException("Unable to list instruments", e));
+    }
+
+    /**
+     * Lists one page of the instruments that have not been rented out, ordered by id.
+     * To list the next page, call again with the id of the last instrument in this page.
+     * @param typeOfInstrument The type of the instruments, or <code>null</code> for all types
+     * @param afterId Only instruments with a larger id are listed, 0 for the first page
+     * @param pageSize The largest number of instruments in the page
+     * @return The instruments in the page, fewer than the page size if it is the last page
+     * @throws InstrumentException If the instruments could not be listed
+     */
+    public List<Instrument> listInstrumentsPage(String typeOfInstrument, int afterId, int pageSize) throws InstrumentException
+    {
+        return instrumented("listInstrumentsPage", () -> catalog.listInstrumentsPage(typeOfInstrument, afterId, pageSize),
+                            e -> new InstrumentException("Unable to list instruments", e));
+    }
+
+    /**
+     * Passes each instrument that has not been rented out to the specified visitor, without
+     * first collecting the catalog in a list. No object is created per instrument when the
+     * catalog is cached
+     * @param typeOfInstrument The type of the instruments, or <code>null</code> for all types
+     * @param visitor Called once for each instrument
+     * @throws InstrumentException If the instruments could not be listed
+     */
+    public void forEachInstrument(String typeOfInstrument, InstrumentVisitor visitor) throws InstrumentException
+    {
+        instrumented("forEachInstrument", () -> {
+            catalog.forEachInstrument(typeOfInstrument, visitor);
+            return null;
+        }, e -> new InstrumentException("Unable to list instruments", e));
+    }
+
+    /**
+     * Passes one page of the instruments that have not been rented out to the specified
+     * visitor, in id order. No object is created per instrument when the catalog is cached
+     * @param typeOfInstrument The type of the instruments, or <code>null</code> for all types
+     * @param afterId Only instruments with a larger id are visited, 0 for the first page
+     * @param pageSize The largest number of instruments visited
+     * @param visitor Called once for each instrument in the page
+     * @return The number of instruments visited, fewer than the page size if it was the last page
+     * @throws InstrumentException If the instruments could not be listed
+     */
+    public int forEachInstrumentPage(String typeOfInstrument, int afterId, int pageSize, InstrumentVisitor visitor)
+        throws InstrumentException
+    {
+        return instrumented("forEachInstrumentPage", () -> catalog.forEachInstrumentPage(typeOfInstrument, afterId, pageSize, visitor),
+                            e -> new InstrumentException("Unable to list instruments", e));
+    }
+
+    /**
+     * Counts the instruments that have not been rented out, per type and brand, together with
+     * their price range. The counts are kept up to date by the database, so this does not read
+     * the instruments themselves
+     * @return One summary for each type and brand with at least one available instrument
+     * @throws InstrumentException If the summary could not be read
+     */
+    public List<AvailabilitySummary> summarizeAvailability() throws InstrumentException
+    {
+        return instrumented("summarizeAvailability", () -> bankDb.summarizeAvailability(),
+                            e -> new InstrumentException("Unable to summarize the available instruments", e));
     }
 
     /**
@@ -103,14 +291,28 @@ public class Controller {
      */
     public void rentInstrument(String type, String brand, Student student, int length) throws RentalAgreementException
     {
-        try
-        {
-            bankDb.rentInstrument(brand, type, student, length);
-        }
-        catch (Exception e)
-        {
-            throw new RentalAgreementException("Could not rent instrument", e);
-        }
+        instrumented("rentInstrument", () -> {
+            int instrumentId = bankDb.rentInstrument(brand, type, student, length);
+            catalog.instrumentRented(instrumentId);
+            return null;
+        }, e -> new RentalAgreementException("Could not rent instrument", e));
+    }
+
+    /**
+     * Creates rental agreements for all the specified requests, for example when many
+     * students rent instruments at the start of a term. A request that can not be
+     * fulfilled does not stop the others from being fulfilled.
+     * @param requests The requested rentals
+     * @return One result per request, in the same order as the requests
+     * @throws RentalAgreementException If the rentals could not be made at all
+     */
+    public List<BatchResult<RentalRequest>> rentInstruments(List<RentalRequest> requests) throws RentalAgreementException
+    {
+        return instrumented("rentInstruments", () -> {
+            List<BatchResult<RentalRequest>> results = bankDb.rentInstruments(requests);
+            catalog.invalidate();
+            return results;
+        }, e -> new RentalAgreementException("Could not rent instruments", e));
     }
 
     /**
@@ -121,14 +323,56 @@ public class Controller {
      */
     public Student getStudent(int id) throws StudentException
     {
-        try
-        {
-            return bankDb.findStudent(id);
-        }
-        catch(Exception e)
-        {
-            throw new StudentException("Unable to search for student", e);
-        }
+        return instrumented("getStudent", () -> bankDb.findStudent(id),
+                            e -> new StudentException("Unable to search for student", e));
+    }
+
+    /**
+     * Imports instruments in bulk, for example a supplier's delivery. Rows that break a
+     * constraint are rejected one by one and reported in the result
+     * @param in The instruments
+     * @param format The format of the instruments
+     * @return How many instruments were read, imported and rejected
+     * @throws InstrumentException If the import could not be started
+     */
+    public ImportResult importInstruments(Reader in, ImportFormat format) throws InstrumentException
+    {
+        return instrumented("importInstruments", () -> {
+            ImportResult result = bankDb.importInstruments(in, format);
+            catalog.invalidate();
+            return result;
+        }, e -> new InstrumentException("Unable to import instruments", e));
+    }
+
+    /**
+     * Imports students in bulk, for example a term's new enrolments. Rows that break a
+     * constraint, or whose parent does not exist, are rejected one by one and reported in
+     * the result
+     * @param in The students
+     * @param format The format of the students
+     * @return How many students were read, imported and rejected
+     * @throws StudentException If the import could not be started
+     */
+    public ImportResult importStudents(Reader in, ImportFormat format) throws StudentException
+    {
+        return instrumented("importStudents", () -> bankDb.importStudents(in, format),
+                            e -> new StudentException("Unable to import students", e));
+    }
+
+    /**
+     * Exports the rental agreements that started in a period, for example a month's
+     * agreements for the accounts, as CSV written to a stream while it is read from the
+     * database
+     * @param from The first start date to export, or <code>null</code> for no lower bound
+     * @param until The start date after the last one to export, or <code>null</code> for no upper bound
+     * @param out Where the agreements are written, it is not closed
+     * @return The number of agreements exported
+     * @throws RentalAgreementException If the agreements could not be exported
+     */
+    public long exportAgreements(LocalDate from, LocalDate until, OutputStream out) throws RentalAgreementException
+    {
+        return instrumented("exportAgreements", () -> bankDb.exportAgreements(from, until, out),
+                            e -> new RentalAgreementException("Unable to export rental agreements", e));
     }
 
     /**
@@ -139,14 +383,21 @@ public class Controller {
      */
     public List<RentalAgreement> getRentalAgreement(int studentId) throws RentalAgreementException
     {
-        try
-        {
-            return bankDb.listAgreements(studentId);
-        }
-        catch(Exception e)
-        {
-            throw new RentalAgreementException("Could not list agreements", e);
-        }
+        return instrumented("getRentalAgreement", () -> bankDb.listAgreements(studentId),
+                            e -> new RentalAgreementException("Could not list agreements", e));
+    }
+
+    /**
+     * Lists all active rental agreements of the specified student, together with the
+     * brand and type of each rented instrument
+     * @param studentId the specified students id
+     * @return A list of agreements for which the student is responsible for
+     * @throws RentalAgreementException If the list could not be created
+     */
+    public List<RentalAgreementDetails> getRentalAgreementDetails(int studentId) throws RentalAgreementException
+    {
+        return instrumented("getRentalAgreementDetails", () -> bankDb.listAgreementsWithInstruments(studentId),
+                            e -> new RentalAgreementException("Could not list agreements", e));
     }
 
     /**
@@ -157,25 +408,65 @@ public class Controller {
      */
     public Instrument getInstrumentById(int instrumentId) throws InstrumentException
     {
-        try
-        {
-            return bankDb.findInstrument(instrumentId);
-        }
-        catch(Exception e)
-        {
-            throw new InstrumentException("Unable to search for insrument", e);
-        }
+        return instrumented("getInstrumentById", () -> bankDb.findInstrument(instrumentId),
+                            e -> new InstrumentException("Unable to search for insrument", e));
     }
 
     public void terminateRental(RentalAgreement rentalAgreement) throws RentalAgreementException
     {
+        instrumented("terminateRental", () -> {
+            bankDb.terminateRental(rentalAgreement);
+            catalog.instrumentReturned(rentalAgreement.getInstrumentId());
+            return null;
+        }, e -> new RentalAgreementException("Could not terminate Rental", e));
+    }
+
+    /**
+     * Terminates all the specified rental agreements. An agreement that can not be
+     * terminated does not stop the others from being terminated.
+     * @param rentalAgreements The agreements to terminate
+     * @return One result per agreement, in the same order as the agreements
+     * @throws RentalAgreementException If the agreements could not be terminated at all
+     */
+    public List<BatchResult<RentalAgreement>> terminateRentals(List<RentalAgreement> rentalAgreements) throws RentalAgreementException
+    {
+        return instrumented("terminateRentals", () -> {
+            List<BatchResult<RentalAgreement>> results = bankDb.terminateRentals(rentalAgreements);
+            catalog.invalidate();
+            return results;
+        }, e -> new RentalAgreementException("Could not terminate rentals", e));
+    }
+
+    /**
+     * The body of a controller method, run by <code>instrumented</code>.
+     */
+    private interface ControllerCall<T>
+    {
+        T call() throws Exception;
+    }
+
+    /**
+     * Runs the body of a controller method in a span named after the method, and records
+     * its latency, and whether it threw, as a call of the operation. Whatever the body
+     * throws is rethrown as the exception made by <code>failure</code>.
+     */
+    private <T, E extends Exception> T instrumented(String operation, ControllerCall<T> body, Function<Exception, E> failure)
+        throws E
+    {
+        long startNanos = System.nanoTime();
+        Span span = Tracer.startSpan("Controller." + operation);
         try
         {
-            bankDb.terminateRental(rentalAgreement);
+            T result = body.call();
+            operations.record(operation, startNanos, false);
+            span.end(false);
+            return result;
         }
         catch(Exception e)
         {
-            throw new RentalAgreementException("Could not terminate Rental", e);
+            operations.record(operation, startNanos, true);
+            span.end(true);
+            throw failure.apply(e);
         }
     }
 }
@@ -23,24 +23,52 @@
 
 package se.kth.iv1351.bankjdbc.integration;
 
-import java.sql.Connection;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.sql.BatchUpdateException;
 import java.sql.Date;
-import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.time.LocalDate;
 import java.util.ArrayList;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
 
+import se.kth.iv1351.bankjdbc.metrics.OperationMetrics;
+import se.kth.iv1351.bankjdbc.metrics.OperationStats;
+import se.kth.iv1351.bankjdbc.model.AvailabilitySummary;
+import se.kth.iv1351.bankjdbc.model.BatchResult;
+import se.kth.iv1351.bankjdbc.model.ImportResult;
 import se.kth.iv1351.bankjdbc.model.Instrument;
 import se.kth.iv1351.bankjdbc.model.RentalAgreement;
+import se.kth.iv1351.bankjdbc.model.RentalAgreementDetails;
+import se.kth.iv1351.bankjdbc.model.RentalRequest;
 import se.kth.iv1351.bankjdbc.model.Student;
+import se.kth.iv1351.bankjdbc.tracing.Span;
+import se.kth.iv1351.bankjdbc.tracing.Tracer;
 
 /**
  * This data access object (DAO) encapsulates all database calls in the bank
  * application. No code outside this class shall have any knowledge about the
  * database.
+ *
+ * Every public method borrows its own connection from the connection pool and
+ * gives it back before returning, so the DAO can be used by many threads at once.
+ * Statements are prepared on a connection the first time they are used on it and
+ * stay prepared until the connection is closed, so they are never closed here.
+ * Methods that only read run as read-only units of work, without a transaction or
+ * a commit, and are spread over the read replicas if there are any. Methods that
+ * write run on the primary and commit once per business operation.
+ *
+ * A method that fails because the connection was lost, or because of a serialization
+ * failure or a deadlock, is run again on a new connection after a short pause, as
+ * decided by the <code>RetryPolicy</code>. Writes are only run again if they failed
+ * before they started to commit.
  */
 public class BankDAO {
 
@@ -50,9 +78,10 @@ public class BankDAO {
     private static final String INSTRUMENT_COLUMN_BRAND = "brand";
     private static final String INSTRUMENT_COLUMN_TYPE =  "type";
     private static final String INSTRUMENT_COLUMN_NUMBER_RENTED = "number_rented";
+    private static final String INSTRUMENT_COLUMN_FULL_STOCK = "full_stock";
 
     private static final String RENAL_TABLE_NAME = "rental_agreement_for_instrument";
-    private static final String RENTAL_COLUMN_ID = "rental_agreement_id";
+    private static final String RENTAL_COLUMN_ID = "id";
     private static final String RENTAL_COLUMN_STUDENT = "student_id";
     private static final String RENTAL_COLUMN_INSTRUMENT = "instrument_id";
     private static final String RENTAL_COLUMN_LENGTH = "length";
@@ -63,38 +92,333 @@ public class BankDAO {
     private static final String RENTAL_COLUMN_TERMINATED = "terminated";
 
 
+    /**
+     * An agreement is active until it is terminated. The table is partitioned by
+     * terminated, and the planner only skips the partition of terminated agreements if
+     * the predicate compares the column to a constant, so it must not be a parameter.
+     */
+    private static final String RENTAL_IS_ACTIVE = RENTAL_COLUMN_TERMINATED + " = false";
+
     private static final String STUDENT_TABLE_NAME = "student";
-    private static final String STUDENT_COLUMN_ID = "id";
+    private static final String STUDENT_COLUMN_ID = "student_id";
     private static final String STUDENT_COLUMN_NUMBER_RENTED = "number_of_instruments_rented";
 
-    private Connection connection;
-    
+    /**
+     * An instrument can be rented as long as some of its units are not rented out.
+     */
+    private static final String INSTRUMENT_IS_AVAILABLE = INSTRUMENT_COLUMN_NUMBER_RENTED + " < " + INSTRUMENT_COLUMN_FULL_STOCK;
+
+    private static final String LIST_INSTRUMENT_BY_TYPE_SQL = "SELECT " + INSTRUMENT_COLUMN_BRAND + ", " + INSTRUMENT_COLUMN_PRICE
+        + " FROM " + INSTRUMENT_TABLE_NAME + " WHERE " + INSTRUMENT_COLUMN_TYPE + " = ? AND " + INSTRUMENT_IS_AVAILABLE;
+
+    private static final String LIST_ALL_INSTRUMENTS_SQL = "SELECT " + INSTRUMENT_COLUMN_ID + ", " + INSTRUMENT_COLUMN_TYPE + ", " + INSTRUMENT_COLUMN_BRAND
+        + ", " + INSTRUMENT_COLUMN_PRICE + " FROM " + INSTRUMENT_TABLE_NAME + " WHERE " + INSTRUMENT_IS_AVAILABLE;
+
+    private static final String LIST_INSTRUMENTS_OF_TYPE_SQL = "SELECT " + INSTRUMENT_COLUMN_ID + ", " + INSTRUMENT_COLUMN_TYPE + ", " + INSTRUMENT_COLUMN_BRAND
+        + ", " + INSTRUMENT_COLUMN_PRICE + " FROM " + INSTRUMENT_TABLE_NAME + " WHERE " + INSTRUMENT_COLUMN_TYPE + " = ? AND " + INSTRUMENT_IS_AVAILABLE;
+
+    private static final String LIST_INSTRUMENTS_PAGE_SQL = LIST_ALL_INSTRUMENTS_SQL + " AND " + INSTRUMENT_COLUMN_ID + " > ? ORDER BY "
+        + INSTRUMENT_COLUMN_ID + " LIMIT ?";
+
+    private static final String LIST_INSTRUMENTS_OF_TYPE_PAGE_SQL = LIST_INSTRUMENTS_OF_TYPE_SQL + " AND " + INSTRUMENT_COLUMN_ID + " > ? ORDER BY "
+        + INSTRUMENT_COLUMN_ID + " LIMIT ?";
 
-    private PreparedStatement listInstrumentByTypeStmt;
-    private PreparedStatement listAllInstrumentsStmt;
+    private static final String LIST_INVENTORY_SQL = "SELECT " + INSTRUMENT_COLUMN_ID + ", " + INSTRUMENT_COLUMN_TYPE + ", " + INSTRUMENT_COLUMN_BRAND
+        + ", " + INSTRUMENT_COLUMN_NUMBER_RENTED + ", " + INSTRUMENT_COLUMN_FULL_STOCK + ", " + INSTRUMENT_COLUMN_PRICE + " FROM " + INSTRUMENT_TABLE_NAME
+        + " WHERE " + INSTRUMENT_COLUMN_ID + " > ? ORDER BY " + INSTRUMENT_COLUMN_ID;
 
-    private PreparedStatement findStudentByIdStmt;
-    private PreparedStatement rentInstrumentStmt;  
-    private PreparedStatement updateNrRentedForStudentStmt;
-    private PreparedStatement findInstrumentIdAndPriceStmt;
-    private PreparedStatement updateNrRentedForInstrumentStmt;
-    private PreparedStatement terminateRentalStmt;
-    private PreparedStatement listRentalsStmt;
-    private PreparedStatement findInstrumentByIdStmt;
-    private PreparedStatement findInstrumentsNumberRentedAndIdByIdStmt;
+    private static final String LIST_STOCK_SQL = "SELECT " + INSTRUMENT_COLUMN_ID + ", " + INSTRUMENT_COLUMN_NUMBER_RENTED + ", "
+        + INSTRUMENT_COLUMN_FULL_STOCK + ", " + INSTRUMENT_COLUMN_PRICE + " FROM " + INSTRUMENT_TABLE_NAME;
 
     /**
-     * Constructs a new DAO object connected to the bank database.
+     * The availability summary table is kept up to date by a trigger on the instrument table,
+     * see the V4 migration. Each type, brand and price is split over a few rows that are summed here.
+     */
+    private static final String SUMMARIZE_AVAILABILITY_SQL = "SELECT " + INSTRUMENT_COLUMN_TYPE + ", " + INSTRUMENT_COLUMN_BRAND
+        + ", sum(available_instruments), sum(free_units), min(" + INSTRUMENT_COLUMN_PRICE + "), max(" + INSTRUMENT_COLUMN_PRICE + ") FROM ("
+        + "SELECT " + INSTRUMENT_COLUMN_TYPE + ", " + INSTRUMENT_COLUMN_BRAND + ", " + INSTRUMENT_COLUMN_PRICE
+        + ", sum(available_instruments) AS available_instruments, sum(free_units) AS free_units FROM instrument_availability GROUP BY "
+        + INSTRUMENT_COLUMN_TYPE + ", " + INSTRUMENT_COLUMN_BRAND + ", " + INSTRUMENT_COLUMN_PRICE + " HAVING sum(available_instruments) > 0) p"
+        + " GROUP BY " + INSTRUMENT_COLUMN_TYPE + ", " + INSTRUMENT_COLUMN_BRAND + " ORDER BY " + INSTRUMENT_COLUMN_TYPE + ", " + INSTRUMENT_COLUMN_BRAND;
+
+    private static final String EXPLAIN_PREFIX = "EXPLAIN (ANALYZE, BUFFERS) ";
+
+    private static final String FIND_STUDENT_BY_ID_SQL = "SELECT " + STUDENT_COLUMN_ID + ", " + STUDENT_COLUMN_NUMBER_RENTED + " FROM "
+        + STUDENT_TABLE_NAME + " WHERE " + STUDENT_COLUMN_ID + " = ?";
+
+    /**
+     * A student can have at most two active rentals.
+     */
+    private static final int MAX_ACTIVE_RENTALS = 2;
+
+    private static final String STUDENT_MAY_RENT = "COALESCE(" + STUDENT_COLUMN_NUMBER_RENTED + ", 0) < " + MAX_ACTIVE_RENTALS;
+
+    /**
+     * Rents a unit of a free instrument in one statement. The student's rental count is
+     * increased, the instrument's rented count is increased and the agreement is inserted, all
+     * in one round trip. The student is only updated if a free instrument was found and the
+     * student has fewer than <code>MAX_ACTIVE_RENTALS</code> rentals, and the instrument is
+     * only updated if the student was, so no rows are returned and nothing changes if there
+     * is no free instrument, no such student or the student may not rent more. The student's
+     * row is locked by the update, so concurrent rentals for the same student can not pass
+     * the limit together. The picked instrument is locked and has a free unit, so the
+     * instrument update hits it whenever the student update hits the student.
+     *
+     * The instrument is first claimed with <code>SKIP LOCKED</code>, so concurrent rentals of
+     * the same type and brand each claim a different instrument instead of waiting for each
+     * other. Only if every free instrument is locked by another rental does the statement
+     * wait for one, because an instrument with several units in stock can serve that rental
+     * as well. The update only hits the instrument if it still has a free unit. A locking
+     * clause is not allowed directly in the parts of a <code>UNION</code>, so each part is
+     * a subquery of its own, and the second part only runs if the first found nothing.
+     *
+     * This version returns no rows, so that it can be batched. The update count is one if
+     * the instrument was rented and zero otherwise.
+     */
+    private static final String FIND_FREE_INSTRUMENT_SQL = "SELECT i." + INSTRUMENT_COLUMN_ID + " FROM " + INSTRUMENT_TABLE_NAME + " i, wanted w"
+        + " WHERE i." + INSTRUMENT_COLUMN_TYPE + " = w." + INSTRUMENT_COLUMN_TYPE + " AND i." + INSTRUMENT_COLUMN_BRAND + " = w." + INSTRUMENT_COLUMN_BRAND
+        + " AND " + INSTRUMENT_IS_AVAILABLE + " LIMIT 1 FOR NO KEY UPDATE OF i";
+
+    private static final String RENT_INSTRUMENT_BATCH_SQL = "WITH wanted AS (SELECT CAST(? AS VARCHAR) AS " + INSTRUMENT_COLUMN_TYPE
+        + ", CAST(? AS VARCHAR) AS " + INSTRUMENT_COLUMN_BRAND + "), "
+        + "picked AS (SELECT " + INSTRUMENT_COLUMN_ID + " FROM (" + FIND_FREE_INSTRUMENT_SQL + " SKIP LOCKED) unlocked"
+        + " UNION ALL SELECT " + INSTRUMENT_COLUMN_ID + " FROM (" + FIND_FREE_INSTRUMENT_SQL + ") locked LIMIT 1), "
+        + "renting_student AS (UPDATE " + STUDENT_TABLE_NAME + " SET " + STUDENT_COLUMN_NUMBER_RENTED + " = COALESCE(" + STUDENT_COLUMN_NUMBER_RENTED + ", 0) + 1"
+        + " WHERE " + STUDENT_COLUMN_ID + " = ? AND " + STUDENT_MAY_RENT + " AND EXISTS (SELECT 1 FROM picked) RETURNING " + STUDENT_COLUMN_ID + "), "
+        + "rented AS (UPDATE " + INSTRUMENT_TABLE_NAME + " SET " + INSTRUMENT_COLUMN_NUMBER_RENTED + " = " + INSTRUMENT_COLUMN_NUMBER_RENTED + " + 1"
+        + " WHERE " + INSTRUMENT_COLUMN_ID + " IN (SELECT " + INSTRUMENT_COLUMN_ID + " FROM picked) AND " + INSTRUMENT_IS_AVAILABLE
+        + " AND EXISTS (SELECT 1 FROM renting_student) RETURNING " + INSTRUMENT_COLUMN_ID + ", " + INSTRUMENT_COLUMN_PRICE + ") "
+        + "INSERT INTO " + RENAL_TABLE_NAME + " (" + RENTAL_COLUMN_STUDENT + ", " + RENTAL_COLUMN_INSTRUMENT + ", " + RENTAL_COLUMN_LENGTH + ", "
+        + RENTAL_COLUMN_START + ", " + RENTAL_COLUMN_END + ", " + RENTAL_COLUMN_E_PRICE + ", " + RENTAL_COLUMN_A_PRICE + ", " + RENTAL_COLUMN_TERMINATED + ")"
+        + " SELECT renting_student." + STUDENT_COLUMN_ID + ", rented." + INSTRUMENT_COLUMN_ID + ", ?, current_date, ?, rented." + INSTRUMENT_COLUMN_PRICE
+        + " * ?, null, false FROM rented, renting_student";
+
+    private static final String RENT_INSTRUMENT_SQL = RENT_INSTRUMENT_BATCH_SQL + " RETURNING " + RENTAL_COLUMN_INSTRUMENT;
+
+    private static final String LIST_RENTALS_SQL = "SELECT * FROM " + RENAL_TABLE_NAME + " WHERE " + RENTAL_COLUMN_STUDENT + " = ? AND "
+        + RENTAL_IS_ACTIVE;
+
+    private static final String LIST_RENTALS_WITH_INSTRUMENTS_SQL = "SELECT r.*, i." + INSTRUMENT_COLUMN_BRAND + ", i." + INSTRUMENT_COLUMN_TYPE
+        + " FROM " + RENAL_TABLE_NAME + " r JOIN " + INSTRUMENT_TABLE_NAME + " i ON i." + INSTRUMENT_COLUMN_ID + " = r." + RENTAL_COLUMN_INSTRUMENT
+        + " WHERE r." + RENTAL_COLUMN_STUDENT + " = ? AND r." + RENTAL_IS_ACTIVE;
+
+    private static final String FIND_INSTRUMENT_BY_ID_SQL = "SELECT " + INSTRUMENT_COLUMN_ID + ", " + INSTRUMENT_COLUMN_BRAND + ", "
+        + INSTRUMENT_COLUMN_TYPE + ", " + INSTRUMENT_COLUMN_PRICE + " FROM "
+        + INSTRUMENT_TABLE_NAME + " WHERE " + INSTRUMENT_COLUMN_ID + " = ?";
+
+    /**
+     * Every agreement with the name of its student and the type and brand of its instrument,
+     * ended by a <code>WHERE</code> clause on the start date or by nothing.
+     */
+    private static final String EXPORT_AGREEMENTS_QUERY = "SELECT r." + RENTAL_COLUMN_ID + ", r." + RENTAL_COLUMN_START + ", r." + RENTAL_COLUMN_END
+        + ", r." + RENTAL_COLUMN_LENGTH + ", r." + RENTAL_COLUMN_TERMINATED + ", r." + RENTAL_COLUMN_E_PRICE + ", r." + RENTAL_COLUMN_A_PRICE
+        + ", r." + RENTAL_COLUMN_STUDENT + ", s.first_name, s.last_name, r." + RENTAL_COLUMN_INSTRUMENT + ", i." + INSTRUMENT_COLUMN_TYPE
+        + ", i." + INSTRUMENT_COLUMN_BRAND + " FROM " + RENAL_TABLE_NAME + " r JOIN " + STUDENT_TABLE_NAME + " s ON s." + STUDENT_COLUMN_ID
+        + " = r." + RENTAL_COLUMN_STUDENT + " JOIN " + INSTRUMENT_TABLE_NAME + " i ON i." + INSTRUMENT_COLUMN_ID + " = r." + RENTAL_COLUMN_INSTRUMENT;
+
+    /**
+     * Terminates an agreement that is not already terminated and decreases the rental
+     * counts of its student and instrument. The update count is one if the agreement was
+     * terminated and zero otherwise.
+     */
+    private static final String TERMINATE_RENTAL_BATCH_SQL = "WITH ended AS (UPDATE " + RENAL_TABLE_NAME + " SET " + RENTAL_COLUMN_TERMINATED + " = true, "
+        + RENTAL_COLUMN_A_PRICE + " = ? WHERE " + RENTAL_COLUMN_ID + " = ? AND " + RENTAL_IS_ACTIVE
+        + " RETURNING " + RENTAL_COLUMN_STUDENT + ", " + RENTAL_COLUMN_INSTRUMENT + "), "
+        + "returning_student AS (UPDATE " + STUDENT_TABLE_NAME + " SET " + STUDENT_COLUMN_NUMBER_RENTED + " = " + STUDENT_COLUMN_NUMBER_RENTED + " - 1"
+        + " WHERE " + STUDENT_COLUMN_ID + " IN (SELECT " + RENTAL_COLUMN_STUDENT + " FROM ended) RETURNING " + STUDENT_COLUMN_ID + ") "
+        + "UPDATE " + INSTRUMENT_TABLE_NAME + " SET " + INSTRUMENT_COLUMN_NUMBER_RENTED + " = " + INSTRUMENT_COLUMN_NUMBER_RENTED + " - 1"
+        + " WHERE " + INSTRUMENT_COLUMN_ID + " IN (SELECT " + RENTAL_COLUMN_INSTRUMENT + " FROM ended)";
+
+    private static final String TERMINATE_RENTAL_SQL = TERMINATE_RENTAL_BATCH_SQL + " RETURNING " + INSTRUMENT_COLUMN_ID;
+
+    private static final int MAX_BATCH_SIZE = 500;
+    private static final int STREAM_FETCH_SIZE = 1000;
+
+    private final ConnectionRouter router;
+    private final RetryPolicy retryPolicy = new RetryPolicy();
+    private final BulkImporter importer = new BulkImporter();
+    private final OperationMetrics operations = new OperationMetrics("dao");
+    private final RentalPartitionMaintenance partitions;
+    private final long startupNanos;
+
+    /**
+     * Constructs a new DAO object connected to the bank database, using the
+     * connection settings found in the system properties.
      */
     public BankDAO() throws BankDBException {
+        this(PoolConfig.fromSystemProperties());
+    }
+
+    /**
+     * Constructs a new DAO object connected to the bank database. Pending schema
+     * migrations are applied unless this is turned off in the configuration, and then
+     * the partitions of the rental agreements are kept up to date while the DAO is open.
+     *
+     * @param poolConfig The database url, credentials, connection pool size and read replicas.
+     */
+    public BankDAO(PoolConfig poolConfig) throws BankDBException {
+        long start = System.nanoTime();
         try {
-            connectToBankDB();
-            prepareStatements();
-        } catch (ClassNotFoundException | SQLException exception) {
+            router = new ConnectionRouter(poolConfig);
+        } catch (SQLException exception) {
             throw new BankDBException("Could not connect to datasource.", exception);
         }
+        if (poolConfig.isMigrateOnStartup()) {
+            try {
+                new SchemaMigrator(router.primary()).migrate();
+            } catch (BankDBException exception) {
+                router.close();
+                throw exception;
+            }
+            partitions = new RentalPartitionMaintenance(router.primary());
+            try {
+                partitions.start();
+            } catch (BankDBException exception) {
+                router.close();
+                throw exception;
+            }
+        } else {
+            partitions = null;
+        }
+        startupNanos = System.nanoTime() - start;
+    }
+
+    /**
+     * @return A snapshot of the counters of the primary's connection pool.
+     */
+    public PoolMetrics getPoolMetrics()
+    {
+        return router.primary().getMetrics();
+    }
+
+    /**
+     * @return A snapshot of the prepared statement counters of the primary's connection pool.
+     */
+    public StatementMetrics getStatementMetrics()
+    {
+        return router.primary().getStatementMetrics();
+    }
+
+    /**
+     * @return How often each statement has run, how many rows it read or wrote and how long
+     *         it took, measured by the client, the statement that took the most time first.
+     *         Statements run on the primary and on replicas are counted together.
+     */
+    public List<StatementProfile> getStatementProfiles()
+    {
+        return router.profiler().getProfiles();
+    }
+
+    /**
+     * Starts counting the executions of all statements from zero again.
+     */
+    public void resetStatementProfiles()
+    {
+        router.profiler().reset();
+    }
+
+    /**
+     * Explains the plan of a statement that has run, by running it again under
+     * <code>EXPLAIN (ANALYZE, BUFFERS)</code> with the parameters of its slowest execution.
+     * The statement runs on the primary in a transaction that is always rolled back, so a
+     * statement that writes changes nothing, but it does take the same locks while it runs
+     * @param sql The statement, as returned by <code>StatementProfile.getSql()</code>
+     * @return The lines of the plan, with the time and buffers of each node
+     * @throws BankDBException If the statement has not run since the profiles were reset,
+     *                         or could not be explained
+     */
+    public List<String> explainStatement(String sql) throws BankDBException
+    {
+        return instrumented("explainStatement", () -> {
+            String failureMsg = "Could not explain the statement";
+            Object[] parameters = router.profiler().getSlowestParameters(sql);
+            if(parameters == null)
+            {
+                handleException(failureMsg + ", it has not run since the profiles were reset", null, null);
+            }
+            for(int attempt = 1; ; attempt++)
+            {
+                retryPolicy.pause(attempt);
+                UnitOfWork work = null;
+                PreparedStatement explainStmt = null;
+                ResultSet result = null;
+                List<String> plan = new ArrayList<>();
+                try
+                {
+                    work = UnitOfWork.readWrite(router);
+                    explainStmt = work.prepareOnce(EXPLAIN_PREFIX + sql);
+                    for(int i = 0; i < parameters.length; i++)
+                    {
+                        explainStmt.setObject(i + 1, parameters[i]);
+                    }
+                    result = explainStmt.executeQuery();
+                    while(result.next())
+                    {
+                        plan.add(result.getString(1));
+                    }
+                    work.rollback();
+                }
+                catch(SQLException sqlE)
+                {
+                    if(retryPolicy.shouldRetry(sqlE, attempt, work, true))
+                        continue;
+                    handleException(failureMsg, sqlE, work);
+                }
+                finally
+                {
+                    closeResultSet(result);
+                    closeStatement(explainStmt);
+                    UnitOfWork.end(work);
+                }
+                return plan;
+            }
+        });
+    }
+
+    /**
+     * @return The number of calls, failures and latency percentiles of each public method,
+     *         retries included.
+     */
+    public List<OperationStats> getOperationStats()
+    {
+        return operations.getStats();
     }
 
+    /**
+     * @return How often calls have been retried after transient failures.
+     */
+    public RetryMetrics getRetryMetrics()
+    {
+        return retryPolicy.getMetrics();
+    }
+
+    /**
+     * @return The number of scheduled runs of the rental partition maintenance that have failed,
+     *         0 if the maintenance is turned off.
+     */
+    public long getPartitionMaintenanceFailures()
+    {
+        return partitions == null ? 0 : partitions.getFailures();
+    }
+
+    /**
+     * @return How long it took to open the connection pools and migrate the schema, in milliseconds.
+     *         No statements are prepared at startup, each is prepared the first time it is used.
+     */
+    public double getStartupMillis()
+    {
+        return startupNanos / 1_000_000.0;
+    }
+
+    /**
+     * Closes all database connections. The DAO can not be used after this method has been called.
+     */
+    public void close()
+    {
+        if(partitions != null)
+            partitions.close();
+        router.close();
+    }
 
     /**
      * Retrieves all instruments with the right type and that are not already rented out
@@ -103,29 +427,41 @@ public class BankDAO {
      */
     public List<Instrument> listInstruments(String typeOfInstrument) throws BankDBException
     {
-        String failureMsg = "Could not search for specified instruments";
-        ResultSet result = null;
-        List<Instrument> instruments = new ArrayList<>();
-        try
-        {
-            listInstrumentByTypeStmt.setString(1, typeOfInstrument);
-            result = listInstrumentByTypeStmt.executeQuery();
-            while(result.next())
+        return instrumented("listInstruments", () -> {
+            String failureMsg = "Could not search for specified instruments";
+            for(int attempt = 1; ; attempt++)
             {
-                instruments.add(new Instrument(result.getString(INSTRUMENT_COLUMN_BRAND), 
-                                               result.getDouble(INSTRUMENT_COLUMN_PRICE)));
+                retryPolicy.pause(attempt);
+                UnitOfWork work = null;
+                PreparedStatement listInstrumentByTypeStmt = null;
+                ResultSet result = null;
+                List<Instrument> instruments = new ArrayList<>();
+                try
+                {
+                    work = UnitOfWork.readOnly(router);
+                    listInstrumentByTypeStmt = work.prepareStatement(LIST_INSTRUMENT_BY_TYPE_SQL);
+                    listInstrumentByTypeStmt.setString(1, typeOfInstrument);
+                    result = listInstrumentByTypeStmt.executeQuery();
+                    while(result.next())
+                    {
+                        instruments.add(new Instrument(result.getString(INSTRUMENT_COLUMN_BRAND),
+                                                       result.getDouble(INSTRUMENT_COLUMN_PRICE)));
+                    }
+                }
+                catch(SQLException sqlE)
+                {
+                    if(retryPolicy.shouldRetry(sqlE, attempt, work, true))
+                        continue;
+                    handleException(failureMsg, sqlE, work);
+                }
+                finally
+                {
+                    closeResultSet(result);
+                    UnitOfWork.end(work);
+                }
+                return instruments;
             }
-            connection.commit();
-        }
-        catch(SQLException sqlE)
-        {
-            handleException(failureMsg, sqlE);
-        }
-        finally
-        {
-            closeResultSet(failureMsg, result);
-        }
-        return instruments;
+        });
     }
 
     /**
@@ -135,62 +471,389 @@ public class BankDAO {
      */
     public List<Instrument> listAllInstruments() throws BankDBException
     {
-        String failureMsg = "Could not list instruments";
-        ResultSet result = null;
-        List<Instrument> instruments = new ArrayList<>();
-        try
-        {
-            result = listAllInstrumentsStmt.executeQuery();
-            while(result.next())
+        return instrumented("listAllInstruments", () -> {
+            String failureMsg = "Could not list instruments";
+            for(int attempt = 1; ; attempt++)
             {
-                instruments.add(new Instrument(result.getString(INSTRUMENT_COLUMN_BRAND), 
-                                               result.getDouble(INSTRUMENT_COLUMN_PRICE), 
-                                               result.getString(INSTRUMENT_COLUMN_TYPE)));
+                retryPolicy.pause(attempt);
+                UnitOfWork work = null;
+                PreparedStatement listAllInstrumentsStmt = null;
+                ResultSet result = null;
+                List<Instrument> instruments = new ArrayList<>();
+                try
+                {
+                    work = UnitOfWork.readOnly(router);
+                    listAllInstrumentsStmt = work.prepareStatement(LIST_ALL_INSTRUMENTS_SQL);
+                    result = listAllInstrumentsStmt.executeQuery();
+                    while(result.next())
+                    {
+                        instruments.add(readInstrument(result));
+                    }
+                }
+                catch(SQLException sqlE)
+                {
+                    if(retryPolicy.shouldRetry(sqlE, attempt, work, true))
+                        continue;
+                    handleException(failureMsg, sqlE, work);
+                }
+                finally
+                {
+                    closeResultSet(result);
+                    UnitOfWork.end(work);
+                }
+                return instruments;
             }
-            connection.commit();
-        }
-        catch(SQLException sqlE)
-        {
-            handleException(failureMsg, sqlE);
-        }
-        finally
-        {
-            closeResultSet(failureMsg, result);
-        }
-        return instruments;
+        });
+    }
+
+    /**
+     * Retrieves one page of the instruments that are not rented out, ordered by id. The next
+     * page starts after the last id of this page, so pages stay correct while instruments are
+     * rented and returned, and each page costs the same no matter how far into the catalog it is
+     * @param typeOfInstrument The type of the instruments, or <code>null</code> for all types
+     * @param afterId Only instruments with a larger id are listed, 0 for the first page
+     * @param pageSize The largest number of instruments in the page
+     * @return The instruments in the page, fewer than the page size if it is the last page
+     * @throws BankDBException If failed to search for instruments
+     */
+    public List<Instrument> listInstrumentsPage(String typeOfInstrument, int afterId, int pageSize) throws BankDBException
+    {
+        return instrumented("listInstrumentsPage", () -> {
+            String failureMsg = "Could not list instruments";
+            for(int attempt = 1; ; attempt++)
+            {
+                retryPolicy.pause(attempt);
+                UnitOfWork work = null;
+                PreparedStatement listInstrumentsPageStmt = null;
+                ResultSet result = null;
+                List<Instrument> instruments = new ArrayList<>();
+                try
+                {
+                    work = UnitOfWork.readOnly(router);
+                    int parameterIndex = 1;
+                    if(typeOfInstrument == null)
+                    {
+                        listInstrumentsPageStmt = work.prepareStatement(LIST_INSTRUMENTS_PAGE_SQL);
+                    }
+                    else
+                    {
+                        listInstrumentsPageStmt = work.prepareStatement(LIST_INSTRUMENTS_OF_TYPE_PAGE_SQL);
+                        listInstrumentsPageStmt.setString(parameterIndex++, typeOfInstrument);
+                    }
+                    listInstrumentsPageStmt.setInt(parameterIndex++, afterId);
+                    listInstrumentsPageStmt.setInt(parameterIndex, pageSize);
+                    result = listInstrumentsPageStmt.executeQuery();
+                    while(result.next())
+                    {
+                        instruments.add(readInstrument(result));
+                    }
+                }
+                catch(SQLException sqlE)
+                {
+                    if(retryPolicy.shouldRetry(sqlE, attempt, work, true))
+                        continue;
+                    handleException(failureMsg, sqlE, work);
+                }
+                finally
+                {
+                    closeResultSet(result);
+                    UnitOfWork.end(work);
+                }
+                return instruments;
+            }
+        });
+    }
+
+    /**
+     * Reads the instruments that are not rented out and passes them to the callback one at a
+     * time, as they arrive from the database. Only a small number of rows is held in memory
+     * at once, however large the catalog is
+     * @param typeOfInstrument The type of the instruments, or <code>null</code> for all types
+     * @param callback Called with each instrument, reading stops when it returns <code>false</code>
+     * @throws BankDBException If failed to search for instruments
+     */
+    public void streamInstruments(String typeOfInstrument, Predicate<Instrument> callback) throws BankDBException
+    {
+        instrumented("streamInstruments", () -> {
+            String failureMsg = "Could not list instruments";
+            for(int attempt = 1; ; attempt++)
+            {
+                retryPolicy.pause(attempt);
+                UnitOfWork work = null;
+                PreparedStatement streamInstrumentsStmt = null;
+                ResultSet result = null;
+                boolean delivered = false;
+                try
+                {
+                    work = UnitOfWork.readOnly(router);
+                    if(typeOfInstrument == null)
+                    {
+                        streamInstrumentsStmt = work.prepareCursor(LIST_ALL_INSTRUMENTS_SQL, STREAM_FETCH_SIZE);
+                    }
+                    else
+                    {
+                        streamInstrumentsStmt = work.prepareCursor(LIST_INSTRUMENTS_OF_TYPE_SQL, STREAM_FETCH_SIZE);
+                        streamInstrumentsStmt.setString(1, typeOfInstrument);
+                    }
+                    result = streamInstrumentsStmt.executeQuery();
+                    while(result.next())
+                    {
+                        delivered = true;
+                        if(!callback.test(readInstrument(result)))
+                            break;
+                    }
+                }
+                catch(SQLException sqlE)
+                {
+                    if(retryPolicy.shouldRetry(sqlE, attempt, work, !delivered))
+                        continue;
+                    handleException(failureMsg, sqlE, work);
+                }
+                finally
+                {
+                    closeResultSet(result);
+                    UnitOfWork.end(work);
+                }
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Reads every instrument, rented or not, in id order, and passes its columns to the handler
+     * without creating an object per instrument. Used to build an <code>InventorySnapshot</code>.
+     * If the connection is lost, reading continues after the last instrument that was handled
+     * @param afterId Only instruments with a larger id are read, 0 for all instruments
+     * @param handler Called with each instrument, reading stops when it returns <code>false</code>
+     * @throws BankDBException If failed to read the instruments
+     */
+    public void streamInventory(int afterId, InventorySnapshot.RowHandler handler) throws BankDBException
+    {
+        instrumented("streamInventory", () -> {
+            String failureMsg = "Could not read the inventory";
+            int lastId = afterId;
+            for(int attempt = 1; ; attempt++)
+            {
+                retryPolicy.pause(attempt);
+                UnitOfWork work = null;
+                PreparedStatement listInventoryStmt = null;
+                ResultSet result = null;
+                try
+                {
+                    work = UnitOfWork.readOnly(router);
+                    listInventoryStmt = work.prepareCursor(LIST_INVENTORY_SQL, STREAM_FETCH_SIZE);
+                    listInventoryStmt.setInt(1, lastId);
+                    result = listInventoryStmt.executeQuery();
+                    while(result.next())
+                    {
+                        int id = result.getInt(1);
+                        if(!handler.handle(id, result.getString(2), result.getString(3), result.getInt(4), result.getInt(5),
+                                           result.getDouble(6)))
+                            break;
+                        lastId = id;
+                    }
+                }
+                catch(SQLException sqlE)
+                {
+                    if(retryPolicy.shouldRetry(sqlE, attempt, work, true))
+                        continue;
+                    handleException(failureMsg, sqlE, work);
+                }
+                finally
+                {
+                    closeResultSet(result);
+                    UnitOfWork.end(work);
+                }
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Reads the number of rented units, the full stock and the price of every instrument and
+     * passes them to the handler, without reading the type and brand
+     * @param handler Called with the id, rented count, stock and price of each instrument
+     * @throws BankDBException If failed to read the stock
+     */
+    public void streamStock(InventorySnapshot.StockHandler handler) throws BankDBException
+    {
+        instrumented("streamStock", () -> {
+            String failureMsg = "Could not read the stock";
+            for(int attempt = 1; ; attempt++)
+            {
+                retryPolicy.pause(attempt);
+                UnitOfWork work = null;
+                PreparedStatement listStockStmt = null;
+                ResultSet result = null;
+                try
+                {
+                    work = UnitOfWork.readOnly(router);
+                    listStockStmt = work.prepareCursor(LIST_STOCK_SQL, STREAM_FETCH_SIZE);
+                    result = listStockStmt.executeQuery();
+                    while(result.next())
+                    {
+                        handler.handle(result.getInt(1), result.getInt(2), result.getInt(3), result.getDouble(4));
+                    }
+                }
+                catch(SQLException sqlE)
+                {
+                    if(retryPolicy.shouldRetry(sqlE, attempt, work, true))
+                        continue;
+                    handleException(failureMsg, sqlE, work);
+                }
+                finally
+                {
+                    closeResultSet(result);
+                    UnitOfWork.end(work);
+                }
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Counts the available instruments and free units of each type and brand, and finds their
+     * price range. The counts are read from the summary table, so the cost grows with the number
+     * of types and brands, not with the number of instruments
+     * @return One summary for each type and brand with at least one available instrument,
+     *         ordered by type and brand
+     * @throws BankDBException If failed to read the summary
+     */
+    public List<AvailabilitySummary> summarizeAvailability() throws BankDBException
+    {
+        return instrumented("summarizeAvailability", () -> {
+            String failureMsg = "Could not summarize the available instruments";
+            for(int attempt = 1; ; attempt++)
+            {
+                retryPolicy.pause(attempt);
+                UnitOfWork work = null;
+                PreparedStatement summarizeAvailabilityStmt = null;
+                ResultSet result = null;
+                List<AvailabilitySummary> summaries = new ArrayList<>();
+                try
+                {
+                    work = UnitOfWork.readOnly(router);
+                    summarizeAvailabilityStmt = work.prepareStatement(SUMMARIZE_AVAILABILITY_SQL);
+                    result = summarizeAvailabilityStmt.executeQuery();
+                    while(result.next())
+                    {
+                        summaries.add(new AvailabilitySummary(result.getString(1), result.getString(2), result.getInt(3),
+                                                              result.getLong(4), result.getDouble(5), result.getDouble(6)));
+                    }
+                }
+                catch(SQLException sqlE)
+                {
+                    if(retryPolicy.shouldRetry(sqlE, attempt, work, true))
+                        continue;
+                    handleException(failureMsg, sqlE, work);
+                }
+                finally
+                {
+                    closeResultSet(result);
+                    UnitOfWork.end(work);
+                }
+                return summaries;
+            }
+        });
     }
 
     public List<RentalAgreement> listAgreements(int studentId) throws BankDBException
     {
-        String failureMsg = "Could not list agreements";
-        ResultSet result = null;
-        List<RentalAgreement> rentalAgreements = new ArrayList<>();
-        try
-        {
-            listRentalsStmt.setInt(1, studentId);
-            result = listRentalsStmt.executeQuery();
-            while(result.next())
+        return instrumented("listAgreements", () -> {
+            String failureMsg = "Could not list agreements";
+            for(int attempt = 1; ; attempt++)
             {
-                rentalAgreements.add(new RentalAgreement(result.getInt(RENTAL_COLUMN_ID),
-                                                        result.getInt(RENTAL_COLUMN_STUDENT),
-                                                        result.getInt(RENTAL_COLUMN_INSTRUMENT),
-                                                        result.getDate(RENTAL_COLUMN_START),
-                                                        result.getDate(RENTAL_COLUMN_END),
-                                                        result.getBoolean(RENTAL_COLUMN_TERMINATED),
-                                                        result.getInt(RENTAL_COLUMN_LENGTH),
-                                                        result.getDouble(RENTAL_COLUMN_E_PRICE)));
-            }
-            connection.commit();
-        }
-        catch(SQLException sqlE)
-        {
-            handleException(failureMsg, sqlE);
-        }
-        finally
-        {
-            closeResultSet(failureMsg, result);
-        }
-        return rentalAgreements;
+                retryPolicy.pause(attempt);
+                UnitOfWork work = null;
+                PreparedStatement listRentalsStmt = null;
+                ResultSet result = null;
+                List<RentalAgreement> rentalAgreements = new ArrayList<>();
+                try
+                {
+                    work = UnitOfWork.readOnly(router);
+                    listRentalsStmt = work.prepareStatement(LIST_RENTALS_SQL);
+                    listRentalsStmt.setInt(1, studentId);
+                    result = listRentalsStmt.executeQuery();
+                    while(result.next())
+                    {
+                        rentalAgreements.add(new RentalAgreement(result.getInt(RENTAL_COLUMN_ID),
+                                                                result.getInt(RENTAL_COLUMN_STUDENT),
+                                                                result.getInt(RENTAL_COLUMN_INSTRUMENT),
+                                                                result.getDate(RENTAL_COLUMN_START),
+                                                                result.getDate(RENTAL_COLUMN_END),
+                                                                result.getBoolean(RENTAL_COLUMN_TERMINATED),
+                                                                result.getInt(RENTAL_COLUMN_LENGTH),
+                                                                result.getDouble(RENTAL_COLUMN_E_PRICE)));
+                    }
+                }
+                catch(SQLException sqlE)
+                {
+                    if(retryPolicy.shouldRetry(sqlE, attempt, work, true))
+                        continue;
+                    handleException(failureMsg, sqlE, work);
+                }
+                finally
+                {
+                    closeResultSet(result);
+                    UnitOfWork.end(work);
+                }
+                return rentalAgreements;
+            }
+        });
+    }
+
+    /**
+     * Lists the active rental agreements of a student together with the brand and type of each
+     * rented instrument, using one query instead of one query per agreement
+     * @param studentId The id of the student
+     * @return The student's active agreements
+     * @throws BankDBException If failed to list the agreements
+     */
+    public List<RentalAgreementDetails> listAgreementsWithInstruments(int studentId) throws BankDBException
+    {
+        return instrumented("listAgreementsWithInstruments", () -> {
+            String failureMsg = "Could not list agreements";
+            for(int attempt = 1; ; attempt++)
+            {
+                retryPolicy.pause(attempt);
+                UnitOfWork work = null;
+                PreparedStatement listRentalsWithInstrumentsStmt = null;
+                ResultSet result = null;
+                List<RentalAgreementDetails> rentalAgreements = new ArrayList<>();
+                try
+                {
+                    work = UnitOfWork.readOnly(router);
+                    listRentalsWithInstrumentsStmt = work.prepareStatement(LIST_RENTALS_WITH_INSTRUMENTS_SQL);
+                    listRentalsWithInstrumentsStmt.setInt(1, studentId);
+                    result = listRentalsWithInstrumentsStmt.executeQuery();
+                    while(result.next())
+                    {
+                        rentalAgreements.add(new RentalAgreementDetails(result.getInt(RENTAL_COLUMN_ID),
+                                                                        result.getInt(RENTAL_COLUMN_STUDENT),
+                                                                        result.getInt(RENTAL_COLUMN_INSTRUMENT),
+                                                                        result.getDate(RENTAL_COLUMN_START),
+                                                                        result.getDate(RENTAL_COLUMN_END),
+                                                                        result.getBoolean(RENTAL_COLUMN_TERMINATED),
+                                                                        result.getInt(RENTAL_COLUMN_LENGTH),
+                                                                        result.getDouble(RENTAL_COLUMN_E_PRICE),
+                                                                        result.getString(INSTRUMENT_COLUMN_BRAND),
+                                                                        result.getString(INSTRUMENT_COLUMN_TYPE)));
+                    }
+                }
+                catch(SQLException sqlE)
+                {
+                    if(retryPolicy.shouldRetry(sqlE, attempt, work, true))
+                        continue;
+                    handleException(failureMsg, sqlE, work);
+                }
+                finally
+                {
+                    closeResultSet(result);
+                    UnitOfWork.end(work);
+                }
+                return rentalAgreements;
+            }
+        });
     }
 
     /**
@@ -201,26 +864,38 @@ public class BankDAO {
      */
     public Student findStudent(int id) throws BankDBException
     {
-        String failureMsg = "Could not search for student";
-        ResultSet result = null;
-        Student student = null;
-        try
-        {
-            findStudentByIdStmt.setInt(1, id);
-            result = findStudentByIdStmt.executeQuery();
-            if(result.next())
-                student = new Student(result.getInt(STUDENT_COLUMN_ID), result.getInt(STUDENT_COLUMN_NUMBER_RENTED));
-            connection.commit();
-        }
-        catch(SQLException sqlE)
-        {
-            handleException(failureMsg, sqlE);
-        }
-        finally
-        {
-            closeResultSet(failureMsg, result);
-        }
-        return student;
+        return instrumented("findStudent", () -> {
+            String failureMsg = "Could not search for student";
+            for(int attempt = 1; ; attempt++)
+            {
+                retryPolicy.pause(attempt);
+                UnitOfWork work = null;
+                PreparedStatement findStudentByIdStmt = null;
+                ResultSet result = null;
+                Student student = null;
+                try
+                {
+                    work = UnitOfWork.readOnly(router);
+                    findStudentByIdStmt = work.prepareStatement(FIND_STUDENT_BY_ID_SQL);
+                    findStudentByIdStmt.setInt(1, id);
+                    result = findStudentByIdStmt.executeQuery();
+                    if(result.next())
+                        student = new Student(result.getInt(STUDENT_COLUMN_ID), result.getInt(STUDENT_COLUMN_NUMBER_RENTED));
+                }
+                catch(SQLException sqlE)
+                {
+                    if(retryPolicy.shouldRetry(sqlE, attempt, work, true))
+                        continue;
+                    handleException(failureMsg, sqlE, work);
+                }
+                finally
+                {
+                    closeResultSet(result);
+                    UnitOfWork.end(work);
+                }
+                return student;
+            }
+        });
     }
 
     /**
@@ -231,255 +906,535 @@ public class BankDAO {
      */
     public Instrument findInstrument(int instrumentId) throws BankDBException
     {
-        String failureMsg = "Could not find instrument";
-        ResultSet result = null;
-        Instrument instrument = null;
-        try
-        {
-            findInstrumentByIdStmt.setInt(1, instrumentId);
-            result = findInstrumentByIdStmt.executeQuery();
-            if(result.next())
-                instrument = new Instrument(result.getString(INSTRUMENT_COLUMN_TYPE), result.getString(INSTRUMENT_COLUMN_BRAND));
-            connection.commit();
-        }
-        catch(SQLException sqlE)
-        {
-            handleException(failureMsg, sqlE);
-        }
-        finally
-        {
-            closeResultSet(failureMsg, result);
-        }
-        return instrument;
+        return instrumented("findInstrument", () -> {
+            String failureMsg = "Could not find instrument";
+            for(int attempt = 1; ; attempt++)
+            {
+                retryPolicy.pause(attempt);
+                UnitOfWork work = null;
+                PreparedStatement findInstrumentByIdStmt = null;
+                ResultSet result = null;
+                Instrument instrument = null;
+                try
+                {
+                    work = UnitOfWork.readOnly(router);
+                    findInstrumentByIdStmt = work.prepareStatement(FIND_INSTRUMENT_BY_ID_SQL);
+                    findInstrumentByIdStmt.setInt(1, instrumentId);
+                    result = findInstrumentByIdStmt.executeQuery();
+                    if(result.next())
+                        instrument = readInstrument(result);
+                }
+                catch(SQLException sqlE)
+                {
+                    if(retryPolicy.shouldRetry(sqlE, attempt, work, true))
+                        continue;
+                    handleException(failureMsg, sqlE, work);
+                }
+                finally
+                {
+                    closeResultSet(result);
+                    UnitOfWork.end(work);
+                }
+                return instrument;
+            }
+        });
     }
 
-    private void updateNrRentedForStudent(Student student) throws BankDBException
+    /**
+     * Creates an rental Agreement for the specified length corresponding to the student specified for the instrument matching the type and brand specified.
+     * The whole rental is one statement and one commit, either everything is stored or nothing is.
+     * @param brand The brand of the instrument specified by the student
+     * @param type The type of instrument specified by the student
+     * @param student The specified student, its number of rented instruments is incremented if the rental succeeds
+     * @param length The specified length
+     * @return The id of the rented instrument
+     * @throws BankDBException If such an agreement cannot be created
+     */
+    public int rentInstrument(String brand, String type, Student student, int length) throws BankDBException
     {
-        int updatedRows;
-        String failureMsg  = "Could not update the number of rented instruments for student";
-        try
-        {
-            updateNrRentedForStudentStmt.setInt(1, student.getNrRented());
-            updateNrRentedForStudentStmt.setInt(2, student.getId());
-            updatedRows = updateNrRentedForStudentStmt.executeUpdate();
-            if(updatedRows != 1)
-                handleException(failureMsg, null);
-            connection.commit();
-        }
-        catch (SQLException sqlE)
-        {
-            handleException(failureMsg, sqlE);
-        }
+        return instrumented("rentInstrument", () -> {
+            String failureMsg  = "Could not create rental Agreement";
+            for(int attempt = 1; ; attempt++)
+            {
+                retryPolicy.pause(attempt);
+                UnitOfWork work = null;
+                PreparedStatement rentInstrumentStmt = null;
+                ResultSet result = null;
+                int instrumentId = 0;
+                Date endDate = Date.valueOf(LocalDate.now().plusMonths(length));
+                try
+                {
+                    work = UnitOfWork.readWrite(router);
+                    rentInstrumentStmt = work.prepareStatement(RENT_INSTRUMENT_SQL);
+                    rentInstrumentStmt.setString(1, type);
+                    rentInstrumentStmt.setString(2, brand);
+                    rentInstrumentStmt.setInt(3, student.getId());
+                    rentInstrumentStmt.setInt(4, length);
+                    rentInstrumentStmt.setDate(5, endDate);
+                    rentInstrumentStmt.setInt(6, length);
+                    result = rentInstrumentStmt.executeQuery();
+                    if(!result.next())
+                    {
+                        handleException(failureMsg + ", there is no free " + brand + " " + type + ", no such student or the student already rents "
+                                    + MAX_ACTIVE_RENTALS + " instruments", null, work);
+                    }
+                    instrumentId = result.getInt(RENTAL_COLUMN_INSTRUMENT);
+                    work.commit();
+                    student.incrementNrRented();
+                }
+                catch(SQLException sqlE)
+                {
+                    if(retryPolicy.shouldRetry(sqlE, attempt, work, true))
+                        continue;
+                    handleException(failureMsg, sqlE, work);
+                }
+                finally
+                {
+                    closeResultSet(result);
+                    UnitOfWork.end(work);
+                }
+                return instrumentId;
+            }
+        });
     }
 
-    private void updateNrRentedForInstrument(Instrument instrument) throws BankDBException
+    /**
+     * Terminates the specified rental agreement. The agreement is marked as terminated and
+     * the rental counts of the student and the instrument are decreased in one statement,
+     * so the counts can not be overwritten by a concurrent rental.
+     * @param rentalAgreement The agreement to terminate, it is marked as terminated if the termination succeeds
+     * @throws BankDBException If the agreement could not be terminated, for example because it is already terminated
+     */
+    public void terminateRental(RentalAgreement rentalAgreement) throws BankDBException
     {
-        int updatedRows;
-        String failureMsg = "Could not update number of rented for instrument";
-        try
+        instrumented("terminateRental", () -> {
+            String failureMsg = "Could not terminate rental agreement";
+            for(int attempt = 1; ; attempt++)
+            {
+                retryPolicy.pause(attempt);
+                UnitOfWork work = null;
+                PreparedStatement terminateRentalStmt = null;
+                ResultSet result = null;
+                double actualPrice = calculateActualPrice(rentalAgreement);
+                try
+                {
+                    work = UnitOfWork.readWrite(router);
+                    terminateRentalStmt = work.prepareStatement(TERMINATE_RENTAL_SQL);
+                    terminateRentalStmt.setDouble(1, actualPrice);
+                    terminateRentalStmt.setInt(2, rentalAgreement.getRentalId());
+                    result = terminateRentalStmt.executeQuery();
+                    if(!result.next())
+                    {
+                        handleException(failureMsg + ", it does not exist or is already terminated", null, work);
+                    }
+                    work.commit();
+                    rentalAgreement.setActualPrice(actualPrice);
+                    rentalAgreement.setTerminated();
+                }
+                catch(SQLException sqlE)
+                {
+                    if(retryPolicy.shouldRetry(sqlE, attempt, work, true))
+                        continue;
+                    handleException(failureMsg, sqlE, work);
+                }
+                finally
+                {
+                    closeResultSet(result);
+                    UnitOfWork.end(work);
+                }
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Creates rental agreements for all the specified requests. The requests are sent to the
+     * database in batches, and each batch is committed once. If a batch fails, its requests
+     * are retried one by one, so that only the requests that can not be fulfilled fail.
+     * If the database can no longer be reached after some batches were committed, the
+     * requests that were not committed fail and the results of the committed ones are returned.
+     * @param requests The rentals to create
+     * @return One result per request, in the same order as the requests
+     * @throws BankDBException If the database could not be reached before any batch was committed
+     */
+    public List<BatchResult<RentalRequest>> rentInstruments(List<RentalRequest> requests) throws BankDBException
+    {
+        String failureMsg = "Could not create rental agreements";
+        String notRentedMsg = "There is no free instrument of the requested type and brand, no such student or the student "
+                              + "already rents " + MAX_ACTIVE_RENTALS + " instruments";
+        return executeInBatches("rentInstruments", RENT_INSTRUMENT_BATCH_SQL, requests, this::setRentalParameters, notRentedMsg,
+                                failureMsg);
+    }
+
+    /**
+     * Terminates all the specified rental agreements. The terminations are sent to the database
+     * in batches, and each batch is committed once. If a batch fails, its agreements are retried
+     * one by one, so that only the agreements that can not be terminated fail. If the database
+     * can no longer be reached after some batches were committed, the agreements that were not
+     * committed fail and the results of the committed ones are returned.
+     * @param rentalAgreements The agreements to terminate, each successfully terminated agreement is marked as terminated
+     * @return One result per agreement, in the same order as the agreements
+     * @throws BankDBException If the database could not be reached before any batch was committed
+     */
+    public List<BatchResult<RentalAgreement>> terminateRentals(List<RentalAgreement> rentalAgreements) throws BankDBException
+    {
+        String failureMsg = "Could not terminate rental agreements";
+        String notTerminatedMsg = "The agreement does not exist or is already terminated";
+        Map<RentalAgreement, Double> actualPrices = new IdentityHashMap<>();
+        for(RentalAgreement rentalAgreement : rentalAgreements)
         {
-            updateNrRentedForInstrumentStmt.setInt(1, instrument.getNumberRented());
-            updateNrRentedForInstrumentStmt.setInt(2, instrument.getId());
-            updatedRows = updateNrRentedForInstrumentStmt.executeUpdate();
-            if(updatedRows != 1)
-                handleException(failureMsg, null);
-            connection.commit();
+            actualPrices.put(rentalAgreement, calculateActualPrice(rentalAgreement));
         }
-        catch(SQLException sqlE)
+        List<BatchResult<RentalAgreement>> results = executeInBatches(
+            "terminateRentals", TERMINATE_RENTAL_BATCH_SQL, rentalAgreements,
+            (statement, rentalAgreement) -> setTerminationParameters(statement, rentalAgreement, actualPrices.get(rentalAgreement)),
+            notTerminatedMsg, failureMsg);
+        for(BatchResult<RentalAgreement> result : results)
         {
-            handleException(failureMsg, sqlE);
+            if(result.isSuccessful())
+            {
+                result.getItem().setActualPrice(actualPrices.get(result.getItem()));
+                result.getItem().setTerminated();
+            }
         }
+        return results;
+    }
+
+    /**
+     * Imports instruments in bulk with <code>COPY</code>, committing a chunk of rows at a time.
+     * Columns that are not given get the values of a new, unrented instrument in stock once.
+     * Rows that break a constraint of the instrument table are rejected and do not stop the import.
+     * The import is not retried, since the chunks committed before a failure stay imported
+     * @param in The instruments, with the columns brand, type, price and, optionally,
+     *           full_stock and number_rented
+     * @param format The format of the instruments
+     * @return How many instruments were read, imported and rejected
+     * @throws BankDBException If the import could not be started or a failed chunk could not be rolled back
+     */
+    public ImportResult importInstruments(Reader in, ImportFormat format) throws BankDBException
+    {
+        return importRows("importInstruments", ImportTable.INSTRUMENT, in, format);
+    }
+
+    /**
+     * Imports students in bulk with <code>COPY</code>, committing a chunk of rows at a time.
+     * A student's parent must already exist. Rows that break a constraint of the student
+     * table are rejected and do not stop the import. The import is not retried, since the
+     * chunks committed before a failure stay imported
+     * @param in The students, with the columns of the student table except student_id
+     * @param format The format of the students
+     * @return How many students were read, imported and rejected
+     * @throws BankDBException If the import could not be started or a failed chunk could not be rolled back
+     */
+    public ImportResult importStudents(Reader in, ImportFormat format) throws BankDBException
+    {
+        return importRows("importStudents", ImportTable.STUDENT, in, format);
+    }
+
+    private ImportResult importRows(String operation, ImportTable table, Reader in, ImportFormat format) throws BankDBException
+    {
+        return instrumented(operation, () -> {
+            String failureMsg = "Could not import to " + table.getTableName();
+            UnitOfWork work = null;
+            ImportResult result = null;
+            try
+            {
+                work = UnitOfWork.readWrite(router);
+                result = importer.importRows(work, table, new BufferedReader(in), format);
+            }
+            catch(SQLException sqlE)
+            {
+                handleException(failureMsg, sqlE, work);
+            }
+            finally
+            {
+                UnitOfWork.end(work);
+            }
+            Tracer.current().tag("rows", result.getRowsImported());
+            return result;
+        }, result -> !result.isComplete());
+    }
+
+    /**
+     * Writes rental agreements, with the name of their student and the type and brand of
+     * their instrument, as CSV with a header line, using <code>COPY ... TO STDOUT</code>.
+     * Each row is written to the stream as it arrives from the database, so memory use does
+     * not depend on the number of agreements. The export is not retried, since some rows
+     * may already have been written
+     * @param from The first start date to export, or <code>null</code> to export from the first agreement
+     * @param until The start date after the last one to export, or <code>null</code> to export up to the last agreement
+     * @param out Where the rows are written, it is neither flushed nor closed
+     * @return The number of agreements written
+     * @throws BankDBException If the agreements could not be read or written
+     */
+    public long exportAgreements(LocalDate from, LocalDate until, OutputStream out) throws BankDBException
+    {
+        return instrumented("exportAgreements", () -> {
+            String failureMsg = "Could not export rental agreements";
+            UnitOfWork work = null;
+            long rows = 0;
+            try
+            {
+                work = UnitOfWork.readOnly(router);
+                rows = work.copyManager().copyOut(exportAgreementsSql(from, until), out);
+            }
+            catch(SQLException sqlE)
+            {
+                // Never runs the export again, but closes a lost connection instead of pooling it.
+                retryPolicy.shouldRetry(sqlE, 1, work, false);
+                handleException(failureMsg, sqlE, work);
+            }
+            catch(IOException ioe)
+            {
+                handleException(failureMsg, ioe, work);
+            }
+            finally
+            {
+                UnitOfWork.end(work);
+            }
+            Tracer.current().tag("rows", rows);
+            return rows;
+        });
+    }
+
+    /**
+     * <code>COPY</code> can not have parameters, so the dates are written into the statement.
+     * A <code>LocalDate</code> is always printed as <code>yyyy-mm-dd</code>.
+     */
+    private String exportAgreementsSql(LocalDate from, LocalDate until)
+    {
+        StringBuilder sql = new StringBuilder("COPY (").append(EXPORT_AGREEMENTS_QUERY);
+        if(from != null)
+            sql.append(" WHERE r.").append(RENTAL_COLUMN_START).append(" >= DATE '").append(from).append('\'');
+        if(until != null)
+            sql.append(from == null ? " WHERE r." : " AND r.").append(RENTAL_COLUMN_START).append(" < DATE '").append(until).append('\'');
+        return sql.append(") TO STDOUT WITH (FORMAT csv, HEADER)").toString();
+    }
+
+    /**
+     * The body of a DAO method, run by <code>instrumented</code>.
+     */
+    private interface SqlCallable<T>
+    {
+        T call() throws BankDBException;
     }
 
-    private Instrument findInstrumentIdAndPrice(String type, String brand) throws BankDBException
+    /**
+     * Runs the body of a DAO method in a span named after the method, and records its
+     * latency, and whether it threw, as a call of the operation. The body can add attributes
+     * to the span through <code>Tracer.current()</code>.
+     */
+    private <T> T instrumented(String operation, SqlCallable<T> body) throws BankDBException
     {
-        String failureMsg = "Could not search for instrument";
-        ResultSet result = null;
-        Instrument instrument = null;
+        return instrumented(operation, body, result -> false);
+    }
+
+    /**
+     * Like <code>instrumented(operation, body)</code>, but the call is also recorded as
+     * failed if it returns a result that tells of a failure.
+     */
+    private <T> T instrumented(String operation, SqlCallable<T> body, Predicate<T> failedResult) throws BankDBException
+    {
+        long startNanos = System.nanoTime();
+        Span span = Tracer.startSpan("BankDAO." + operation);
+        boolean failed = true;
         try
         {
-            findInstrumentIdAndPriceStmt.setString(1, type);
-            findInstrumentIdAndPriceStmt.setString(2, brand);
-            result = findInstrumentIdAndPriceStmt.executeQuery();
-            if(result.next())
-                instrument = new Instrument(result.getInt(INSTRUMENT_COLUMN_ID), result.getDouble(INSTRUMENT_COLUMN_PRICE), 0);
-            connection.commit();
-        }
-        catch (SQLException sqlE)
-        {
-            handleException(failureMsg, sqlE);
+            T result = body.call();
+            failed = failedResult.test(result);
+            return result;
         }
         finally
         {
-            closeResultSet(failureMsg, result);
+            operations.record(operation, startNanos, failed);
+            span.end(failed);
         }
-        return instrument;
     }
 
-    private void createAgreementForRental(int studentId, Instrument instrument, int length) throws BankDBException
+    private interface ParameterSetter<T>
     {
-        int updatedRows;
-        String failureMsg = "Could not create Agreement";
-        LocalDate today = LocalDate.now();
-        LocalDate localEndDate = LocalDate.of(today.getYear(), today.getMonthValue()+length, today.getDayOfMonth());
-        Date endDate = Date.valueOf(localEndDate);
-        try
-        {
-            rentInstrumentStmt.setInt(1, studentId);
-            rentInstrumentStmt.setInt(2, instrument.getId());
-            rentInstrumentStmt.setInt(3, length);
-            rentInstrumentStmt.setDate(4, endDate);
-            rentInstrumentStmt.setDouble(5, (instrument.getPrice()*length));
-            updatedRows = rentInstrumentStmt.executeUpdate();
-            if(updatedRows != 1)
-                handleException(failureMsg, null);
-            connection.commit();
-        }
-        catch(SQLException sqlE)
+        void setParameters(PreparedStatement statement, T item) throws SQLException;
+    }
+
+    private void setRentalParameters(PreparedStatement statement, RentalRequest request) throws SQLException
+    {
+        statement.setString(1, request.getType());
+        statement.setString(2, request.getBrand());
+        statement.setInt(3, request.getStudentId());
+        statement.setInt(4, request.getLength());
+        statement.setDate(5, Date.valueOf(LocalDate.now().plusMonths(request.getLength())));
+        statement.setInt(6, request.getLength());
+    }
+
+    private void setTerminationParameters(PreparedStatement statement, RentalAgreement rentalAgreement, double actualPrice)
+        throws SQLException
+    {
+        statement.setDouble(1, actualPrice);
+        statement.setInt(2, rentalAgreement.getRentalId());
+    }
+
+    private <T> List<List<T>> splitIntoBatches(List<T> items)
+    {
+        List<List<T>> batches = new ArrayList<>();
+        for(int start = 0; start < items.size(); start += MAX_BATCH_SIZE)
         {
-            handleException(failureMsg, sqlE);
+            batches.add(items.subList(start, Math.min(start + MAX_BATCH_SIZE, items.size())));
         }
+        return batches;
     }
 
     /**
-     * Creates an rental Agreement for the specified length corresponding to the student specified for the instrument matching the type and brand specified
-     * @param brand The brand of the instrument specified by the student 
-     * @param type The type of instrument specified by the student
-     * @param student The specified student
-     * @param length The specified length
-     * @throws BankDBException If such an agreement cannot be created
+     * Runs the statement once per item, in batches that are committed one at a time. The
+     * result of each item is kept as soon as it is committed. After a lost connection, the
+     * items that were not committed are sent again in a new unit of work. The items of a
+     * commit that failed are not sent again, since they may have been stored, and fail. If
+     * the items can not be sent at all any longer, those without a result fail with the
+     * cause, unless no item has a result, then nothing was done and the call fails.
      */
-    public void rentInstrument(String brand, String type, Student student, int length) throws BankDBException
+    private <T> List<BatchResult<T>> executeInBatches(String operation, String sql, List<T> items, ParameterSetter<T> setter,
+                                                      String noRowMsg, String failureMsg) throws BankDBException
     {
-        String failureMsg  = "Could not create rental Agreement";
-        try
-        {
-            Instrument instrument = findInstrumentIdAndPrice(type, brand);
-            createAgreementForRental(student.getId(), instrument, length);
-            student.incrementNrRented();
-            updateNrRentedForStudent(student);
-            instrument.incrementNrRented();
-            updateNrRentedForInstrument(instrument);
-        }
-        catch(BankDBException sqlE)
-        {
-            handleException(failureMsg, sqlE);
-        }
+        boolean[] unfinished = {false};
+        return instrumented(operation, () -> {
+            List<BatchResult<T>> results = new ArrayList<>();
+            for(int attempt = 1; ; attempt++)
+            {
+                retryPolicy.pause(attempt);
+                UnitOfWork work = null;
+                try
+                {
+                    work = UnitOfWork.readWrite(router);
+                    for(List<T> batch : splitIntoBatches(items.subList(results.size(), items.size())))
+                    {
+                        executeBatch(work, sql, batch, setter, noRowMsg, results);
+                    }
+                }
+                catch(SQLException sqlE)
+                {
+                    if(retryPolicy.shouldResume(sqlE, attempt, work))
+                        continue;
+                    if(results.isEmpty())
+                        handleException(failureMsg, sqlE, work);
+                    for(T item : items.subList(results.size(), items.size()))
+                    {
+                        results.add(BatchResult.failure(item, failureMsg + ": " + sqlE.getMessage()));
+                    }
+                    unfinished[0] = true;
+                    return results;
+                }
+                finally
+                {
+                    UnitOfWork.end(work);
+                }
+                return results;
+            }
+        }, results -> unfinished[0]);
     }
 
-    private Instrument getInstrumentIdAndNumberRented(int instrumentId) throws BankDBException
+    /**
+     * Runs and commits one batch, and adds the result of each of its items to the specified
+     * results. If the batch fails, it is rolled back and its items are run one by one, each
+     * in its own transaction. If the unit can not go on, the results of the items committed
+     * so far have been added when the exception is thrown.
+     */
+    private <T> void executeBatch(UnitOfWork work, String sql, List<T> batch, ParameterSetter<T> setter, String noRowMsg,
+                                  List<BatchResult<T>> results) throws SQLException
     {
-        String failureMsg = "Could not find instrument";
-        ResultSet result = null;
-        Instrument instrument = null;
+        PreparedStatement batchStmt = null;
+        int[] updateCounts;
         try
         {
-            findInstrumentsNumberRentedAndIdByIdStmt.setInt(1, instrumentId);
-            result = findInstrumentsNumberRentedAndIdByIdStmt.executeQuery();
-            if(result.next())
-                instrument = new Instrument(result.getInt(INSTRUMENT_COLUMN_ID), result.getInt(INSTRUMENT_COLUMN_NUMBER_RENTED));
-            connection.commit();
+            batchStmt = work.prepareStatement(sql);
+            for(T item : batch)
+            {
+                setter.setParameters(batchStmt, item);
+                batchStmt.addBatch();
+            }
+            updateCounts = batchStmt.executeBatch();
         }
-        catch(SQLException sqlE)
+        catch(BatchUpdateException batchE)
         {
-            handleException(failureMsg, sqlE);
+            clearBatch(batchStmt);
+            work.rollback();
+            for(T item : batch)
+            {
+                executeSingle(work, sql, item, setter, noRowMsg, results);
+            }
+            return;
         }
         finally
         {
-            closeResultSet(failureMsg, result);
+            clearBatch(batchStmt);
+        }
+        commit(work, batch, results);
+        for(int i = 0; i < batch.size(); i++)
+        {
+            results.add(updateCounts[i] == 1 ? BatchResult.success(batch.get(i)) : BatchResult.failure(batch.get(i), noRowMsg));
         }
-        return instrument;
     }
 
-    public void terminateRental(RentalAgreement rentalAgreement) throws BankDBException
+    private <T> void executeSingle(UnitOfWork work, String sql, T item, ParameterSetter<T> setter, String noRowMsg,
+                                   List<BatchResult<T>> results) throws SQLException
     {
-        String failureMsg = "Could not terminate rental agreement";
+        int updatedRows;
         try
         {
-            Student student = findStudent(rentalAgreement.getStudentId());
-            Instrument instrument = getInstrumentIdAndNumberRented(rentalAgreement.getInstrumentId());
-            terminateRentalAgreement(rentalAgreement);
-            student.reduceNrRented();
-            updateNrRentedForStudent(student);
-            instrument.reduceNrRented();
-            updateNrRentedForInstrument(instrument);
+            PreparedStatement singleStmt = work.prepareStatement(sql);
+            setter.setParameters(singleStmt, item);
+            updatedRows = singleStmt.executeUpdate();
         }
-        catch(BankDBException e)
+        catch(SQLException sqlE)
         {
-            handleException(failureMsg, e);
+            work.rollback();
+            results.add(BatchResult.failure(item, sqlE.getMessage()));
+            return;
         }
+        commit(work, List.of(item), results);
+        results.add(updatedRows == 1 ? BatchResult.success(item) : BatchResult.failure(item, noRowMsg));
     }
 
-    private void terminateRentalAgreement(RentalAgreement rentalAgreement) throws BankDBException
+    /**
+     * Commits the specified items. If the commit fails, it is not known whether they were
+     * stored, so they fail before the exception is thrown, and are not sent again.
+     */
+    private <T> void commit(UnitOfWork work, List<T> items, List<BatchResult<T>> results) throws SQLException
     {
-        int updatedRows;
-        String failureMsg = "Could not terminate rental";
-        int monthsPassed = LocalDate.now().getMonthValue() - rentalAgreement.getStartDate().toLocalDate().getMonthValue();
         try
         {
-            terminateRentalStmt.setDouble(1, ((((rentalAgreement.getEstimatedPrice()/rentalAgreement.getLength())*monthsPassed < 0) ? rentalAgreement.getEstimatedPrice()/rentalAgreement.getLength() : rentalAgreement.getEstimatedPrice()/rentalAgreement.getLength())*monthsPassed));
-            terminateRentalStmt.setInt(2, rentalAgreement.getRentalId());
-            updatedRows = terminateRentalStmt.executeUpdate();
-            if(updatedRows != 1)
-                handleException(failureMsg, null);
-            connection.commit();
+            work.commit();
         }
-        catch(SQLException sqlE)
+        catch(SQLException commitE)
         {
-            handleException(failureMsg, sqlE);
+            for(T item : items)
+            {
+                results.add(BatchResult.failure(item, "The commit failed, so it may or may not have been stored: "
+                                                      + commitE.getMessage()));
+            }
+            throw commitE;
         }
     }
 
-    
-
-    private void connectToBankDB() throws ClassNotFoundException, SQLException {
-        connection = DriverManager.getConnection("jdbc:postgresql://localhost:5432/SoundGoodSchool",
-                                                 "postgres", "example");
-        // connection = DriverManager.getConnection("jdbc:mysql://localhost:3306/bankdb",
-        //                                          "root", "javajava");
-        connection.setAutoCommit(false);
+    private Instrument readInstrument(ResultSet result) throws SQLException
+    {
+        return Instrument.of(result.getInt(INSTRUMENT_COLUMN_ID), result.getString(INSTRUMENT_COLUMN_TYPE),
+                             result.getString(INSTRUMENT_COLUMN_BRAND), result.getDouble(INSTRUMENT_COLUMN_PRICE));
     }
 
-    private void prepareStatements() throws SQLException {
-        listInstrumentByTypeStmt = connection.prepareStatement("SELECT " + INSTRUMENT_COLUMN_BRAND + ", " + INSTRUMENT_COLUMN_PRICE +
-            " FROM " + INSTRUMENT_TABLE_NAME + " WHERE " + INSTRUMENT_COLUMN_TYPE + " = ? AND " + INSTRUMENT_COLUMN_NUMBER_RENTED + " = 0");
-
-        listAllInstrumentsStmt = connection.prepareStatement("SELECT " + INSTRUMENT_COLUMN_TYPE + ", " + INSTRUMENT_COLUMN_BRAND +
-            ", " + INSTRUMENT_COLUMN_PRICE + " FROM " + INSTRUMENT_TABLE_NAME + " WHERE " + INSTRUMENT_COLUMN_NUMBER_RENTED + " = 0");
-
-        findStudentByIdStmt = connection.prepareStatement("SELECT " + STUDENT_COLUMN_ID + ", " + STUDENT_COLUMN_NUMBER_RENTED + " FROM "
-            + STUDENT_TABLE_NAME + " WHERE " + STUDENT_COLUMN_ID + " = ?");
-
-        updateNrRentedForStudentStmt = connection.prepareStatement("UPDATE " + STUDENT_TABLE_NAME + " SET " + STUDENT_COLUMN_NUMBER_RENTED + " = ?" 
-            + " WHERE " + STUDENT_COLUMN_ID + " = ?");
-
-        findInstrumentIdAndPriceStmt = connection.prepareStatement("SELECT " + INSTRUMENT_COLUMN_ID + ", " + INSTRUMENT_COLUMN_PRICE + " FROM " + INSTRUMENT_TABLE_NAME + " WHERE "
-            + INSTRUMENT_COLUMN_TYPE + " = ? AND " + INSTRUMENT_COLUMN_BRAND + " = ? AND " + INSTRUMENT_COLUMN_NUMBER_RENTED + " = 0");
-
-        rentInstrumentStmt = connection.prepareStatement("INSERT INTO " + RENAL_TABLE_NAME + " (" + RENTAL_COLUMN_STUDENT 
-            + ", " + RENTAL_COLUMN_INSTRUMENT + ", " + RENTAL_COLUMN_LENGTH + ", " + RENTAL_COLUMN_START + ", " + RENTAL_COLUMN_END + ", " 
-            + RENTAL_COLUMN_E_PRICE + ", " + RENTAL_COLUMN_A_PRICE + ", " + RENTAL_COLUMN_TERMINATED + ") VALUES (?, ?, ?, current_date, ?, ?, null, false)");
-
-        updateNrRentedForInstrumentStmt = connection.prepareStatement("UPDATE " + INSTRUMENT_TABLE_NAME + " SET " + INSTRUMENT_COLUMN_NUMBER_RENTED + " = ?"
-            + " WHERE " + INSTRUMENT_COLUMN_ID + " = ?");
-
-        listRentalsStmt = connection.prepareStatement("SELECT * FROM " + RENAL_TABLE_NAME + " WHERE " + RENTAL_COLUMN_STUDENT + " = ? AND " + RENTAL_COLUMN_TERMINATED + " = false");
-
-        findInstrumentByIdStmt = connection.prepareStatement("SELECT " + INSTRUMENT_COLUMN_BRAND + ", " + INSTRUMENT_COLUMN_TYPE + " FROM " + INSTRUMENT_TABLE_NAME + " WHERE " 
-            + INSTRUMENT_COLUMN_ID + " = ?");
-
-        findInstrumentsNumberRentedAndIdByIdStmt = connection.prepareStatement("SELECT " + INSTRUMENT_COLUMN_ID + ", " + INSTRUMENT_COLUMN_NUMBER_RENTED + " FROM " + INSTRUMENT_TABLE_NAME
-            + " WHERE " + INSTRUMENT_COLUMN_ID + " = ?");
-
-        terminateRentalStmt = connection.prepareStatement("UPDATE " + RENAL_TABLE_NAME + " SET " + RENTAL_COLUMN_TERMINATED + " = true, " + RENTAL_COLUMN_A_PRICE + " = ? WHERE " + RENTAL_COLUMN_ID + " = ?");
+    private double calculateActualPrice(RentalAgreement rentalAgreement)
+    {
+        int monthsPassed = LocalDate.now().getMonthValue() - rentalAgreement.getStartDate().toLocalDate().getMonthValue();
+        return ((((rentalAgreement.getEstimatedPrice()/rentalAgreement.getLength())*monthsPassed < 0) ? rentalAgreement.getEstimatedPrice()/rentalAgreement.getLength() : rentalAgreement.getEstimatedPrice()/rentalAgreement.getLength())*monthsPassed);
     }
-    private void handleException(String failureMsg, Exception cause) throws BankDBException {
+
+    private void handleException(String failureMsg, Exception cause, UnitOfWork work) throws BankDBException {
         String completeFailureMsg = failureMsg;
-        try {
-            connection.rollback();
-        } catch (SQLException rollbackExc) {
-            completeFailureMsg = completeFailureMsg + 
-            ". Also failed to rollback transaction because of: " + rollbackExc.getMessage();
+        if (work != null) {
+            try {
+                work.rollback();
+            } catch (SQLException rollbackExc) {
+                completeFailureMsg = completeFailureMsg +
+                ". Also failed to rollback transaction because of: " + rollbackExc.getMessage();
+            }
         }
 
         if (cause != null) {
@@ -489,11 +1444,42 @@ public class BankDAO {
         }
     }
 
-    private void closeResultSet(String failureMsg, ResultSet result) throws BankDBException {
+    /**
+     * Empties the batch of a statement that stays prepared on its connection, so that a
+     * batch that failed half way is not run again by the next unit of work.
+     */
+    private void clearBatch(PreparedStatement statement) {
+        try {
+            if (statement != null) {
+                statement.clearBatch();
+            }
+        } catch (SQLException e) {
+            // Only fails if the statement is closed, then it is prepared again on next use.
+        }
+    }
+
+    private void closeResultSet(ResultSet result) {
         try {
-            result.close();
-        } catch (Exception e) {
-            throw new BankDBException(failureMsg + " Could not close result set.", e);
+            if (result != null) {
+                result.close();
+            }
+        } catch (SQLException e) {
+            // Running the statement again, or closing its connection, also releases the result set.
         }
     }
+
+    /**
+     * Closes a statement that was prepared with <code>prepareOnce</code>. Pooled statements
+     * stay open on their connection and must not be closed.
+     */
+    private void closeStatement(PreparedStatement statement) {
+        try {
+            if (statement != null) {
+                statement.close();
+            }
+        } catch (SQLException e) {
+            // Closing the connection also releases the statement.
+        }
+    }
+
 }
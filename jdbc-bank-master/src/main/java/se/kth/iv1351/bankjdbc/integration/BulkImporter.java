@@ -0,0 +1,519 @@
+package se.kth.iv1351.bankjdbc.integration;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.postgresql.copy.CopyIn;
+import org.postgresql.copy.CopyManager;
+
+import se.kth.iv1351.bankjdbc.model.ImportResult;
+
+/**
+ * Streams rows from CSV or NDJSON into a table with <code>COPY ... FROM STDIN</code>,
+ * which is much faster than inserting the rows one by one or in batches, since the rows
+ * are sent in one stream and the server parses and stores them without planning a
+ * statement per row.
+ *
+ * The input is read one row at a time and every row is checked against the table's
+ * constraints before it is written to the copy stream, so a row that breaks a
+ * constraint is rejected on its own instead of failing the whole copy. The stream is
+ * written in blocks as the rows are read, and the driver blocks while the server can not
+ * keep up, so the input is never read faster than the database takes it and memory use
+ * does not grow with the size of the input.
+ *
+ * Every <code>soundgood.db.import.chunkRows</code> rows (50000 by default) the copy is
+ * ended and committed, and a new one started, so a long import does not keep one huge
+ * transaction open and a failure only loses the chunk that failed.
+ */
+class BulkImporter
+{
+    private static final String PROPERTY_PREFIX = "soundgood.db.import.";
+    private static final int FLUSH_CHARS = 64 * 1024;
+    private static final int REFERENCED_IDS_FETCH_SIZE = 10_000;
+    private static final int MAX_REJECTIONS_KEPT = 20;
+    private static final String CONNECTION_EXCEPTION_CLASS = "08";
+
+    private final int chunkRows;
+
+    /**
+     * Creates a new importer, that commits every <code>soundgood.db.import.chunkRows</code> rows.
+     */
+    BulkImporter()
+    {
+        this(Integer.parseInt(System.getProperty(PROPERTY_PREFIX + "chunkRows", "50000")));
+    }
+
+    /**
+     * @param chunkRows The number of rows committed in each transaction.
+     */
+    BulkImporter(int chunkRows)
+    {
+        this.chunkRows = chunkRows;
+    }
+
+    /**
+     * Imports all rows of the input. Rows that break a constraint are rejected and the
+     * import goes on. If the database fails a chunk, the chunk is rolled back and the
+     * import stops, the chunks committed before it stay.
+     *
+     * @param work   A read-write unit, whose transaction is committed once per chunk.
+     * @param table  The table to import to.
+     * @param in     The rows.
+     * @param format The format of the rows.
+     * @return How many rows were read, imported and rejected, and why the import stopped
+     *         early if it did, for example because the input could not be read.
+     * @throws SQLException If the ids that rows may refer to could not be read, or a failed
+     *                      chunk could not be rolled back.
+     */
+    ImportResult importRows(UnitOfWork work, ImportTable table, BufferedReader in, ImportFormat format)
+        throws SQLException
+    {
+        long startNanos = System.nanoTime();
+        BitSet referencedIds = readReferencedIds(work, table);
+        RowReader rows = format == ImportFormat.CSV ? new CsvRowReader(in) : new NdjsonRowReader(in);
+        CopyManager copyManager = work.copyManager();
+        List<String> rejections = new ArrayList<>();
+        StringBuilder copyData = new StringBuilder(FLUSH_CHARS + 1024);
+        CopyIn copy = null;
+        long read = 0;
+        long imported = 0;
+        long rejected = 0;
+        int chunks = 0;
+        int rowsInChunk = 0;
+        long chunkStartLine = 0;
+        String failure = null;
+        try
+        {
+            Map<String, String> row;
+            while((row = rows.next()) != null)
+            {
+                read++;
+                String invalid = row == RowReader.MALFORMED ? rows.getError() : table.encode(row, referencedIds, copyData);
+                if(invalid != null)
+                {
+                    rejected++;
+                    if(rejections.size() < MAX_REJECTIONS_KEPT)
+                        rejections.add("line " + rows.getLineNumber() + ": " + invalid);
+                    continue;
+                }
+                if(copy == null)
+                {
+                    copy = copyManager.copyIn(table.getCopySql());
+                    chunkStartLine = rows.getLineNumber();
+                }
+                rowsInChunk++;
+                if(copyData.length() >= FLUSH_CHARS)
+                    flush(copy, copyData);
+                if(rowsInChunk == chunkRows)
+                {
+                    flush(copy, copyData);
+                    copy.endCopy();
+                    copy = null;
+                    work.commit();
+                    imported += rowsInChunk;
+                    chunks++;
+                    rowsInChunk = 0;
+                }
+            }
+            if(copy != null)
+            {
+                flush(copy, copyData);
+                copy.endCopy();
+                copy = null;
+                work.commit();
+                imported += rowsInChunk;
+                chunks++;
+            }
+        }
+        catch(SQLException sqlE)
+        {
+            failure = "the chunk starting at line " + chunkStartLine + " failed: " + sqlE.getMessage();
+            cancel(copy);
+            if(sqlE.getSQLState() != null && sqlE.getSQLState().startsWith(CONNECTION_EXCEPTION_CLASS))
+                work.markBroken();
+            else
+                work.rollback();
+        }
+        catch(IOException ioe)
+        {
+            failure = "could not read line " + (rows.getLineNumber() + 1) + ": " + ioe.getMessage();
+            cancel(copy);
+            work.rollback();
+        }
+        return new ImportResult(table.getTableName(), read, imported, rejected, chunks, rejections, failure,
+                                System.nanoTime() - startNanos);
+    }
+
+    private BitSet readReferencedIds(UnitOfWork work, ImportTable table) throws SQLException
+    {
+        BitSet ids = new BitSet();
+        if(table.getReferencedIdsSql() == null)
+            return ids;
+        PreparedStatement idsStmt = work.prepareOnce(table.getReferencedIdsSql());
+        try
+        {
+            idsStmt.setFetchSize(REFERENCED_IDS_FETCH_SIZE);
+            try(ResultSet result = idsStmt.executeQuery())
+            {
+                while(result.next())
+                {
+                    ids.set(result.getInt(1));
+                }
+            }
+        }
+        finally
+        {
+            idsStmt.close();
+        }
+        return ids;
+    }
+
+    private static void flush(CopyIn copy, StringBuilder copyData) throws SQLException
+    {
+        if(copyData.length() == 0)
+            return;
+        byte[] bytes = copyData.toString().getBytes(StandardCharsets.UTF_8);
+        copy.writeToCopy(bytes, 0, bytes.length);
+        copyData.setLength(0);
+    }
+
+    private static void cancel(CopyIn copy)
+    {
+        if(copy == null || !copy.isActive())
+            return;
+        try
+        {
+            copy.cancelCopy();
+        }
+        catch(SQLException sqlE)
+        {
+            // The copy is rolled back with its transaction anyway.
+        }
+    }
+
+    /**
+     * Reads one row at a time, as column names and values.
+     */
+    abstract static class RowReader
+    {
+        static final Map<String, String> MALFORMED = new HashMap<>();
+
+        final BufferedReader in;
+        long lineNumber;
+        long nextLineNumber;
+        String error;
+
+        RowReader(BufferedReader in)
+        {
+            this.in = in;
+        }
+
+        /**
+         * @return The next row, <code>MALFORMED</code> if it could not be parsed, or
+         *         <code>null</code> at the end of the input.
+         */
+        abstract Map<String, String> next() throws IOException;
+
+        /**
+         * @return The line the last row started on, counting from 1.
+         */
+        long getLineNumber()
+        {
+            return lineNumber;
+        }
+
+        /**
+         * @return Why the last row was malformed.
+         */
+        String getError()
+        {
+            return error;
+        }
+
+        String readLine() throws IOException
+        {
+            String line = in.readLine();
+            if(line != null)
+                nextLineNumber++;
+            return line;
+        }
+
+        Map<String, String> malformed(String why)
+        {
+            error = why;
+            return MALFORMED;
+        }
+    }
+
+    /**
+     * Reads CSV with a header line. A quoted field may contain commas, line breaks and
+     * doubled double quotes. An empty unquoted field is null.
+     */
+    static final class CsvRowReader extends RowReader
+    {
+        private static final List<String> MALFORMED_RECORD = new ArrayList<>();
+
+        private List<String> header;
+
+        CsvRowReader(BufferedReader in)
+        {
+            super(in);
+        }
+
+        @Override
+        Map<String, String> next() throws IOException
+        {
+            if(header == null)
+            {
+                header = readRecord();
+                if(header == null)
+                    return null;
+            }
+            List<String> fields;
+            do
+            {
+                fields = readRecord();
+                if(fields == null)
+                    return null;
+            }
+            while(fields.size() == 1 && fields.get(0) == null);
+            if(fields == MALFORMED_RECORD)
+                return malformed("unterminated quoted field");
+            if(fields.size() != header.size())
+                return malformed("has " + fields.size() + " fields, the header has " + header.size());
+            Map<String, String> row = new LinkedHashMap<>();
+            for(int i = 0; i < fields.size(); i++)
+            {
+                row.put(header.get(i) == null ? "" : header.get(i).trim(), fields.get(i));
+            }
+            return row;
+        }
+
+        private List<String> readRecord() throws IOException
+        {
+            String line = readLine();
+            if(line == null)
+                return null;
+            lineNumber = nextLineNumber;
+            List<String> fields = new ArrayList<>();
+            StringBuilder field = new StringBuilder();
+            boolean quoted = false;
+            boolean inQuotes = false;
+            int i = 0;
+            while(true)
+            {
+                if(i == line.length())
+                {
+                    if(!inQuotes)
+                        break;
+                    line = readLine();
+                    if(line == null)
+                        return MALFORMED_RECORD;
+                    field.append('\n');
+                    i = 0;
+                    continue;
+                }
+                char c = line.charAt(i++);
+                if(inQuotes)
+                {
+                    if(c != '"')
+                        field.append(c);
+                    else if(i < line.length() && line.charAt(i) == '"')
+                        field.append(line.charAt(i++));
+                    else
+                        inQuotes = false;
+                }
+                else if(c == '"')
+                {
+                    inQuotes = true;
+                    quoted = true;
+                }
+                else if(c == ',')
+                {
+                    fields.add(field.length() == 0 && !quoted ? null : field.toString());
+                    field.setLength(0);
+                    quoted = false;
+                }
+                else
+                {
+                    field.append(c);
+                }
+            }
+            fields.add(field.length() == 0 && !quoted ? null : field.toString());
+            return fields;
+        }
+    }
+
+    /**
+     * Reads one flat JSON object per line. Strings, numbers, booleans and null are
+     * accepted as values, nested objects and arrays are not. Blank lines are skipped.
+     */
+    static final class NdjsonRowReader extends RowReader
+    {
+        private String line;
+        private int position;
+
+        NdjsonRowReader(BufferedReader in)
+        {
+            super(in);
+        }
+
+        @Override
+        Map<String, String> next() throws IOException
+        {
+            do
+            {
+                line = readLine();
+                if(line == null)
+                    return null;
+            }
+            while(line.isBlank());
+            lineNumber = nextLineNumber;
+            position = 0;
+            try
+            {
+                return parseObject();
+            }
+            catch(IllegalArgumentException iae)
+            {
+                return malformed(iae.getMessage());
+            }
+        }
+
+        private Map<String, String> parseObject()
+        {
+            Map<String, String> row = new LinkedHashMap<>();
+            expect('{');
+            if(peek() == '}')
+            {
+                position++;
+                return endOfLine(row);
+            }
+            while(true)
+            {
+                String key = parseString();
+                expect(':');
+                row.put(key, parseValue());
+                char c = take();
+                if(c == '}')
+                    return endOfLine(row);
+                if(c != ',')
+                    throw new IllegalArgumentException("expected , or } at column " + position);
+            }
+        }
+
+        private Map<String, String> endOfLine(Map<String, String> row)
+        {
+            if(peek() != 0)
+                throw new IllegalArgumentException("unexpected text after the object at column " + (position + 1));
+            return row;
+        }
+
+        private String parseValue()
+        {
+            char c = peek();
+            if(c == '"')
+                return parseString();
+            if(c == '{' || c == '[')
+                throw new IllegalArgumentException("nested objects and arrays are not supported");
+            int start = position;
+            while(position < line.length() && ",} \t".indexOf(line.charAt(position)) < 0)
+            {
+                position++;
+            }
+            String literal = line.substring(start, position);
+            if(literal.equals("null"))
+                return null;
+            if(literal.equals("true") || literal.equals("false") || literal.matches("-?\\d+(\\.\\d+)?([eE][+-]?\\d+)?"))
+                return literal;
+            throw new IllegalArgumentException("invalid value " + literal + " at column " + (start + 1));
+        }
+
+        private String parseString()
+        {
+            expect('"');
+            StringBuilder value = new StringBuilder();
+            while(true)
+            {
+                if(position >= line.length())
+                    throw new IllegalArgumentException("unterminated string");
+                char c = line.charAt(position++);
+                if(c == '"')
+                    return value.toString();
+                if(c != '\\')
+                {
+                    value.append(c);
+                    continue;
+                }
+                if(position >= line.length())
+                    throw new IllegalArgumentException("unterminated string");
+                char escaped = line.charAt(position++);
+                switch(escaped)
+                {
+                    case 'b':
+                        value.append('\b');
+                        break;
+                    case 'f':
+                        value.append('\f');
+                        break;
+                    case 'n':
+                        value.append('\n');
+                        break;
+                    case 'r':
+                        value.append('\r');
+                        break;
+                    case 't':
+                        value.append('\t');
+                        break;
+                    case 'u':
+                        int escapeColumn = position - 1;
+                        int code = 0;
+                        for(int digit = 0; digit < 4; digit++)
+                        {
+                            int hex = position < line.length() ? Character.digit(line.charAt(position++), 16) : -1;
+                            if(hex < 0)
+                                throw new IllegalArgumentException("invalid unicode escape at column " + escapeColumn);
+                            code = code * 16 + hex;
+                        }
+                        value.append((char)code);
+                        break;
+                    default:
+                        value.append(escaped);
+                }
+            }
+        }
+
+        private void expect(char expected)
+        {
+            if(take() != expected)
+                throw new IllegalArgumentException("expected " + expected + " at column " + position);
+        }
+
+        private char take()
+        {
+            char c = peek();
+            if(c != 0)
+                position++;
+            return c;
+        }
+
+        private char peek()
+        {
+            while(position < line.length() && Character.isWhitespace(line.charAt(position)))
+            {
+                position++;
+            }
+            return position < line.length() ? line.charAt(position) : 0;
+        }
+    }
+}
@@ -0,0 +1,310 @@
+package se.kth.iv1351.bankjdbc.integration;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+import se.kth.iv1351.bankjdbc.model.Instrument;
+import se.kth.iv1351.bankjdbc.model.InstrumentVisitor;
+
+/**
+ * A read-through cache of the instruments that are available for rent, kept in an
+ * <code>InventorySnapshot</code>. The whole instrument table is read from the database
+ * the first time it is needed. When the snapshot is older than the time to live, the
+ * instruments added since are appended and the rented counts, stock and prices are read
+ * again, see <code>InventorySnapshot</code>. Changed types and brands are only seen
+ * after <code>invalidate</code>. In between, rentals and terminations made through this
+ * application update the counts in place. Tables with more instruments than the maximum
+ * size are not cached, all reads then go to the database. The table is streamed from the
+ * database while it is loaded, so finding out that it is too large never reads more than
+ * the maximum size into memory.
+ *
+ * Reads never wait for a load. One thread at a time loads or refreshes the snapshot,
+ * without holding a lock, and publishes it when done. Meanwhile, the other threads keep
+ * reading the expired snapshot, or read from the database if there is none yet.
+ */
+public class CatalogCache
+{
+    private static final String PROPERTY_PREFIX = "soundgood.catalog.";
+
+    private final BankDAO bankDb;
+    private final long ttlMillis;
+    private final int maxSize;
+
+    private final AtomicReference<Cached> cached = new AtomicReference<>(Cached.nothing());
+    private final AtomicBoolean loading = new AtomicBoolean();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder loads = new LongAdder();
+
+    /**
+     * Creates a new cache, with the time to live and maximum size found in the system
+     * properties <code>soundgood.catalog.ttlMillis</code> and <code>soundgood.catalog.maxSize</code>.
+     *
+     * @param bankDb The DAO used to read the catalog.
+     */
+    public CatalogCache(BankDAO bankDb)
+    {
+        this(bankDb, Long.parseLong(System.getProperty(PROPERTY_PREFIX + "ttlMillis", "60000")),
+             Integer.parseInt(System.getProperty(PROPERTY_PREFIX + "maxSize", "2000000")));
+    }
+
+    /**
+     * Creates a new cache.
+     *
+     * @param bankDb    The DAO used to read the catalog.
+     * @param ttlMillis How long the cached counts are used before they are read again.
+     * @param maxSize   The largest number of instruments, rented or not, that is cached.
+     */
+    public CatalogCache(BankDAO bankDb, long ttlMillis, int maxSize)
+    {
+        this.bankDb = bankDb;
+        this.ttlMillis = ttlMillis;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * @return All instruments that are not rented out.
+     * @throws BankDBException If the catalog had to be read and the read failed.
+     */
+    public List<Instrument> listAllInstruments() throws BankDBException
+    {
+        InventorySnapshot current = currentSnapshot();
+        if(current == null)
+            return bankDb.listAllInstruments();
+        return collect(current, null, null, 0, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param type The type of the instruments.
+     * @return All instruments of the specified type that are not rented out.
+     * @throws BankDBException If the catalog had to be read and the read failed.
+     */
+    public List<Instrument> listInstruments(String type) throws BankDBException
+    {
+        InventorySnapshot current = currentSnapshot();
+        if(current == null)
+            return bankDb.listInstruments(type);
+        return collect(current, type, null, 0, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param type  The type of the instruments.
+     * @param brand The brand of the instruments.
+     * @return All instruments of the specified type and brand that are not rented out.
+     * @throws BankDBException If the catalog had to be read and the read failed.
+     */
+    public List<Instrument> listInstruments(String type, String brand) throws BankDBException
+    {
+        InventorySnapshot current = currentSnapshot();
+        if(current == null)
+        {
+            List<Instrument> matching = new ArrayList<>();
+            for(Instrument instrument : bankDb.listInstruments(type))
+            {
+                if(brand.equals(instrument.getBrand()))
+                    matching.add(instrument);
+            }
+            return matching;
+        }
+        return collect(current, type, brand, 0, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Lists one page of the instruments that are not rented out, ordered by id. The page
+     * is read from the database if the catalog is too large to be cached.
+     *
+     * @param type     The type of the instruments, or <code>null</code> for all types.
+     * @param afterId  Only instruments with a larger id are listed, 0 for the first page.
+     * @param pageSize The largest number of instruments in the page.
+     * @return The instruments in the page, fewer than the page size if it is the last page.
+     * @throws BankDBException If the catalog or the page had to be read and the read failed.
+     */
+    public List<Instrument> listInstrumentsPage(String type, int afterId, int pageSize) throws BankDBException
+    {
+        InventorySnapshot current = currentSnapshot();
+        if(current == null)
+            return bankDb.listInstrumentsPage(type, afterId, pageSize);
+        return collect(current, type, null, afterId, pageSize);
+    }
+
+    /**
+     * Passes each instrument that is not rented out to the visitor, in id order. When the
+     * catalog is cached, no objects are created. Otherwise the instruments are streamed
+     * from the database.
+     *
+     * @param type    The type of the instruments, or <code>null</code> for all types.
+     * @param visitor Called once for each instrument.
+     * @throws BankDBException If the catalog or the instruments had to be read and the read failed.
+     */
+    public void forEachInstrument(String type, InstrumentVisitor visitor) throws BankDBException
+    {
+        InventorySnapshot current = currentSnapshot();
+        if(current != null)
+        {
+            current.forEachAvailable(type, null, 0, Integer.MAX_VALUE, visitor);
+            return;
+        }
+        bankDb.streamInstruments(type, instrument -> {
+            visitor.visit(instrument.getId(), instrument.getType(), instrument.getBrand(), instrument.getPrice());
+            return true;
+        });
+    }
+
+    /**
+     * Passes one page of the instruments that are not rented out to the visitor, in id
+     * order. When the catalog is cached, no objects are created. Otherwise the page is
+     * read from the database.
+     *
+     * @param type     The type of the instruments, or <code>null</code> for all types.
+     * @param afterId  Only instruments with a larger id are visited, 0 for the first page.
+     * @param pageSize The largest number of instruments visited.
+     * @param visitor  Called once for each instrument in the page.
+     * @return The number of instruments visited, fewer than the page size if it was the last page.
+     * @throws BankDBException If the catalog or the page had to be read and the read failed.
+     */
+    public int forEachInstrumentPage(String type, int afterId, int pageSize, InstrumentVisitor visitor) throws BankDBException
+    {
+        InventorySnapshot current = currentSnapshot();
+        if(current != null)
+            return current.forEachAvailable(type, null, afterId, pageSize, visitor);
+        List<Instrument> page = bankDb.listInstrumentsPage(type, afterId, pageSize);
+        for(Instrument instrument : page)
+        {
+            visitor.visit(instrument.getId(), instrument.getType(), instrument.getBrand(), instrument.getPrice());
+        }
+        return page.size();
+    }
+
+    /**
+     * Records that an instrument was rented.
+     *
+     * @param instrumentId The id of the instrument that was rented.
+     */
+    public void instrumentRented(int instrumentId)
+    {
+        InventorySnapshot current = cached.get().snapshot;
+        if(current != null)
+            current.instrumentRented(instrumentId);
+    }
+
+    /**
+     * Records that a rented instrument was returned.
+     *
+     * @param instrumentId The id of the instrument that is no longer rented.
+     */
+    public void instrumentReturned(int instrumentId)
+    {
+        InventorySnapshot current = cached.get().snapshot;
+        if(current != null)
+            current.instrumentReturned(instrumentId);
+    }
+
+    /**
+     * Drops the cached catalog, it is read from the database again the next time it is needed.
+     * Used when the catalog has changed in ways that can not be applied in place. A load
+     * that is running while the cache is invalidated is not published.
+     */
+    public void invalidate()
+    {
+        cached.set(Cached.nothing());
+    }
+
+    /**
+     * @return A snapshot of the cache's counters.
+     */
+    public CatalogCacheMetrics getMetrics()
+    {
+        InventorySnapshot current = cached.get().snapshot;
+        return new CatalogCacheMetrics(hits.sum(), misses.sum(), loads.sum(), current == null ? 0 : current.size());
+    }
+
+    /**
+     * @return The snapshot to answer a read from, or <code>null</code> if the read goes to the database.
+     */
+    private InventorySnapshot currentSnapshot() throws BankDBException
+    {
+        Cached current = cached.get();
+        if(current.isFresh(ttlMillis))
+        {
+            if(current.snapshot == null)
+                misses.increment();
+            else
+                hits.increment();
+            return current.snapshot;
+        }
+        misses.increment();
+        if(!loading.compareAndSet(false, true))
+            return current.snapshot;
+        try
+        {
+            return load(current);
+        }
+        finally
+        {
+            loading.set(false);
+        }
+    }
+
+    /**
+     * Refreshes the expired snapshot, or reads a new one, and publishes it unless the cache
+     * was invalidated meanwhile. Only called by the thread that set <code>loading</code>.
+     */
+    private InventorySnapshot load(Cached expired) throws BankDBException
+    {
+        loads.increment();
+        long startedAt = System.currentTimeMillis();
+        InventorySnapshot loaded = expired.snapshot;
+        if(loaded == null || !loaded.refresh(bankDb, maxSize))
+            loaded = InventorySnapshot.load(bankDb, maxSize);
+        cached.compareAndSet(expired, new Cached(loaded, startedAt));
+        return loaded;
+    }
+
+    private List<Instrument> collect(InventorySnapshot current, String type, String brand, int afterId, int limit)
+    {
+        List<Instrument> instruments = new ArrayList<>();
+        current.forEachAvailable(type, brand, afterId, limit,
+                                 (id, instrumentType, instrumentBrand, price) -> instruments.add(Instrument.of(id, instrumentType, instrumentBrand, price)));
+        return instruments;
+    }
+
+    /**
+     * The published snapshot and when it was read. The snapshot is <code>null</code> if
+     * the table was too large, or if nothing has been read yet.
+     */
+    private static final class Cached
+    {
+        private final InventorySnapshot snapshot;
+        private final long loadedAt;
+        private final boolean loaded;
+
+        private Cached(InventorySnapshot snapshot, long loadedAt)
+        {
+            this(snapshot, loadedAt, true);
+        }
+
+        private Cached(InventorySnapshot snapshot, long loadedAt, boolean loaded)
+        {
+            this.snapshot = snapshot;
+            this.loadedAt = loadedAt;
+            this.loaded = loaded;
+        }
+
+        /**
+         * @return A new instance, so that a load started before it was published can not replace it.
+         */
+        private static Cached nothing()
+        {
+            return new Cached(null, 0, false);
+        }
+
+        private boolean isFresh(long ttlMillis)
+        {
+            return loaded && System.currentTimeMillis() - loadedAt < ttlMillis;
+        }
+    }
+}
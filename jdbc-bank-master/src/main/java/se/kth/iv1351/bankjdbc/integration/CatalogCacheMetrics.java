@@ -0,0 +1,69 @@
+package se.kth.iv1351.bankjdbc.integration;
+
+/**
+ * A snapshot of the catalog cache's counters, taken when
+ * <code>CatalogCache.getMetrics()</code> was called.
+ */
+public class CatalogCacheMetrics
+{
+    private final long hits;
+    private final long misses;
+    private final long loads;
+    private final int size;
+
+    CatalogCacheMetrics(long hits, long misses, long loads, int size)
+    {
+        this.hits = hits;
+        this.misses = misses;
+        this.loads = loads;
+        this.size = size;
+    }
+
+    /**
+     * @return The number of reads answered from the cache.
+     */
+    public long getHits()
+    {
+        return hits;
+    }
+
+    /**
+     * @return The number of reads that had to go to the database.
+     */
+    public long getMisses()
+    {
+        return misses;
+    }
+
+    /**
+     * @return The number of times the whole catalog was read from the database.
+     */
+    public long getLoads()
+    {
+        return loads;
+    }
+
+    /**
+     * @return The number of instruments currently cached.
+     */
+    public int getSize()
+    {
+        return size;
+    }
+
+    /**
+     * @return The share of reads answered from the cache, between zero and one.
+     */
+    public double getHitRatio()
+    {
+        long reads = hits + misses;
+        return reads == 0 ? 0 : (double) hits / reads;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("hits: %d, misses: %d, loads: %d, size: %d, hit ratio: %.3f",
+                             hits, misses, loads, size, getHitRatio());
+    }
+}
@@ -0,0 +1,64 @@
+package se.kth.iv1351.bankjdbc.integration;
+
+/**
+ * When one client last committed a write, so that its reads go to the primary for a
+ * while after the write, and see it even if the read replicas have not caught up yet.
+ *
+ * Every thread has a session of its own, so in the command server, where every client
+ * has its own thread, each desk reads its own rentals and terminations. A call handed
+ * to another thread continues the session of the thread that started it with
+ * <code>attach</code>, like a trace span. The session is shared, not copied, so a write
+ * made on the other thread is also seen by later reads of the starting thread, and of
+ * any other thread the session is attached to.
+ */
+public final class ClientSession
+{
+    private static final ThreadLocal<ClientSession> CURRENT = ThreadLocal.withInitial(ClientSession::new);
+
+    private volatile long lastWriteNanos;
+    private volatile boolean written = false;
+
+    private ClientSession()
+    {
+    }
+
+    /**
+     * @return The session of the calling thread.
+     */
+    public static ClientSession current()
+    {
+        return CURRENT.get();
+    }
+
+    /**
+     * Makes the specified session the session of the calling thread.
+     *
+     * @param session The session to continue, as returned by <code>current</code>.
+     * @return The session that was current before, to be given back to <code>attach</code>
+     *         when the call is done.
+     */
+    public static ClientSession attach(ClientSession session)
+    {
+        ClientSession previous = CURRENT.get();
+        CURRENT.set(session);
+        return previous;
+    }
+
+    /**
+     * Records that the session has committed a write.
+     */
+    void wrote()
+    {
+        lastWriteNanos = System.nanoTime();
+        written = true;
+    }
+
+    /**
+     * @param windowNanos How long after a write it counts as recent.
+     * @return <code>true</code> if the session has committed a write within the window.
+     */
+    boolean hasWrittenWithin(long windowNanos)
+    {
+        return written && System.nanoTime() - lastWriteNanos < windowNanos;
+    }
+}
@@ -0,0 +1,317 @@
+package se.kth.iv1351.bankjdbc.integration;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A fixed upper bound pool of database connections. Each DAO operation borrows
+ * a connection, uses it for the duration of the operation and then releases it,
+ * which means that any number of threads can use the DAO at the same time, as
+ * long as there are connections left in the pool. Connections that have been idle
+ * for longer than <code>validateAfterIdleMillis</code> are validated before they are
+ * handed out, which costs a round trip. One that was released just before is handed
+ * out as it is, and if it turns out to be broken, the DAO's retry runs the call again
+ * on another connection. Connections that have been idle for too long are closed,
+ * but the pool never shrinks below its minimum size.
+ *
+ * Each connection has a <code>StatementRegistry</code> with the statements prepared
+ * on it, which are closed together with the connection.
+ */
+public class ConnectionPool
+{
+    private final PoolConfig config;
+    private final Properties connectionProps = new Properties();
+    private final LinkedBlockingDeque<IdleConnection> idleConnections = new LinkedBlockingDeque<>();
+    private final Map<Connection, Long> borrowedAt = new ConcurrentHashMap<>();
+    private final Map<Connection, StatementRegistry> statements = new ConcurrentHashMap<>();
+    private final StatementRegistry.Counters statementCounters = new StatementRegistry.Counters();
+    private final StatementProfiler profiler;
+    private final Semaphore permits;
+    private final ScheduledExecutorService evictor;
+
+    private final LongAdder checkouts = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder totalWaitNanos = new LongAdder();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+    private final LongAdder totalCheckoutNanos = new LongAdder();
+    private final AtomicLong maxCheckoutNanos = new AtomicLong();
+
+    private volatile boolean closed = false;
+
+    /**
+     * Creates a new pool and opens the minimum number of connections.
+     *
+     * @param config The database url, credentials and pool size.
+     * @throws SQLException If the initial connections could not be opened.
+     */
+    public ConnectionPool(PoolConfig config) throws SQLException
+    {
+        this(config, new StatementProfiler());
+    }
+
+    /**
+     * Creates a new pool whose statements are timed by the specified profiler, which may
+     * be shared with other pools.
+     *
+     * @param config   The database url, credentials and pool size.
+     * @param profiler Times every execution of the pool's statements.
+     * @throws SQLException If the initial connections could not be opened.
+     */
+    ConnectionPool(PoolConfig config, StatementProfiler profiler) throws SQLException
+    {
+        this.config = config;
+        this.profiler = profiler;
+        connectionProps.putAll(config.getDriverProperties());
+        connectionProps.setProperty("user", config.getUser());
+        connectionProps.setProperty("password", config.getPassword());
+        permits = new Semaphore(config.getMaxSize(), true);
+        for(int i = 0; i < config.getMinSize(); i++)
+        {
+            idleConnections.offer(new IdleConnection(openConnection()));
+        }
+        evictor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "connection-pool-evictor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long evictionInterval = Math.max(1000, config.getIdleTimeoutMillis() / 2);
+        evictor.scheduleWithFixedDelay(this::evictIdleConnections, evictionInterval, evictionInterval,
+                                       TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Borrows a connection. The connection must be given back with <code>release</code>
+     * when the caller is done with it. The returned connection has auto commit turned off.
+     *
+     * @return A valid connection.
+     * @throws SQLException If the pool is closed, if no connection was released within
+     *                      the borrow timeout or if a new connection could not be opened.
+     */
+    public Connection borrow() throws SQLException
+    {
+        if(closed)
+            throw new SQLException("The connection pool is closed.");
+        long waitStart = System.nanoTime();
+        try
+        {
+            if(!permits.tryAcquire(config.getBorrowTimeoutMillis(), TimeUnit.MILLISECONDS))
+            {
+                timeouts.increment();
+                throw new SQLException("Timed out waiting for a database connection.");
+            }
+        }
+        catch(InterruptedException ie)
+        {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a database connection.", ie);
+        }
+
+        Connection connection;
+        try
+        {
+            connection = takeValidIdleConnection();
+            if(connection == null)
+                connection = openConnection();
+        }
+        catch(SQLException | RuntimeException e)
+        {
+            permits.release();
+            throw e;
+        }
+
+        long now = System.nanoTime();
+        long waited = now - waitStart;
+        checkouts.increment();
+        totalWaitNanos.add(waited);
+        maxWaitNanos.accumulateAndGet(waited, Math::max);
+        borrowedAt.put(connection, now);
+        return connection;
+    }
+
+    /**
+     * Gives back a connection that was borrowed with <code>borrow</code>. Any
+     * transaction left open by the caller is rolled back, and the connection is
+     * reset to auto commit off and read-write before it is handed out again.
+     *
+     * @param connection The connection to give back, nothing happens if it is <code>null</code>
+     *                   or if it is not currently borrowed from this pool.
+     */
+    public void release(Connection connection)
+    {
+        if(connection == null || !recordReturn(connection))
+            return;
+        try
+        {
+            if(!closed && !connection.isClosed())
+            {
+                if(connection.getAutoCommit())
+                    connection.setAutoCommit(false);
+                else
+                    connection.rollback();
+                if(connection.isReadOnly())
+                    connection.setReadOnly(false);
+                idleConnections.offerFirst(new IdleConnection(connection));
+                return;
+            }
+        }
+        catch(SQLException sqlE)
+        {
+            // The connection is broken, it is closed below.
+        }
+        finally
+        {
+            permits.release();
+        }
+        closeQuietly(connection);
+    }
+
+    /**
+     * Gives back a connection that can not be used anymore, for example because
+     * the network connection to the database was lost. The connection is closed
+     * instead of being reused.
+     *
+     * @param connection The broken connection, nothing happens if it is <code>null</code>.
+     */
+    public void discard(Connection connection)
+    {
+        if(connection == null || !recordReturn(connection))
+            return;
+        permits.release();
+        closeQuietly(connection);
+    }
+
+    /**
+     * @return A snapshot of the pool's counters.
+     */
+    public PoolMetrics getMetrics()
+    {
+        return new PoolMetrics(borrowedAt.size(), idleConnections.size(), checkouts.sum(), timeouts.sum(),
+                               totalWaitNanos.sum(), maxWaitNanos.get(), totalCheckoutNanos.sum(),
+                               maxCheckoutNanos.get());
+    }
+
+    /**
+     * @return A snapshot of the prepared statement counters of all connections in the pool.
+     */
+    public StatementMetrics getStatementMetrics()
+    {
+        return statementCounters.snapshot();
+    }
+
+    /**
+     * @param connection A connection borrowed from this pool.
+     * @return The statements prepared on the connection.
+     */
+    StatementRegistry statementsOf(Connection connection)
+    {
+        return statements.computeIfAbsent(connection, opened -> new StatementRegistry(opened, statementCounters, profiler));
+    }
+
+    /**
+     * Closes all idle connections and stops handing out new ones. Connections that
+     * are borrowed when this method is called are closed when they are released. The
+     * statements prepared on a connection are closed before the connection.
+     */
+    public void close()
+    {
+        closed = true;
+        evictor.shutdownNow();
+        IdleConnection idle;
+        while((idle = idleConnections.pollFirst()) != null)
+        {
+            closeQuietly(idle.connection);
+        }
+    }
+
+    private boolean recordReturn(Connection connection)
+    {
+        Long borrowTime = borrowedAt.remove(connection);
+        if(borrowTime == null)
+            return false;
+        long held = System.nanoTime() - borrowTime;
+        totalCheckoutNanos.add(held);
+        maxCheckoutNanos.accumulateAndGet(held, Math::max);
+        return true;
+    }
+
+    private Connection takeValidIdleConnection()
+    {
+        IdleConnection idle;
+        while((idle = idleConnections.pollFirst()) != null)
+        {
+            if(System.currentTimeMillis() - idle.idleSince < config.getValidateAfterIdleMillis())
+                return idle.connection;
+            try
+            {
+                if(idle.connection.isValid(config.getValidationTimeoutSeconds()))
+                    return idle.connection;
+            }
+            catch(SQLException sqlE)
+            {
+                // Not valid, try the next one.
+            }
+            closeQuietly(idle.connection);
+        }
+        return null;
+    }
+
+    private Connection openConnection() throws SQLException
+    {
+        Connection connection = DriverManager.getConnection(config.getUrl(), connectionProps);
+        connection.setAutoCommit(false);
+        return connection;
+    }
+
+    private void evictIdleConnections()
+    {
+        long oldestAllowed = System.currentTimeMillis() - config.getIdleTimeoutMillis();
+        int open = idleConnections.size() + borrowedAt.size();
+        for(IdleConnection idle : idleConnections)
+        {
+            if(open <= config.getMinSize())
+                return;
+            if(idle.idleSince < oldestAllowed && idleConnections.remove(idle))
+            {
+                closeQuietly(idle.connection);
+                open--;
+            }
+        }
+    }
+
+    private void closeQuietly(Connection connection)
+    {
+        StatementRegistry registry = statements.remove(connection);
+        if(registry != null)
+            registry.close();
+        try
+        {
+            connection.close();
+        }
+        catch(SQLException sqlE)
+        {
+            // Nothing more can be done with a connection that can not be closed.
+        }
+    }
+
+    private static class IdleConnection
+    {
+        private final Connection connection;
+        private final long idleSince = System.currentTimeMillis();
+
+        private IdleConnection(Connection connection)
+        {
+            this.connection = connection;
+        }
+    }
+}
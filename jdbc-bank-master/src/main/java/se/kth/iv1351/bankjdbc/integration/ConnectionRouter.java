@@ -0,0 +1,135 @@
+package se.kth.iv1351.bankjdbc.integration;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Chooses the database that a unit of work runs against. Writes always go to the
+ * primary. Reads are spread round robin over the read replicas, or go to the
+ * primary if there are no replicas or if no replica can hand out a connection.
+ *
+ * A client that has written reads from the primary for a while after the write,
+ * so that it sees its own write even if the replicas have not caught up yet. The
+ * client is the <code>ClientSession</code> of the calling thread.
+ */
+class ConnectionRouter
+{
+    private final ConnectionPool primary;
+    private final List<ConnectionPool> replicas = new ArrayList<>();
+    private final AtomicInteger nextReplica = new AtomicInteger();
+    private final long readYourWritesNanos;
+    private final StatementProfiler profiler = new StatementProfiler();
+
+    /**
+     * Connects to the primary and to all replicas in the specified configuration.
+     *
+     * @param config The primary's configuration, which also lists the replicas.
+     * @throws SQLException If the primary or a replica could not be connected to.
+     */
+    ConnectionRouter(PoolConfig config) throws SQLException
+    {
+        primary = new ConnectionPool(config, profiler);
+        try
+        {
+            for(String replicaUrl : config.getReplicaUrls())
+            {
+                replicas.add(new ConnectionPool(config.forReplica(replicaUrl), profiler));
+            }
+        }
+        catch(SQLException sqlE)
+        {
+            close();
+            throw sqlE;
+        }
+        readYourWritesNanos = TimeUnit.MILLISECONDS.toNanos(config.getReadYourWritesMillis());
+    }
+
+    /**
+     * @return The profiler shared by the statements of the primary and all replicas.
+     */
+    StatementProfiler profiler()
+    {
+        return profiler;
+    }
+
+    /**
+     * @return The pool connected to the primary.
+     */
+    ConnectionPool primary()
+    {
+        return primary;
+    }
+
+    /**
+     * Borrows a connection to read from. The caller must give it back to the pool it
+     * came from, which is returned together with the connection.
+     *
+     * @return The connection and the pool it was borrowed from.
+     * @throws SQLException If no connection could be borrowed, not even from the primary.
+     */
+    Borrowed borrowForRead() throws SQLException
+    {
+        if(!replicas.isEmpty() && !hasWrittenRecently())
+        {
+            int first = Math.floorMod(nextReplica.getAndIncrement(), replicas.size());
+            for(int i = 0; i < replicas.size(); i++)
+            {
+                ConnectionPool replica = replicas.get((first + i) % replicas.size());
+                try
+                {
+                    return new Borrowed(replica, replica.borrow());
+                }
+                catch(SQLException sqlE)
+                {
+                    // The replica is down or exhausted, try the next one and then the primary.
+                }
+            }
+        }
+        return new Borrowed(primary, primary.borrow());
+    }
+
+    /**
+     * Records that the session of the calling thread has committed a write.
+     */
+    void wrote()
+    {
+        if(readYourWritesNanos > 0 && !replicas.isEmpty())
+            ClientSession.current().wrote();
+    }
+
+    /**
+     * Closes the primary pool and all replica pools.
+     */
+    void close()
+    {
+        primary.close();
+        for(ConnectionPool replica : replicas)
+        {
+            replica.close();
+        }
+    }
+
+    private boolean hasWrittenRecently()
+    {
+        return ClientSession.current().hasWrittenWithin(readYourWritesNanos);
+    }
+
+    /**
+     * A connection together with the pool it must be given back to.
+     */
+    static class Borrowed
+    {
+        final ConnectionPool pool;
+        final Connection connection;
+
+        private Borrowed(ConnectionPool pool, Connection connection)
+        {
+            this.pool = pool;
+            this.connection = connection;
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package se.kth.iv1351.bankjdbc.integration;
+
+/**
+ * The formats a bulk import can read.
+ */
+public enum ImportFormat
+{
+    /**
+     * Comma separated values, with a header line naming the columns. Fields may be quoted
+     * with double quotes, and a double quote in a quoted field is written twice. An
+     * empty unquoted field is null.
+     */
+    CSV,
+    /**
+     * One flat JSON object per line, whose keys are the columns. Missing keys are null.
+     */
+    NDJSON;
+
+    /**
+     * @param fileName The name of a file to import.
+     * @return The format of the file, <code>NDJSON</code> for names ending in
+     *         <code>.ndjson</code>, <code>.jsonl</code> or <code>.json</code>, otherwise <code>CSV</code>.
+     */
+    public static ImportFormat of(String fileName)
+    {
+        String name = fileName.toLowerCase();
+        if(name.endsWith(".ndjson") || name.endsWith(".jsonl") || name.endsWith(".json"))
+            return NDJSON;
+        return CSV;
+    }
+}
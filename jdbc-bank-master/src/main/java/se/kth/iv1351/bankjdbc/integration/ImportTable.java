@@ -0,0 +1,238 @@
+package se.kth.iv1351.bankjdbc.integration;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The tables that can be bulk imported, with the columns that can be given and the
+ * constraints of <code>log-phys model.sql</code> that every row is checked against
+ * before it is sent to the database: not null, the length of each varchar, the
+ * precision of numerics, the parent of a student and that an instrument is not rented
+ * more than it is stocked. Generated ids can not be given.
+ */
+enum ImportTable
+{
+    INSTRUMENT("instrument", null, null,
+               Column.text("brand", 50, true),
+               Column.text("type", 50, true),
+               Column.integer("number_rented", "0"),
+               Column.integer("full_stock", "1"),
+               Column.numeric("price", 32)),
+    STUDENT("student", "parent_id", "SELECT id FROM parent",
+            Column.text("first_name", 50, true),
+            Column.text("last_name", 50, true),
+            Column.text("age", 10, true),
+            Column.text("personal_number", 12, true),
+            Column.text("street_name", 50, false),
+            Column.text("street_number", 10, false),
+            Column.text("zip", 5, false),
+            Column.integer("number_of_lessons", null),
+            Column.text("current_skill", 50, true),
+            Column.integer("number_of_instruments_rented", "0"),
+            Column.integer("parent_id", null).required());
+
+    private final String tableName;
+    private final String foreignKey;
+    private final String referencedIdsSql;
+    private final Column[] columns;
+
+    ImportTable(String tableName, String foreignKey, String referencedIdsSql, Column... columns)
+    {
+        this.tableName = tableName;
+        this.foreignKey = foreignKey;
+        this.referencedIdsSql = referencedIdsSql;
+        this.columns = columns;
+    }
+
+    String getTableName()
+    {
+        return tableName;
+    }
+
+    /**
+     * @return The query that reads the ids a row may refer to, or <code>null</code> if
+     *         the table has no foreign key to check.
+     */
+    String getReferencedIdsSql()
+    {
+        return referencedIdsSql;
+    }
+
+    /**
+     * @return The statement that copies rows, in the format written by <code>encode</code>.
+     */
+    String getCopySql()
+    {
+        StringBuilder sql = new StringBuilder("COPY ").append(tableName).append(" (");
+        for(int i = 0; i < columns.length; i++)
+        {
+            if(i > 0)
+                sql.append(", ");
+            sql.append(columns[i].name);
+        }
+        return sql.append(") FROM STDIN WITH (FORMAT csv)").toString();
+    }
+
+    /**
+     * Checks one row and appends it to a <code>COPY ... WITH (FORMAT csv)</code> stream.
+     *
+     * @param row           The row, with a value or <code>null</code> per column name.
+     * @param referencedIds The ids the row may refer to, <code>null</code> if the table has no foreign key.
+     * @param copyData      Where the row is appended, nothing is appended if the row is rejected.
+     * @return Why the row was rejected, or <code>null</code> if it was appended.
+     */
+    String encode(Map<String, String> row, BitSet referencedIds, StringBuilder copyData)
+    {
+        for(String name : row.keySet())
+        {
+            if(columnNamed(name) == null)
+                return "unknown column " + name;
+        }
+        List<String> values = new ArrayList<>(columns.length);
+        for(Column column : columns)
+        {
+            String value = row.get(column.name);
+            if(value == null)
+                value = column.defaultValue;
+            String invalid = column.check(value);
+            if(invalid != null)
+                return column.name + " " + invalid;
+            values.add(value);
+        }
+        String invalid = checkRow(values, referencedIds);
+        if(invalid != null)
+            return invalid;
+        for(int i = 0; i < columns.length; i++)
+        {
+            if(i > 0)
+                copyData.append(',');
+            String value = values.get(i);
+            if(value == null)
+                continue;
+            if(columns[i].kind == Kind.TEXT)
+                copyData.append('"').append(value.replace("\"", "\"\"")).append('"');
+            else
+                copyData.append(value.trim());
+        }
+        copyData.append('\n');
+        return null;
+    }
+
+    private String checkRow(List<String> values, BitSet referencedIds)
+    {
+        if(this == INSTRUMENT)
+        {
+            int rented = Integer.parseInt(values.get(indexOf("number_rented")).trim());
+            int stock = Integer.parseInt(values.get(indexOf("full_stock")).trim());
+            if(rented > stock)
+                return "number_rented " + rented + " is larger than full_stock " + stock;
+        }
+        if(foreignKey != null)
+        {
+            int id = Integer.parseInt(values.get(indexOf(foreignKey)).trim());
+            if(!referencedIds.get(id))
+                return foreignKey + " " + id + " does not exist";
+        }
+        return null;
+    }
+
+    private int indexOf(String name)
+    {
+        for(int i = 0; i < columns.length; i++)
+        {
+            if(columns[i].name.equals(name))
+                return i;
+        }
+        throw new IllegalArgumentException("No column " + name + " in " + tableName);
+    }
+
+    private Column columnNamed(String name)
+    {
+        for(Column column : columns)
+        {
+            if(column.name.equals(name))
+                return column;
+        }
+        return null;
+    }
+
+    private enum Kind
+    {
+        TEXT, INTEGER, NUMERIC
+    }
+
+    private static final class Column
+    {
+        private final String name;
+        private final Kind kind;
+        private final int size;
+        private final String defaultValue;
+        private boolean required;
+
+        private Column(String name, Kind kind, int size, boolean required, String defaultValue)
+        {
+            this.name = name;
+            this.kind = kind;
+            this.size = size;
+            this.required = required;
+            this.defaultValue = defaultValue;
+        }
+
+        static Column text(String name, int maxLength, boolean required)
+        {
+            return new Column(name, Kind.TEXT, maxLength, required, null);
+        }
+
+        static Column integer(String name, String defaultValue)
+        {
+            return new Column(name, Kind.INTEGER, 0, defaultValue != null, defaultValue);
+        }
+
+        static Column numeric(String name, int precision)
+        {
+            return new Column(name, Kind.NUMERIC, precision, true, null);
+        }
+
+        Column required()
+        {
+            required = true;
+            return this;
+        }
+
+        String check(String value)
+        {
+            if(value == null)
+                return required ? "is missing" : null;
+            switch(kind)
+            {
+                case TEXT:
+                    return value.length() > size ? "is longer than " + size + " characters" : null;
+                case INTEGER:
+                    try
+                    {
+                        return Integer.parseInt(value.trim()) < 0 ? "is negative" : null;
+                    }
+                    catch(NumberFormatException nfe)
+                    {
+                        return "is not an integer: " + value;
+                    }
+                default:
+                    try
+                    {
+                        BigDecimal number = new BigDecimal(value.trim());
+                        if(number.signum() < 0)
+                            return "is negative";
+                        return number.setScale(0, RoundingMode.HALF_UP).precision() > size ? "has more than " + size + " digits" : null;
+                    }
+                    catch(NumberFormatException nfe)
+                    {
+                        return "is not a number: " + value;
+                    }
+            }
+        }
+    }
+}
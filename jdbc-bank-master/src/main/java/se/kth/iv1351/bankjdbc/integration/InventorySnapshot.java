@@ -0,0 +1,384 @@
+package se.kth.iv1351.bankjdbc.integration;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import se.kth.iv1351.bankjdbc.model.InstrumentVisitor;
+
+/**
+ * An in-memory copy of the instrument table, laid out for availability queries.
+ * Each column is a primitive array with one element per instrument, sorted by id.
+ * Types and brands are stored as small codes into arrays of the distinct names,
+ * and there is one bit set per type and one per brand marking the instruments of
+ * that type or brand. An instrument takes about 26 bytes, so a million instruments
+ * fit in 26 MB.
+ *
+ * Queries neither lock nor allocate. Rentals and returns made through this
+ * application update the rented counts in place. <code>refresh</code> appends the
+ * instruments added to the table since the snapshot was built and re-reads the
+ * rented counts, stock and prices, but not the types and brands. An instrument whose
+ * type or brand is changed keeps the old one until a new snapshot is loaded.
+ */
+public class InventorySnapshot
+{
+    /**
+     * Receives the rows of the instrument table while a snapshot is built.
+     */
+    public interface RowHandler
+    {
+        /**
+         * @return <code>true</code> to continue reading, <code>false</code> to stop.
+         */
+        boolean handle(int id, String type, String brand, int numberRented, int fullStock, double price);
+    }
+
+    /**
+     * Receives the rented count, stock and price of each instrument while a snapshot is refreshed.
+     */
+    public interface StockHandler
+    {
+        void handle(int id, int numberRented, int fullStock, double price);
+    }
+
+    /**
+     * The rented count of an instrument that has been deleted from the table, it is
+     * never available again since it is larger than any stock.
+     */
+    private static final int REMOVED = Integer.MAX_VALUE;
+
+    private volatile Columns columns;
+
+    private InventorySnapshot(Columns columns)
+    {
+        this.columns = columns;
+    }
+
+    /**
+     * Reads the whole instrument table.
+     *
+     * @param bankDb  The DAO used to read the table.
+     * @param maxSize The largest number of instruments in the snapshot.
+     * @return The snapshot, or <code>null</code> if the table has more instruments than the maximum size.
+     * @throws BankDBException If the table could not be read.
+     */
+    static InventorySnapshot load(BankDAO bankDb, int maxSize) throws BankDBException
+    {
+        Builder builder = new Builder(null);
+        if(!builder.append(bankDb, 0, maxSize))
+            return null;
+        return new InventorySnapshot(builder.build());
+    }
+
+    /**
+     * Appends the instruments added since the snapshot was built or last refreshed, and
+     * replaces the rented counts, stock and prices of all instruments with those in the
+     * database. Types and brands are not read again. Queries
+     * made while refreshing see the snapshot as it was before the refresh. A rental or
+     * return made while refreshing may be missing from the counts until the next refresh.
+     *
+     * @param bankDb  The DAO used to read the table.
+     * @param maxSize The largest number of instruments in the snapshot.
+     * @return <code>false</code> if the table now has more instruments than the maximum size,
+     *         the snapshot is then left as it was.
+     * @throws BankDBException If the table could not be read.
+     */
+    synchronized boolean refresh(BankDAO bankDb, int maxSize) throws BankDBException
+    {
+        Columns current = columns;
+        Builder builder = new Builder(current);
+        int lastId = current.size == 0 ? 0 : current.ids[current.size - 1];
+        if(!builder.append(bankDb, lastId, maxSize))
+            return false;
+        Columns refreshed = builder.build();
+        for(int row = 0; row < refreshed.size; row++)
+        {
+            refreshed.numberRented.set(row, REMOVED);
+        }
+        bankDb.streamStock((id, numberRented, fullStock, price) -> {
+            int row = refreshed.rowOf(id);
+            if(row < 0)
+                return;
+            refreshed.numberRented.set(row, numberRented);
+            refreshed.fullStock[row] = fullStock;
+            refreshed.prices[row] = price;
+        });
+        columns = refreshed;
+        return true;
+    }
+
+    /**
+     * @return The number of instruments in the snapshot, rented or not.
+     */
+    public int size()
+    {
+        return columns.size;
+    }
+
+    /**
+     * Records that an instrument was rented.
+     *
+     * @param instrumentId The id of the rented instrument, nothing happens if it is not in the snapshot.
+     */
+    public void instrumentRented(int instrumentId)
+    {
+        Columns current = columns;
+        int row = current.rowOf(instrumentId);
+        if(row >= 0)
+            current.numberRented.incrementAndGet(row);
+    }
+
+    /**
+     * Records that a rented instrument was returned.
+     *
+     * @param instrumentId The id of the returned instrument, nothing happens if it is not in the snapshot.
+     */
+    public void instrumentReturned(int instrumentId)
+    {
+        Columns current = columns;
+        int row = current.rowOf(instrumentId);
+        if(row >= 0)
+            current.numberRented.updateAndGet(row, count -> count == REMOVED || count == 0 ? count : count - 1);
+    }
+
+    /**
+     * Counts the instruments that are available for rent.
+     *
+     * @param type  The type of the instruments, or <code>null</code> for all types.
+     * @param brand The brand of the instruments, or <code>null</code> for all brands.
+     * @return The number of available instruments of the type and brand.
+     */
+    public int countAvailable(String type, String brand)
+    {
+        return forEachAvailable(type, brand, 0, Integer.MAX_VALUE, null);
+    }
+
+    /**
+     * Passes the instruments that are available for rent to the visitor, in id order.
+     *
+     * @param type    The type of the instruments, or <code>null</code> for all types.
+     * @param brand   The brand of the instruments, or <code>null</code> for all brands.
+     * @param afterId Only instruments with a larger id are visited, 0 to start with the first.
+     * @param limit   The largest number of instruments visited.
+     * @param visitor Called once for each instrument, may be <code>null</code> to only count them.
+     * @return The number of instruments visited.
+     */
+    public int forEachAvailable(String type, String brand, int afterId, int limit, InstrumentVisitor visitor)
+    {
+        Columns current = columns;
+        int typeCode = -1;
+        int brandCode = -1;
+        if(type != null)
+        {
+            Integer code = current.typeCodes.get(type);
+            if(code == null)
+                return 0;
+            typeCode = code;
+        }
+        if(brand != null)
+        {
+            Integer code = current.brandCodes.get(brand);
+            if(code == null)
+                return 0;
+            brandCode = code;
+        }
+        BitSet rows = typeCode >= 0 ? current.rowsByType[typeCode] : brandCode >= 0 ? current.rowsByBrand[brandCode] : null;
+        int visited = 0;
+        int row = current.firstRowAfter(afterId);
+        while(visited < limit)
+        {
+            if(rows != null)
+                row = rows.nextSetBit(row);
+            if(row < 0 || row >= current.size)
+                break;
+            if((brandCode < 0 || current.brands[row] == brandCode) && current.isAvailable(row))
+            {
+                if(visitor != null)
+                    visitor.visit(current.ids[row], current.typeNames[current.types[row]],
+                                  current.brandNames[current.brands[row]], current.prices[row]);
+                visited++;
+            }
+            row++;
+        }
+        return visited;
+    }
+
+    /**
+     * The columns of one version of the snapshot. Everything but the rented counts is
+     * immutable once published, a refresh fills in a new instance before publishing it.
+     */
+    private static class Columns
+    {
+        private final int size;
+        private final int[] ids;
+        private final short[] types;
+        private final short[] brands;
+        private final double[] prices;
+        private final int[] fullStock;
+        private final AtomicIntegerArray numberRented;
+        private final String[] typeNames;
+        private final String[] brandNames;
+        private final Map<String, Integer> typeCodes;
+        private final Map<String, Integer> brandCodes;
+        private final BitSet[] rowsByType;
+        private final BitSet[] rowsByBrand;
+
+        private Columns(Builder builder)
+        {
+            size = builder.size;
+            ids = Arrays.copyOf(builder.ids, size);
+            types = Arrays.copyOf(builder.types, size);
+            brands = Arrays.copyOf(builder.brands, size);
+            prices = Arrays.copyOf(builder.prices, size);
+            fullStock = Arrays.copyOf(builder.fullStock, size);
+            numberRented = new AtomicIntegerArray(Arrays.copyOf(builder.numberRented, size));
+            typeNames = builder.typeNames.toArray(String[]::new);
+            brandNames = builder.brandNames.toArray(String[]::new);
+            typeCodes = new HashMap<>(builder.typeCodes);
+            brandCodes = new HashMap<>(builder.brandCodes);
+            rowsByType = rowsByCode(types, typeNames.length);
+            rowsByBrand = rowsByCode(brands, brandNames.length);
+        }
+
+        private BitSet[] rowsByCode(short[] codes, int numberOfCodes)
+        {
+            BitSet[] rowsByCode = new BitSet[numberOfCodes];
+            for(int code = 0; code < numberOfCodes; code++)
+            {
+                rowsByCode[code] = new BitSet(size);
+            }
+            for(int row = 0; row < size; row++)
+            {
+                rowsByCode[codes[row]].set(row);
+            }
+            return rowsByCode;
+        }
+
+        private boolean isAvailable(int row)
+        {
+            return numberRented.get(row) < fullStock[row];
+        }
+
+        private int rowOf(int id)
+        {
+            return Arrays.binarySearch(ids, 0, size, id);
+        }
+
+        private int firstRowAfter(int id)
+        {
+            int row = Arrays.binarySearch(ids, 0, size, id);
+            return row >= 0 ? row + 1 : -row - 1;
+        }
+    }
+
+    /**
+     * Collects rows into growing arrays until the columns are built.
+     */
+    private static class Builder implements RowHandler
+    {
+        private int size;
+        private int[] ids;
+        private short[] types;
+        private short[] brands;
+        private double[] prices;
+        private int[] fullStock;
+        private int[] numberRented;
+        private final List<String> typeNames = new ArrayList<>();
+        private final List<String> brandNames = new ArrayList<>();
+        private final Map<String, Integer> typeCodes = new HashMap<>();
+        private final Map<String, Integer> brandCodes = new HashMap<>();
+        private int maxSize;
+        private boolean tooLarge;
+
+        private Builder(Columns start)
+        {
+            if(start == null)
+            {
+                ids = new int[1024];
+                types = new short[1024];
+                brands = new short[1024];
+                prices = new double[1024];
+                fullStock = new int[1024];
+                numberRented = new int[1024];
+                return;
+            }
+            int capacity = Math.max(1024, start.size);
+            size = start.size;
+            ids = Arrays.copyOf(start.ids, capacity);
+            types = Arrays.copyOf(start.types, capacity);
+            brands = Arrays.copyOf(start.brands, capacity);
+            prices = Arrays.copyOf(start.prices, capacity);
+            fullStock = Arrays.copyOf(start.fullStock, capacity);
+            numberRented = new int[capacity];
+            for(int row = 0; row < size; row++)
+            {
+                numberRented[row] = start.numberRented.get(row);
+            }
+            typeNames.addAll(Arrays.asList(start.typeNames));
+            brandNames.addAll(Arrays.asList(start.brandNames));
+            typeCodes.putAll(start.typeCodes);
+            brandCodes.putAll(start.brandCodes);
+        }
+
+        private boolean append(BankDAO bankDb, int afterId, int maxSize) throws BankDBException
+        {
+            this.maxSize = maxSize;
+            bankDb.streamInventory(afterId, this);
+            return !tooLarge;
+        }
+
+        @Override
+        public boolean handle(int id, String type, String brand, int rented, int stock, double price)
+        {
+            if(size == maxSize)
+            {
+                tooLarge = true;
+                return false;
+            }
+            if(size == ids.length)
+                grow();
+            ids[size] = id;
+            types[size] = code(type, typeNames, typeCodes);
+            brands[size] = code(brand, brandNames, brandCodes);
+            prices[size] = price;
+            fullStock[size] = stock;
+            numberRented[size] = rented;
+            size++;
+            return true;
+        }
+
+        private short code(String name, List<String> names, Map<String, Integer> codes)
+        {
+            Integer code = codes.get(name);
+            if(code == null)
+            {
+                if(names.size() > Short.MAX_VALUE)
+                    throw new IllegalStateException("More than " + Short.MAX_VALUE + " distinct names.");
+                code = names.size();
+                names.add(name);
+                codes.put(name, code);
+            }
+            return code.shortValue();
+        }
+
+        private void grow()
+        {
+            int capacity = ids.length * 2;
+            ids = Arrays.copyOf(ids, capacity);
+            types = Arrays.copyOf(types, capacity);
+            brands = Arrays.copyOf(brands, capacity);
+            prices = Arrays.copyOf(prices, capacity);
+            fullStock = Arrays.copyOf(fullStock, capacity);
+            numberRented = Arrays.copyOf(numberRented, capacity);
+        }
+
+        private Columns build()
+        {
+            return new Columns(this);
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package se.kth.iv1351.bankjdbc.integration;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * The settings used to connect to the database and to size the connection pool.
+ * Every setting can be overridden with a system property, for example
+ * <code>-Dsoundgood.db.url=jdbc:postgresql://otherhost:5432/SoundGoodSchool</code>.
+ * System properties starting with <code>soundgood.db.driver.</code> are passed on
+ * to the JDBC driver, for example <code>-Dsoundgood.db.driver.prepareThreshold=5</code>.
+ * Read replicas are listed, comma separated, in <code>soundgood.db.replicaUrls</code>,
+ * they are connected to with the same credentials and pool settings as the primary.
+ */
+public class PoolConfig
+{
+    private static final String PROPERTY_PREFIX = "soundgood.db.";
+    private static final String DRIVER_PROPERTY_PREFIX = PROPERTY_PREFIX + "driver.";
+
+    private final String url;
+    private final String user;
+    private final String password;
+    private final int minSize;
+    private final int maxSize;
+    private final long idleTimeoutMillis;
+    private final long borrowTimeoutMillis;
+    private final int validationTimeoutSeconds;
+    private final long validateAfterIdleMillis;
+    private final boolean migrateOnStartup;
+    private final Properties driverProperties;
+    private final List<String> replicaUrls;
+    private final long readYourWritesMillis;
+
+    public PoolConfig(String url, String user, String password, int minSize, int maxSize,
+                      long idleTimeoutMillis, long borrowTimeoutMillis, int validationTimeoutSeconds,
+                      long validateAfterIdleMillis, boolean migrateOnStartup, Properties driverProperties,
+                      List<String> replicaUrls, long readYourWritesMillis)
+    {
+        if(minSize < 0 || maxSize < 1 || minSize > maxSize)
+            throw new IllegalArgumentException("Invalid pool size, min: " + minSize + ", max: " + maxSize);
+        this.url = url;
+        this.user = user;
+        this.password = password;
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.borrowTimeoutMillis = borrowTimeoutMillis;
+        this.validationTimeoutSeconds = validationTimeoutSeconds;
+        this.validateAfterIdleMillis = validateAfterIdleMillis;
+        this.migrateOnStartup = migrateOnStartup;
+        this.driverProperties = driverProperties;
+        this.replicaUrls = List.copyOf(replicaUrls);
+        this.readYourWritesMillis = readYourWritesMillis;
+    }
+
+    /**
+     * Creates a configuration from the system properties, falling back to the
+     * local SoundGood database when a property is not set.
+     *
+     * @return The configuration.
+     */
+    public static PoolConfig fromSystemProperties()
+    {
+        return new PoolConfig(property("url", "jdbc:postgresql://localhost:5432/SoundGoodSchool"),
+                              property("user", "postgres"),
+                              property("password", "example"),
+                              Integer.parseInt(property("pool.minSize", "2")),
+                              Integer.parseInt(property("pool.maxSize", "10")),
+                              Long.parseLong(property("pool.idleTimeoutMillis", "300000")),
+                              Long.parseLong(property("pool.borrowTimeoutMillis", "30000")),
+                              Integer.parseInt(property("pool.validationTimeoutSeconds", "2")),
+                              Long.parseLong(property("pool.validateAfterIdleMillis", "1000")),
+                              Boolean.parseBoolean(property("migrate", "true")),
+                              driverPropertiesFromSystemProperties(),
+                              replicaUrlsFromSystemProperties(),
+                              Long.parseLong(property("readYourWritesMillis", "5000")));
+    }
+
+    /**
+     * Creates the configuration of a pool connected to the specified replica. The replica
+     * pool has the same credentials, sizes and driver settings as this one, it has no
+     * replicas of its own and never migrates the schema.
+     *
+     * @param replicaUrl The url of the replica.
+     * @return The replica's configuration.
+     */
+    public PoolConfig forReplica(String replicaUrl)
+    {
+        return new PoolConfig(replicaUrl, user, password, minSize, maxSize, idleTimeoutMillis, borrowTimeoutMillis,
+                              validationTimeoutSeconds, validateAfterIdleMillis, false, driverProperties, List.of(), 0);
+    }
+
+    private static List<String> replicaUrlsFromSystemProperties()
+    {
+        List<String> replicaUrls = new ArrayList<>();
+        for(String replicaUrl : property("replicaUrls", "").split(","))
+        {
+            if(!replicaUrl.isBlank())
+                replicaUrls.add(replicaUrl.trim());
+        }
+        return replicaUrls;
+    }
+
+    /**
+     * The driver settings used unless they are overridden. Every connection keeps the
+     * statements it has prepared on the server, and a statement is prepared on the
+     * server the first time it is reused, so preparing a statement per operation does
+     * not mean parsing and planning it again.
+     */
+    private static Properties driverPropertiesFromSystemProperties()
+    {
+        Properties driverProps = new Properties();
+        driverProps.setProperty("prepareThreshold", "1");
+        driverProps.setProperty("preparedStatementCacheQueries", "256");
+        for(String name : System.getProperties().stringPropertyNames())
+        {
+            if(name.startsWith(DRIVER_PROPERTY_PREFIX))
+                driverProps.setProperty(name.substring(DRIVER_PROPERTY_PREFIX.length()), System.getProperty(name));
+        }
+        return driverProps;
+    }
+
+    private static String property(String name, String defaultValue)
+    {
+        return System.getProperty(PROPERTY_PREFIX + name, defaultValue);
+    }
+
+    public String getUrl()
+    {
+        return url;
+    }
+
+    public String getUser()
+    {
+        return user;
+    }
+
+    public String getPassword()
+    {
+        return password;
+    }
+
+    public int getMinSize()
+    {
+        return minSize;
+    }
+
+    public int getMaxSize()
+    {
+        return maxSize;
+    }
+
+    public long getIdleTimeoutMillis()
+    {
+        return idleTimeoutMillis;
+    }
+
+    public long getBorrowTimeoutMillis()
+    {
+        return borrowTimeoutMillis;
+    }
+
+    public int getValidationTimeoutSeconds()
+    {
+        return validationTimeoutSeconds;
+    }
+
+    /**
+     * @return For how long a connection may have been idle and still be handed out without
+     *         being validated. Zero validates every connection before it is handed out.
+     */
+    public long getValidateAfterIdleMillis()
+    {
+        return validateAfterIdleMillis;
+    }
+
+    /**
+     * @return True if pending schema migrations shall be applied when the DAO is created.
+     */
+    public boolean isMigrateOnStartup()
+    {
+        return migrateOnStartup;
+    }
+
+    /**
+     * @return The settings passed on to the JDBC driver, in addition to the user and password.
+     */
+    public Properties getDriverProperties()
+    {
+        return driverProperties;
+    }
+
+    /**
+     * @return The urls of the read replicas, empty if all reads go to the primary.
+     */
+    public List<String> getReplicaUrls()
+    {
+        return replicaUrls;
+    }
+
+    /**
+     * @return For how long after a write the same thread reads from the primary, so that
+     *         it sees its own writes even if the replicas lag behind. Zero turns this off.
+     */
+    public long getReadYourWritesMillis()
+    {
+        return readYourWritesMillis;
+    }
+}
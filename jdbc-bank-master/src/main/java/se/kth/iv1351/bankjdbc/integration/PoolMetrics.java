@@ -0,0 +1,103 @@
+package se.kth.iv1351.bankjdbc.integration;
+
+/**
+ * A snapshot of the connection pool's counters, taken when
+ * <code>ConnectionPool.getMetrics()</code> was called.
+ */
+public class PoolMetrics
+{
+    private final int active;
+    private final int idle;
+    private final long checkouts;
+    private final long timeouts;
+    private final long totalWaitNanos;
+    private final long maxWaitNanos;
+    private final long totalCheckoutNanos;
+    private final long maxCheckoutNanos;
+
+    PoolMetrics(int active, int idle, long checkouts, long timeouts, long totalWaitNanos,
+                long maxWaitNanos, long totalCheckoutNanos, long maxCheckoutNanos)
+    {
+        this.active = active;
+        this.idle = idle;
+        this.checkouts = checkouts;
+        this.timeouts = timeouts;
+        this.totalWaitNanos = totalWaitNanos;
+        this.maxWaitNanos = maxWaitNanos;
+        this.totalCheckoutNanos = totalCheckoutNanos;
+        this.maxCheckoutNanos = maxCheckoutNanos;
+    }
+
+    /**
+     * @return The number of connections currently borrowed.
+     */
+    public int getActive()
+    {
+        return active;
+    }
+
+    /**
+     * @return The number of open connections waiting in the pool.
+     */
+    public int getIdle()
+    {
+        return idle;
+    }
+
+    /**
+     * @return The number of successful borrows since the pool was created.
+     */
+    public long getCheckouts()
+    {
+        return checkouts;
+    }
+
+    /**
+     * @return The number of borrows that gave up because the pool was exhausted.
+     */
+    public long getTimeouts()
+    {
+        return timeouts;
+    }
+
+    /**
+     * @return The average time a caller waited for a connection, in milliseconds.
+     */
+    public double getAverageWaitMillis()
+    {
+        return checkouts == 0 ? 0 : totalWaitNanos / (checkouts * 1_000_000.0);
+    }
+
+    /**
+     * @return The longest time a caller waited for a connection, in milliseconds.
+     */
+    public double getMaxWaitMillis()
+    {
+        return maxWaitNanos / 1_000_000.0;
+    }
+
+    /**
+     * @return The average time a connection was held before it was returned, in milliseconds.
+     */
+    public double getAverageCheckoutMillis()
+    {
+        return checkouts == 0 ? 0 : totalCheckoutNanos / (checkouts * 1_000_000.0);
+    }
+
+    /**
+     * @return The longest time a connection was held before it was returned, in milliseconds.
+     */
+    public double getMaxCheckoutMillis()
+    {
+        return maxCheckoutNanos / 1_000_000.0;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("active: %d, idle: %d, checkouts: %d, timeouts: %d, avg wait: %.3f ms, "
+                             + "max wait: %.3f ms, avg checkout: %.3f ms, max checkout: %.3f ms",
+                             active, idle, checkouts, timeouts, getAverageWaitMillis(), getMaxWaitMillis(),
+                             getAverageCheckoutMillis(), getMaxCheckoutMillis());
+    }
+}
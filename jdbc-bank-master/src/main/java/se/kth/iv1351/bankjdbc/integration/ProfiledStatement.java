@@ -0,0 +1,176 @@
+package se.kth.iv1351.bankjdbc.integration;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.Arrays;
+
+import se.kth.iv1351.bankjdbc.tracing.Span;
+import se.kth.iv1351.bankjdbc.tracing.Tracer;
+
+/**
+ * Wraps a pooled prepared statement so that the <code>StatementProfiler</code> sees every
+ * execution, and so that each execution becomes a span, a child of the current span,
+ * if the calling thread is tracing. The span has the SQL text and the number of rows.
+ * Bound parameters are remembered until they are bound again, so that a slow execution
+ * can be logged with them. The wrapper lives as long as the statement, only a query's
+ * result set gets a wrapper of its own, which measures the time spent fetching rows and
+ * counts them. The profile and the span of a query both last until its result set is closed.
+ */
+class ProfiledStatement implements InvocationHandler
+{
+    private static final Object[] NO_PARAMETERS = new Object[0];
+
+    private final PreparedStatement statement;
+    private final StatementProfiler profiler;
+    private final StatementProfiler.Entry entry;
+    private Object[] parameters = NO_PARAMETERS;
+    private int batchSize;
+
+    private ProfiledStatement(PreparedStatement statement, StatementProfiler profiler, StatementProfiler.Entry entry)
+    {
+        this.statement = statement;
+        this.profiler = profiler;
+        this.entry = entry;
+    }
+
+    static PreparedStatement wrap(PreparedStatement statement, StatementProfiler profiler, StatementProfiler.Entry entry)
+    {
+        return (PreparedStatement)Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(),
+                                                         new Class<?>[] {PreparedStatement.class},
+                                                         new ProfiledStatement(statement, profiler, entry));
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+    {
+        String name = method.getName();
+        if(args != null && args.length > 0 || !name.startsWith("execute"))
+        {
+            if(name.startsWith("set") && args != null && args.length >= 2 && args[0] instanceof Integer)
+                bind((Integer)args[0], name.equals("setNull") ? null : args[1]);
+            else if(name.equals("clearParameters"))
+                Arrays.fill(parameters, null);
+            else if(name.equals("addBatch"))
+                batchSize++;
+            else if(name.equals("clearBatch"))
+                batchSize = 0;
+            return call(statement, method, args);
+        }
+
+        Span span = Tracer.startChildSpan("SQL").tag("db.statement", entry.getDisplaySql());
+        long startNanos = System.nanoTime();
+        Object result;
+        try
+        {
+            result = call(statement, method, args);
+        }
+        catch(Throwable failure)
+        {
+            profiler.record(entry, System.nanoTime() - startNanos, 0, parameters, batchSize, true);
+            span.end(true);
+            batchSize = 0;
+            throw failure;
+        }
+        long executeNanos = System.nanoTime() - startNanos;
+        if(result instanceof ResultSet)
+            return ProfiledResultSet.wrap((ResultSet)result, this, executeNanos, span);
+        long rows = 0;
+        if(result instanceof int[])
+        {
+            for(int count : (int[])result)
+            {
+                rows += Math.max(0, count);
+            }
+            span.tag("db.batch_size", batchSize);
+        }
+        else if(result instanceof Number)
+        {
+            rows = ((Number)result).longValue();
+        }
+        profiler.record(entry, executeNanos, rows, parameters, batchSize, false);
+        span.tag("db.rows", rows).end(false);
+        batchSize = 0;
+        return result;
+    }
+
+    private void bind(int index, Object value)
+    {
+        if(index > parameters.length)
+            parameters = Arrays.copyOf(parameters, index);
+        parameters[index - 1] = value;
+    }
+
+    private static Object call(Object target, Method method, Object[] args) throws Throwable
+    {
+        try
+        {
+            return method.invoke(target, args);
+        }
+        catch(InvocationTargetException ite)
+        {
+            throw ite.getCause();
+        }
+    }
+
+    private static final class ProfiledResultSet implements InvocationHandler
+    {
+        private final ResultSet result;
+        private final ProfiledStatement statement;
+        private final Span span;
+        private long nanos;
+        private long rows;
+        private boolean failed;
+        private boolean recorded;
+
+        private ProfiledResultSet(ResultSet result, ProfiledStatement statement, long executeNanos, Span span)
+        {
+            this.result = result;
+            this.statement = statement;
+            this.nanos = executeNanos;
+            this.span = span;
+        }
+
+        static ResultSet wrap(ResultSet result, ProfiledStatement statement, long executeNanos, Span span)
+        {
+            return (ResultSet)Proxy.newProxyInstance(ResultSet.class.getClassLoader(), new Class<?>[] {ResultSet.class},
+                                                     new ProfiledResultSet(result, statement, executeNanos, span));
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+        {
+            String name = method.getName();
+            if(name.equals("next"))
+            {
+                long startNanos = System.nanoTime();
+                try
+                {
+                    Object hasRow = call(result, method, args);
+                    if(Boolean.TRUE.equals(hasRow))
+                        rows++;
+                    return hasRow;
+                }
+                catch(Throwable failure)
+                {
+                    failed = true;
+                    throw failure;
+                }
+                finally
+                {
+                    nanos += System.nanoTime() - startNanos;
+                }
+            }
+            if(name.equals("close") && !recorded)
+            {
+                recorded = true;
+                statement.profiler.record(statement.entry, nanos, rows, statement.parameters, 0, failed);
+                span.tag("db.rows", rows).end(failed);
+            }
+            return call(result, method, args);
+        }
+    }
+}
@@ -0,0 +1,332 @@
+package se.kth.iv1351.bankjdbc.integration;
+
+import java.lang.System.Logger;
+import java.lang.System.Logger.Level;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.YearMonth;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps the monthly partitions of terminated rental agreements, created by the
+ * <code>V5</code> migration, in step with the calendar. Each run
+ * <ul>
+ * <li>moves rows that landed in the default partition, because their month had no
+ * partition, to a new partition of their own month,</li>
+ * <li>creates the partitions of the current month and of the
+ * <code>soundgood.db.partitions.monthsAhead</code> months after it (3 by default),</li>
+ * <li>moves the partitions of months more than <code>soundgood.db.partitions.archiveAfterMonths</code>
+ * months back to the <code>rental_archive</code> schema, where they are no longer part
+ * of the table but can be dumped or dropped. 0, the default, keeps every month.</li>
+ * </ul>
+ * A run is one transaction. The table of terminated agreements is locked against other
+ * runs, and a run gives up rather than wait more than a few seconds for the lock that
+ * adding or removing a partition needs, so that it does not hold up the queries queued
+ * behind it. The next run tries again. Runs are made when the DAO starts and then every
+ * <code>soundgood.db.partitions.intervalHours</code> hours (24 by default).
+ *
+ * The partitions that are created and archived are logged through the <code>System.Logger</code>
+ * named after this class. A failed run when the DAO starts fails the DAO, like a failed
+ * migration. A failed scheduled run is logged as a warning and counted, the count is
+ * exported by the metrics server, since the default partition takes the rows of any month
+ * that is missing until the next run succeeds.
+ */
+class RentalPartitionMaintenance
+{
+    private static final String PROPERTY_PREFIX = "soundgood.db.partitions.";
+    private static final String TERMINATED_TABLE_NAME = "rental_terminated";
+    private static final String DEFAULT_PARTITION_NAME = TERMINATED_TABLE_NAME + "_default";
+    private static final String DETACHED_DEFAULT_NAME = DEFAULT_PARTITION_NAME + "_detached";
+    private static final String PARTITION_NAME_PREFIX = TERMINATED_TABLE_NAME + "_";
+    private static final DateTimeFormatter PARTITION_NAME_SUFFIX = DateTimeFormatter.ofPattern("uuuu_MM");
+    private static final String ARCHIVE_SCHEMA_NAME = "rental_archive";
+
+    private static final String IS_PARTITIONED_SQL = "SELECT to_regclass('" + TERMINATED_TABLE_NAME + "') IS NOT NULL";
+    private static final String LOCK_TIMEOUT_SQL = "SET LOCAL lock_timeout = '5s'";
+    private static final String LOCK_TERMINATED_TABLE_SQL = "LOCK TABLE " + TERMINATED_TABLE_NAME + " IN SHARE UPDATE EXCLUSIVE MODE";
+    private static final String LIST_PARTITIONS_SQL = "SELECT c.relname FROM pg_inherits i JOIN pg_class c ON c.oid = i.inhrelid"
+        + " WHERE i.inhparent = '" + TERMINATED_TABLE_NAME + "'::regclass";
+    private static final String LIST_ARCHIVED_SQL = "SELECT tablename FROM pg_tables WHERE schemaname = '" + ARCHIVE_SCHEMA_NAME + "'";
+    private static final String LIST_DEFAULT_MONTHS_SQL = "SELECT DISTINCT to_char(start_date, 'YYYY_MM') FROM " + DEFAULT_PARTITION_NAME
+        + " WHERE start_date IS NOT NULL";
+
+    private static final Logger LOGGER = System.getLogger(RentalPartitionMaintenance.class.getName());
+
+    private final ConnectionPool pool;
+    private final int monthsAhead;
+    private final int archiveAfterMonths;
+    private final long intervalHours;
+    private final LongAdder failures = new LongAdder();
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * Creates a new maintenance, configured by the system properties <code>soundgood.db.partitions.monthsAhead</code>,
+     * <code>soundgood.db.partitions.archiveAfterMonths</code> and <code>soundgood.db.partitions.intervalHours</code>.
+     *
+     * @param pool The primary's pool.
+     */
+    RentalPartitionMaintenance(ConnectionPool pool)
+    {
+        this(pool, Integer.parseInt(System.getProperty(PROPERTY_PREFIX + "monthsAhead", "3")),
+             Integer.parseInt(System.getProperty(PROPERTY_PREFIX + "archiveAfterMonths", "0")),
+             Long.parseLong(System.getProperty(PROPERTY_PREFIX + "intervalHours", "24")));
+    }
+
+    /**
+     * Creates a new maintenance.
+     *
+     * @param pool               The primary's pool.
+     * @param monthsAhead        The number of months after the current one that have a partition.
+     * @param archiveAfterMonths The number of months before the current one that are kept in
+     *                           the table, 0 keeps every month.
+     * @param intervalHours      The time between runs, 0 or less runs only when started.
+     */
+    RentalPartitionMaintenance(ConnectionPool pool, int monthsAhead, int archiveAfterMonths, long intervalHours)
+    {
+        this.pool = pool;
+        this.monthsAhead = monthsAhead;
+        this.archiveAfterMonths = archiveAfterMonths;
+        this.intervalHours = intervalHours;
+    }
+
+    /**
+     * Makes a run now, and schedules the following runs if it succeeded.
+     *
+     * @throws BankDBException If the first run failed. No runs are scheduled then.
+     */
+    void start() throws BankDBException
+    {
+        log(run());
+        if(intervalHours <= 0)
+            return;
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "rental-partition-maintenance");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::runScheduled, intervalHours, intervalHours, TimeUnit.HOURS);
+    }
+
+    /**
+     * @return The number of scheduled runs that have failed.
+     */
+    long getFailures()
+    {
+        return failures.sum();
+    }
+
+    /**
+     * Stops the scheduled runs. A run that has started is finished.
+     */
+    void close()
+    {
+        if(scheduler != null)
+            scheduler.shutdown();
+    }
+
+    /**
+     * Brings the partitions up to date.
+     *
+     * @return One line for each partition that was created or archived, empty if none
+     *         was, or if the table is not partitioned.
+     * @throws BankDBException If the partitions could not be changed. Nothing is changed then.
+     */
+    List<String> run() throws BankDBException
+    {
+        List<String> changes = new ArrayList<>();
+        Connection connection = null;
+        try
+        {
+            connection = pool.borrow();
+            if(!isPartitioned(connection))
+            {
+                connection.commit();
+                return changes;
+            }
+            execute(connection, LOCK_TIMEOUT_SQL);
+            execute(connection, LOCK_TERMINATED_TABLE_SQL);
+            SortedSet<YearMonth> months = readMonths(connection, LIST_PARTITIONS_SQL);
+            moveDefaultRows(connection, months, changes);
+            YearMonth current = YearMonth.now();
+            for(YearMonth month = current; !month.isAfter(current.plusMonths(monthsAhead)); month = month.plusMonths(1))
+            {
+                if(months.add(month))
+                    createPartition(connection, month, changes);
+            }
+            if(archiveAfterMonths > 0)
+                archive(connection, months.headSet(current.minusMonths(archiveAfterMonths)), changes);
+            connection.commit();
+            return changes;
+        }
+        catch(SQLException sqlE)
+        {
+            rollback(connection);
+            throw new BankDBException("Could not maintain the rental agreement partitions.", sqlE);
+        }
+        finally
+        {
+            pool.release(connection);
+        }
+    }
+
+    /**
+     * A scheduled run has no caller to throw to, and an exception would cancel the
+     * following runs, so a failure is logged and counted instead.
+     */
+    private void runScheduled()
+    {
+        try
+        {
+            log(run());
+        }
+        catch(BankDBException | RuntimeException e)
+        {
+            failures.increment();
+            LOGGER.log(Level.WARNING, "Rental partition maintenance failed, the next run tries again", e);
+        }
+    }
+
+    private void log(List<String> changes)
+    {
+        for(String change : changes)
+        {
+            LOGGER.log(Level.INFO, "Rental partitions: " + change);
+        }
+    }
+
+    /**
+     * Rows only land in the default partition if their month has no partition. The default
+     * partition is replaced by an empty one, the missing months are created, and the rows
+     * are inserted again, so that each row is read once however many months it covers.
+     */
+    private void moveDefaultRows(Connection connection, SortedSet<YearMonth> months, List<String> changes) throws SQLException
+    {
+        SortedSet<YearMonth> missing = readMonths(connection, LIST_DEFAULT_MONTHS_SQL);
+        if(missing.isEmpty())
+            return;
+        execute(connection, "ALTER TABLE " + TERMINATED_TABLE_NAME + " DETACH PARTITION " + DEFAULT_PARTITION_NAME);
+        execute(connection, "ALTER TABLE " + DEFAULT_PARTITION_NAME + " RENAME TO " + DETACHED_DEFAULT_NAME);
+        execute(connection, "CREATE TABLE " + DEFAULT_PARTITION_NAME + " PARTITION OF " + TERMINATED_TABLE_NAME + " DEFAULT");
+        for(YearMonth month : missing)
+        {
+            if(months.add(month))
+                createPartition(connection, month, changes);
+        }
+        int moved = execute(connection, "INSERT INTO " + TERMINATED_TABLE_NAME + " SELECT * FROM " + DETACHED_DEFAULT_NAME);
+        execute(connection, "DROP TABLE " + DETACHED_DEFAULT_NAME);
+        execute(connection, "ANALYZE " + TERMINATED_TABLE_NAME);
+        changes.add("moved " + moved + " rows out of " + DEFAULT_PARTITION_NAME);
+    }
+
+    private void createPartition(Connection connection, YearMonth month, List<String> changes) throws SQLException
+    {
+        String name = partitionName(month);
+        execute(connection, "CREATE TABLE " + name + " PARTITION OF " + TERMINATED_TABLE_NAME + " FOR VALUES FROM ('"
+                            + month.atDay(1) + "') TO ('" + month.plusMonths(1).atDay(1) + "')");
+        changes.add("created " + name);
+    }
+
+    /**
+     * A month that was archived can get a partition again, if an agreement that started
+     * in that month is terminated after it was archived. Its rows are then added to the
+     * archived table, instead of the partition being moved there.
+     */
+    private void archive(Connection connection, SortedSet<YearMonth> oldMonths, List<String> changes) throws SQLException
+    {
+        if(oldMonths.isEmpty())
+            return;
+        execute(connection, "CREATE SCHEMA IF NOT EXISTS " + ARCHIVE_SCHEMA_NAME);
+        SortedSet<YearMonth> archived = readMonths(connection, LIST_ARCHIVED_SQL);
+        for(YearMonth month : oldMonths)
+        {
+            String name = partitionName(month);
+            execute(connection, "ALTER TABLE " + TERMINATED_TABLE_NAME + " DETACH PARTITION " + name);
+            if(archived.contains(month))
+            {
+                execute(connection, "INSERT INTO " + ARCHIVE_SCHEMA_NAME + "." + name + " SELECT * FROM " + name);
+                execute(connection, "DROP TABLE " + name);
+            }
+            else
+            {
+                execute(connection, "ALTER TABLE " + name + " SET SCHEMA " + ARCHIVE_SCHEMA_NAME);
+            }
+            changes.add("archived " + name + " to " + ARCHIVE_SCHEMA_NAME);
+        }
+    }
+
+    private boolean isPartitioned(Connection connection) throws SQLException
+    {
+        try(Statement statement = connection.createStatement();
+            ResultSet result = statement.executeQuery(IS_PARTITIONED_SQL))
+        {
+            return result.next() && result.getBoolean(1);
+        }
+    }
+
+    /**
+     * Reads table names, or month suffixes, and keeps the months of those that name a
+     * month's partition.
+     */
+    private SortedSet<YearMonth> readMonths(Connection connection, String sql) throws SQLException
+    {
+        SortedSet<YearMonth> months = new TreeSet<>();
+        try(Statement statement = connection.createStatement();
+            ResultSet result = statement.executeQuery(sql))
+        {
+            while(result.next())
+            {
+                String name = result.getString(1);
+                if(name.startsWith(PARTITION_NAME_PREFIX))
+                    name = name.substring(PARTITION_NAME_PREFIX.length());
+                try
+                {
+                    months.add(YearMonth.parse(name, PARTITION_NAME_SUFFIX));
+                }
+                catch(DateTimeParseException notAMonth)
+                {
+                    // The default partition, or a table that is not a month's partition.
+                }
+            }
+        }
+        return months;
+    }
+
+    private static String partitionName(YearMonth month)
+    {
+        return PARTITION_NAME_PREFIX + month.format(PARTITION_NAME_SUFFIX);
+    }
+
+    private int execute(Connection connection, String sql) throws SQLException
+    {
+        try(Statement statement = connection.createStatement())
+        {
+            statement.execute(sql);
+            return Math.max(statement.getUpdateCount(), 0);
+        }
+    }
+
+    private void rollback(Connection connection)
+    {
+        if(connection == null)
+            return;
+        try
+        {
+            connection.rollback();
+        }
+        catch(SQLException sqlE)
+        {
+            // The connection is released right after, which rolls back once more.
+        }
+    }
+}
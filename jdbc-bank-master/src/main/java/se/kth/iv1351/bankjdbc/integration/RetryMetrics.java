@@ -0,0 +1,91 @@
+package se.kth.iv1351.bankjdbc.integration;
+
+/**
+ * A snapshot of the counters of the DAO's retries of transient database failures.
+ */
+public class RetryMetrics
+{
+    private final long connectionRetries;
+    private final long serializationRetries;
+    private final long deadlockRetries;
+    private final long exhausted;
+    private final long overBudget;
+    private final long unsafe;
+
+    RetryMetrics(long connectionRetries, long serializationRetries, long deadlockRetries, long exhausted,
+                 long overBudget, long unsafe)
+    {
+        this.connectionRetries = connectionRetries;
+        this.serializationRetries = serializationRetries;
+        this.deadlockRetries = deadlockRetries;
+        this.exhausted = exhausted;
+        this.overBudget = overBudget;
+        this.unsafe = unsafe;
+    }
+
+    /**
+     * @return The number of retries after a lost or refused connection.
+     */
+    public long getConnectionRetries()
+    {
+        return connectionRetries;
+    }
+
+    /**
+     * @return The number of retries after a serialization failure.
+     */
+    public long getSerializationRetries()
+    {
+        return serializationRetries;
+    }
+
+    /**
+     * @return The number of retries after a deadlock.
+     */
+    public long getDeadlockRetries()
+    {
+        return deadlockRetries;
+    }
+
+    /**
+     * @return The total number of retries.
+     */
+    public long getRetries()
+    {
+        return connectionRetries + serializationRetries + deadlockRetries;
+    }
+
+    /**
+     * @return The number of transient failures that were given up on after the last attempt.
+     */
+    public long getExhausted()
+    {
+        return exhausted;
+    }
+
+    /**
+     * @return The number of transient failures that were not retried because the retry budget was used up.
+     */
+    public long getOverBudget()
+    {
+        return overBudget;
+    }
+
+    /**
+     * @return The number of transient failures that were not retried because the operation
+     *         might already have taken effect.
+     */
+    public long getUnsafe()
+    {
+        return unsafe;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("retries: %d (connection: %d, serialization: %d, deadlock: %d), exhausted: %d, "
+                             + "over budget: %d, unsafe: %d",
+                             getRetries(), connectionRetries, serializationRetries, deadlockRetries, exhausted,
+                             overBudget, unsafe);
+    }
+}
@@ -0,0 +1,196 @@
+package se.kth.iv1351.bankjdbc.integration;
+
+import java.sql.SQLException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Decides whether a failed unit of work is run again. Only transient failures are
+ * retried: a lost or refused connection (SQLState class 08), a serialization failure
+ * (40001) and a deadlock (40P01). A unit that only reads can always be run again. A
+ * unit that writes is only run again if it failed before it started to commit. If the
+ * connection was lost during the commit, the write may or may not have been stored,
+ * and running it again could store it twice. A unit that writes a batch at a time can
+ * instead be resumed, with only the items it had not committed.
+ *
+ * Before each new attempt the caller waits a random time, up to a limit that doubles
+ * with every attempt, so that clients that failed together do not retry together. The
+ * number of retries per second is limited by a budget, so that a database that is
+ * down is not flooded by retries from every caller.
+ */
+class RetryPolicy
+{
+    private static final String PROPERTY_PREFIX = "soundgood.db.retry.";
+    private static final String CONNECTION_EXCEPTION_CLASS = "08";
+    private static final String SERIALIZATION_FAILURE = "40001";
+    private static final String DEADLOCK_DETECTED = "40P01";
+
+    private final int maxAttempts;
+    private final long baseBackoffMillis;
+    private final long maxBackoffMillis;
+    private final int budgetPerSecond;
+
+    private final AtomicLong budgetWindowStart = new AtomicLong(System.nanoTime());
+    private final AtomicInteger budgetUsed = new AtomicInteger();
+
+    private final LongAdder connectionRetries = new LongAdder();
+    private final LongAdder serializationRetries = new LongAdder();
+    private final LongAdder deadlockRetries = new LongAdder();
+    private final LongAdder exhausted = new LongAdder();
+    private final LongAdder overBudget = new LongAdder();
+    private final LongAdder unsafe = new LongAdder();
+
+    /**
+     * Creates a new policy, configured by the system properties <code>soundgood.db.retry.maxAttempts</code>,
+     * <code>soundgood.db.retry.baseBackoffMillis</code>, <code>soundgood.db.retry.maxBackoffMillis</code>
+     * and <code>soundgood.db.retry.budgetPerSecond</code>.
+     */
+    RetryPolicy()
+    {
+        this(Integer.parseInt(System.getProperty(PROPERTY_PREFIX + "maxAttempts", "4")),
+             Long.parseLong(System.getProperty(PROPERTY_PREFIX + "baseBackoffMillis", "50")),
+             Long.parseLong(System.getProperty(PROPERTY_PREFIX + "maxBackoffMillis", "2000")),
+             Integer.parseInt(System.getProperty(PROPERTY_PREFIX + "budgetPerSecond", "100")));
+    }
+
+    /**
+     * Creates a new policy.
+     *
+     * @param maxAttempts       The largest number of times a unit is run, 1 turns retries off.
+     * @param baseBackoffMillis The longest wait before the first retry.
+     * @param maxBackoffMillis  The longest wait before any retry.
+     * @param budgetPerSecond   The largest number of retries per second, over all callers.
+     */
+    RetryPolicy(int maxAttempts, long baseBackoffMillis, long maxBackoffMillis, int budgetPerSecond)
+    {
+        this.maxAttempts = maxAttempts;
+        this.baseBackoffMillis = baseBackoffMillis;
+        this.maxBackoffMillis = maxBackoffMillis;
+        this.budgetPerSecond = budgetPerSecond;
+    }
+
+    /**
+     * Tells whether a failed unit of work is run again. A unit whose connection was lost
+     * is marked as broken, so that the connection is closed instead of being pooled.
+     *
+     * @param failure    Why the unit failed.
+     * @param attempt    The number of the attempt that failed, starting at 1.
+     * @param work       The unit that failed, <code>null</code> if no connection could be borrowed.
+     * @param repeatable <code>false</code> if running the unit again would repeat something
+     *                   the caller has already seen, such as rows passed to a callback.
+     * @return <code>true</code> if the unit should be run again, after <code>pause</code>.
+     */
+    boolean shouldRetry(SQLException failure, int attempt, UnitOfWork work, boolean repeatable)
+    {
+        return retry(failure, attempt, work, repeatable && (work == null || work.mayRunAgain()));
+    }
+
+    /**
+     * Tells whether the part of a failed unit of work that it had not committed is run
+     * again, in a new unit. Unlike <code>shouldRetry</code>, the unit may already have
+     * committed, since the caller leaves out what was committed, and also what was being
+     * committed when the unit failed.
+     *
+     * @param failure Why the unit failed.
+     * @param attempt The number of the attempt that failed, starting at 1.
+     * @param work    The unit that failed, <code>null</code> if no connection could be borrowed.
+     * @return <code>true</code> if the rest of the unit should be run, after <code>pause</code>.
+     */
+    boolean shouldResume(SQLException failure, int attempt, UnitOfWork work)
+    {
+        return retry(failure, attempt, work, true);
+    }
+
+    private boolean retry(SQLException failure, int attempt, UnitOfWork work, boolean safe)
+    {
+        String sqlState = transientState(failure);
+        if(sqlState == null)
+            return false;
+        boolean connectionLost = sqlState.startsWith(CONNECTION_EXCEPTION_CLASS);
+        if(connectionLost && work != null)
+            work.markBroken();
+        if(!safe)
+        {
+            unsafe.increment();
+            return false;
+        }
+        if(attempt >= maxAttempts)
+        {
+            exhausted.increment();
+            return false;
+        }
+        if(!takeFromBudget())
+        {
+            overBudget.increment();
+            return false;
+        }
+        if(connectionLost)
+            connectionRetries.increment();
+        else if(SERIALIZATION_FAILURE.equals(sqlState))
+            serializationRetries.increment();
+        else
+            deadlockRetries.increment();
+        return true;
+    }
+
+    /**
+     * Waits before the specified attempt. Nothing happens before the first attempt.
+     *
+     * @param attempt The number of the attempt about to be made, starting at 1.
+     */
+    void pause(int attempt)
+    {
+        if(attempt <= 1)
+            return;
+        long limit = Math.min(maxBackoffMillis, baseBackoffMillis << Math.min(attempt - 2, 20));
+        try
+        {
+            Thread.sleep(ThreadLocalRandom.current().nextLong(limit + 1));
+        }
+        catch(InterruptedException ie)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return A snapshot of the retry counters.
+     */
+    RetryMetrics getMetrics()
+    {
+        return new RetryMetrics(connectionRetries.sum(), serializationRetries.sum(), deadlockRetries.sum(),
+                                exhausted.sum(), overBudget.sum(), unsafe.sum());
+    }
+
+    /**
+     * @return The SQLState of the first transient failure in the chain of exceptions,
+     *         or <code>null</code> if there is none.
+     */
+    private String transientState(SQLException failure)
+    {
+        for(Throwable cause = failure; cause != null; cause = cause.getCause())
+        {
+            if(!(cause instanceof SQLException))
+                continue;
+            for(SQLException next = (SQLException)cause; next != null; next = next.getNextException())
+            {
+                String sqlState = next.getSQLState();
+                if(sqlState != null && (sqlState.startsWith(CONNECTION_EXCEPTION_CLASS)
+                                        || SERIALIZATION_FAILURE.equals(sqlState) || DEADLOCK_DETECTED.equals(sqlState)))
+                    return sqlState;
+            }
+        }
+        return null;
+    }
+
+    private boolean takeFromBudget()
+    {
+        long now = System.nanoTime();
+        long windowStart = budgetWindowStart.get();
+        if(now - windowStart >= 1_000_000_000L && budgetWindowStart.compareAndSet(windowStart, now))
+            budgetUsed.set(0);
+        return budgetUsed.incrementAndGet() <= budgetPerSecond;
+    }
+}
@@ -0,0 +1,134 @@
+package se.kth.iv1351.bankjdbc.integration;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Brings the database schema up to the version this application expects. Each
+ * migration is a SQL script in <code>db/migration</code> on the class path, named
+ * <code>V&lt;version&gt;__&lt;description&gt;.sql</code>. The versions that have been
+ * applied are recorded in the <code>schema_version</code> table, and each pending
+ * migration is applied in its own transaction. The version table is locked while
+ * migrating, so several instances of the application can start at the same time.
+ */
+class SchemaMigrator
+{
+    private static final String MIGRATION_DIRECTORY = "/db/migration/";
+    private static final String[] MIGRATIONS = {
+        "V1__rental_and_catalog_indexes.sql",
+        "V2__free_instruments_by_type_and_id.sql",
+        "V3__stock_aware_availability_indexes.sql",
+        "V4__instrument_availability_summary.sql",
+        "V5__partition_rental_agreements.sql",
+    };
+
+    private static final String VERSION_TABLE_NAME = "schema_version";
+    private static final String CREATE_VERSION_TABLE_SQL = "CREATE TABLE IF NOT EXISTS " + VERSION_TABLE_NAME
+        + " (version INT NOT NULL PRIMARY KEY, description VARCHAR(200) NOT NULL, applied_at TIMESTAMP NOT NULL DEFAULT now())";
+    private static final String LOCK_VERSION_TABLE_SQL = "LOCK TABLE " + VERSION_TABLE_NAME + " IN EXCLUSIVE MODE";
+    private static final String FIND_VERSION_SQL = "SELECT 1 FROM " + VERSION_TABLE_NAME + " WHERE version = ?";
+    private static final String RECORD_VERSION_SQL = "INSERT INTO " + VERSION_TABLE_NAME + " (version, description) VALUES (?, ?)";
+
+    private final ConnectionPool pool;
+
+    SchemaMigrator(ConnectionPool pool)
+    {
+        this.pool = pool;
+    }
+
+    /**
+     * Applies all migrations that have not already been applied, in version order.
+     *
+     * @throws BankDBException If a migration could not be read or applied. Migrations
+     *                         applied before the failing one are kept.
+     */
+    void migrate() throws BankDBException
+    {
+        Connection connection = null;
+        try
+        {
+            connection = pool.borrow();
+            try(Statement statement = connection.createStatement())
+            {
+                statement.execute(CREATE_VERSION_TABLE_SQL);
+            }
+            connection.commit();
+            for(String migration : MIGRATIONS)
+            {
+                applyIfPending(connection, migration);
+            }
+        }
+        catch(SQLException | IOException e)
+        {
+            rollback(connection);
+            throw new BankDBException("Could not migrate the database schema.", e);
+        }
+        finally
+        {
+            pool.release(connection);
+        }
+    }
+
+    private void applyIfPending(Connection connection, String migration) throws SQLException, IOException
+    {
+        int version = Integer.parseInt(migration.substring(1, migration.indexOf("__")));
+        String description = migration.substring(migration.indexOf("__") + 2, migration.lastIndexOf('.')).replace('_', ' ');
+        try(Statement statement = connection.createStatement())
+        {
+            statement.execute(LOCK_VERSION_TABLE_SQL);
+        }
+        try(PreparedStatement findVersionStmt = connection.prepareStatement(FIND_VERSION_SQL))
+        {
+            findVersionStmt.setInt(1, version);
+            try(ResultSet result = findVersionStmt.executeQuery())
+            {
+                if(result.next())
+                {
+                    connection.commit();
+                    return;
+                }
+            }
+        }
+        try(Statement statement = connection.createStatement())
+        {
+            statement.execute(readMigration(migration));
+        }
+        try(PreparedStatement recordVersionStmt = connection.prepareStatement(RECORD_VERSION_SQL))
+        {
+            recordVersionStmt.setInt(1, version);
+            recordVersionStmt.setString(2, description);
+            recordVersionStmt.executeUpdate();
+        }
+        connection.commit();
+    }
+
+    private String readMigration(String migration) throws IOException
+    {
+        try(InputStream in = SchemaMigrator.class.getResourceAsStream(MIGRATION_DIRECTORY + migration))
+        {
+            if(in == null)
+                throw new IOException("Could not find the migration " + migration);
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    private void rollback(Connection connection)
+    {
+        if(connection == null)
+            return;
+        try
+        {
+            connection.rollback();
+        }
+        catch(SQLException sqlE)
+        {
+            // The connection is released right after, which rolls back once more.
+        }
+    }
+}
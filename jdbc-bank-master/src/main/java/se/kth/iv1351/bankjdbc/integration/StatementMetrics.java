@@ -0,0 +1,95 @@
+package se.kth.iv1351.bankjdbc.integration;
+
+/**
+ * A snapshot of the prepared statement counters of a connection pool, taken when
+ * <code>ConnectionPool.getStatementMetrics()</code> was called. A call is cold if it
+ * had to prepare a statement on its connection, and warm if all its statements
+ * were already prepared.
+ */
+public class StatementMetrics
+{
+    private final long prepared;
+    private final long reused;
+    private final long totalPrepareNanos;
+    private final long coldCalls;
+    private final long totalColdNanos;
+    private final long warmCalls;
+    private final long totalWarmNanos;
+
+    StatementMetrics(long prepared, long reused, long totalPrepareNanos, long coldCalls, long totalColdNanos,
+                     long warmCalls, long totalWarmNanos)
+    {
+        this.prepared = prepared;
+        this.reused = reused;
+        this.totalPrepareNanos = totalPrepareNanos;
+        this.coldCalls = coldCalls;
+        this.totalColdNanos = totalColdNanos;
+        this.warmCalls = warmCalls;
+        this.totalWarmNanos = totalWarmNanos;
+    }
+
+    /**
+     * @return The number of statements prepared, over all connections.
+     */
+    public long getPrepared()
+    {
+        return prepared;
+    }
+
+    /**
+     * @return The number of times an already prepared statement was used again.
+     */
+    public long getReused()
+    {
+        return reused;
+    }
+
+    /**
+     * @return The average time it took to prepare a statement, in milliseconds.
+     */
+    public double getAveragePrepareMillis()
+    {
+        return prepared == 0 ? 0 : totalPrepareNanos / (prepared * 1_000_000.0);
+    }
+
+    /**
+     * @return The number of calls that prepared at least one statement.
+     */
+    public long getColdCalls()
+    {
+        return coldCalls;
+    }
+
+    /**
+     * @return The average time of a call that prepared at least one statement, in milliseconds.
+     */
+    public double getAverageColdCallMillis()
+    {
+        return coldCalls == 0 ? 0 : totalColdNanos / (coldCalls * 1_000_000.0);
+    }
+
+    /**
+     * @return The number of calls that only used statements that were already prepared.
+     */
+    public long getWarmCalls()
+    {
+        return warmCalls;
+    }
+
+    /**
+     * @return The average time of a call that only used already prepared statements, in milliseconds.
+     */
+    public double getAverageWarmCallMillis()
+    {
+        return warmCalls == 0 ? 0 : totalWarmNanos / (warmCalls * 1_000_000.0);
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("prepared: %d, reused: %d, avg prepare: %.3f ms, cold calls: %d, avg cold call: %.3f ms, "
+                             + "warm calls: %d, avg warm call: %.3f ms",
+                             prepared, reused, getAveragePrepareMillis(), coldCalls, getAverageColdCallMillis(),
+                             warmCalls, getAverageWarmCallMillis());
+    }
+}
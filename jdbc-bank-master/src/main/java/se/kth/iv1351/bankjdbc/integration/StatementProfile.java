@@ -0,0 +1,111 @@
+package se.kth.iv1351.bankjdbc.integration;
+
+/**
+ * A snapshot of how often one SQL statement has run and how long it took, taken when
+ * <code>BankDAO.getStatementProfiles()</code> was called. The time of a query includes
+ * fetching its rows, but not what the caller did with each row.
+ */
+public class StatementProfile
+{
+    private final String sql;
+    private final long calls;
+    private final long errors;
+    private final long rows;
+    private final long totalNanos;
+    private final long maxNanos;
+    private final long slowCalls;
+    private final String slowestParameters;
+
+    StatementProfile(String sql, long calls, long errors, long rows, long totalNanos, long maxNanos, long slowCalls,
+                     String slowestParameters)
+    {
+        this.sql = sql;
+        this.calls = calls;
+        this.errors = errors;
+        this.rows = rows;
+        this.totalNanos = totalNanos;
+        this.maxNanos = maxNanos;
+        this.slowCalls = slowCalls;
+        this.slowestParameters = slowestParameters;
+    }
+
+    /**
+     * @return The statement, as it was prepared.
+     */
+    public String getSql()
+    {
+        return sql;
+    }
+
+    /**
+     * @return The number of executions, failed or not.
+     */
+    public long getCalls()
+    {
+        return calls;
+    }
+
+    /**
+     * @return The number of executions that failed.
+     */
+    public long getErrors()
+    {
+        return errors;
+    }
+
+    /**
+     * @return The number of rows read by queries or written by updates, over all executions.
+     */
+    public long getRows()
+    {
+        return rows;
+    }
+
+    /**
+     * @return The time of all executions, in milliseconds.
+     */
+    public double getTotalMillis()
+    {
+        return totalNanos / 1e6;
+    }
+
+    /**
+     * @return The average time of an execution, in milliseconds.
+     */
+    public double getMeanMillis()
+    {
+        return calls == 0 ? 0 : totalNanos / (calls * 1e6);
+    }
+
+    /**
+     * @return The longest execution, in milliseconds.
+     */
+    public double getMaxMillis()
+    {
+        return maxNanos / 1e6;
+    }
+
+    /**
+     * @return The number of executions that were slower than the slow-query threshold.
+     */
+    public long getSlowCalls()
+    {
+        return slowCalls;
+    }
+
+    /**
+     * @return The parameters of the slowest execution, redacted if so configured, or
+     *         <code>null</code> if the statement has not run.
+     */
+    public String getSlowestParameters()
+    {
+        return slowestParameters;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("calls: %d, errors: %d, rows: %d, total: %.1f ms, mean: %.3f ms, max: %.3f ms, slow: %d",
+                             calls, errors, rows, getTotalMillis(), getMeanMillis(), getMaxMillis(), slowCalls);
+    }
+}
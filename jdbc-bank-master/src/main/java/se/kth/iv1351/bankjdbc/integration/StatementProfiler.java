@@ -0,0 +1,243 @@
+package se.kth.iv1351.bankjdbc.integration;
+
+import java.lang.System.Logger;
+import java.lang.System.Logger.Level;
+import java.sql.PreparedStatement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import se.kth.iv1351.bankjdbc.tracing.Tracer;
+
+/**
+ * Times every execution of every prepared statement, like <code>pg_stat_statements</code>
+ * does on the server, but measured by the client and without changing the database's
+ * configuration. For each SQL text, the number of executions, failures and rows and the
+ * total and longest time are kept in memory until they are reset.
+ *
+ * An execution that takes longer than <code>soundgood.db.slowQuery.thresholdMillis</code>
+ * (250 by default, a negative value turns the log off) is counted in the statement's
+ * profile, which the metrics server exports, tagged on the current span if the command
+ * is traced, and logged as a warning with its bound parameters through the
+ * <code>System.Logger</code> named after this class. String parameters may be names or
+ * other personal data, so they are redacted unless <code>soundgood.db.slowQuery.redact</code>
+ * is <code>false</code>. Even then, each parameter is cut to a few dozen characters and
+ * only the first parameters of a long list are shown. The parameters of each statement's
+ * slowest execution are kept, so that its plan can be explained later with the same values.
+ */
+class StatementProfiler
+{
+    private static final String PROPERTY_PREFIX = "soundgood.db.slowQuery.";
+    private static final String REDACTED = "'***'";
+    private static final int MAX_PARAMETER_CHARS = 40;
+    private static final int MAX_PARAMETERS = 20;
+    private static final Logger LOGGER = System.getLogger(StatementProfiler.class.getName());
+
+    private final long slowNanos;
+    private final boolean redact;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a new profiler, configured by the system properties
+     * <code>soundgood.db.slowQuery.thresholdMillis</code> and <code>soundgood.db.slowQuery.redact</code>.
+     */
+    StatementProfiler()
+    {
+        this(Long.parseLong(System.getProperty(PROPERTY_PREFIX + "thresholdMillis", "250")),
+             Boolean.parseBoolean(System.getProperty(PROPERTY_PREFIX + "redact", "true")));
+    }
+
+    /**
+     * Creates a new profiler.
+     *
+     * @param slowMillis Executions slower than this are logged, a negative value logs nothing.
+     * @param redact     <code>true</code> if string parameters are left out of the log.
+     */
+    StatementProfiler(long slowMillis, boolean redact)
+    {
+        this.slowNanos = slowMillis < 0 ? Long.MAX_VALUE : TimeUnit.MILLISECONDS.toNanos(slowMillis);
+        this.redact = redact;
+    }
+
+    /**
+     * @param statement A newly prepared statement.
+     * @param sql       The SQL text of the statement.
+     * @return A statement that records every execution of the specified statement.
+     */
+    PreparedStatement wrap(PreparedStatement statement, String sql)
+    {
+        return ProfiledStatement.wrap(statement, this, entries.computeIfAbsent(sql, Entry::new));
+    }
+
+    /**
+     * @return A snapshot of every statement that has run, the one that took the most time
+     *         in total first.
+     */
+    List<StatementProfile> getProfiles()
+    {
+        List<StatementProfile> profiles = new ArrayList<>();
+        for(Entry entry : entries.values())
+        {
+            StatementProfile profile = snapshot(entry);
+            if(profile.getCalls() > 0)
+                profiles.add(profile);
+        }
+        profiles.sort((first, second) -> Double.compare(second.getTotalMillis(), first.getTotalMillis()));
+        return profiles;
+    }
+
+    /**
+     * @param sql A statement that has run.
+     * @return The parameters of the statement's slowest execution, or <code>null</code> if
+     *         the statement has not run since the profiles were last reset.
+     */
+    Object[] getSlowestParameters(String sql)
+    {
+        Entry entry = entries.get(sql);
+        if(entry == null)
+            return null;
+        synchronized(entry)
+        {
+            return entry.slowestParameters;
+        }
+    }
+
+    /**
+     * Starts counting from zero again, for all statements.
+     */
+    void reset()
+    {
+        for(Entry entry : entries.values())
+        {
+            entry.reset();
+        }
+    }
+
+    /**
+     * Records one execution.
+     *
+     * @param entry      The statement that was executed.
+     * @param nanos      How long the execution took, including fetching rows.
+     * @param rows       The number of rows read or written.
+     * @param parameters The bound parameters, the array is copied if it has to be kept.
+     * @param batchSize  The number of parameter sets, if the execution was a batch.
+     * @param failed     <code>true</code> if the execution failed.
+     */
+    void record(Entry entry, long nanos, long rows, Object[] parameters, int batchSize, boolean failed)
+    {
+        entry.calls.increment();
+        entry.totalNanos.add(nanos);
+        entry.rows.add(rows);
+        if(failed)
+            entry.errors.increment();
+        synchronized(entry)
+        {
+            if(nanos > entry.maxNanos)
+            {
+                entry.maxNanos = nanos;
+                entry.slowestParameters = parameters.clone();
+            }
+        }
+        if(nanos > slowNanos)
+        {
+            entry.slowCalls.increment();
+            String formattedParameters = format(parameters);
+            Tracer.current().tag("db.slow_statement", entry.displaySql).tag("db.slow_statement.millis", nanos / 1e6)
+                .tag("db.slow_statement.parameters", formattedParameters);
+            if(LOGGER.isLoggable(Level.WARNING))
+                LOGGER.log(Level.WARNING, String.format("Slow statement (%.1f ms, %d rows%s%s): %s parameters: %s", nanos / 1e6, rows,
+                                                        batchSize > 0 ? ", batch of " + batchSize : "", failed ? ", failed" : "",
+                                                        entry.displaySql, formattedParameters));
+        }
+    }
+
+    private StatementProfile snapshot(Entry entry)
+    {
+        long maxNanos;
+        Object[] slowestParameters;
+        synchronized(entry)
+        {
+            maxNanos = entry.maxNanos;
+            slowestParameters = entry.slowestParameters;
+        }
+        return new StatementProfile(entry.sql, entry.calls.sum(), entry.errors.sum(), entry.rows.sum(),
+                                    entry.totalNanos.sum(), maxNanos, entry.slowCalls.sum(),
+                                    slowestParameters == null ? null : format(slowestParameters));
+    }
+
+    private String format(Object[] parameters)
+    {
+        if(parameters == null)
+            return "[]";
+        StringBuilder formatted = new StringBuilder("[");
+        int shown = Math.min(parameters.length, MAX_PARAMETERS);
+        for(int i = 0; i < shown; i++)
+        {
+            if(i > 0)
+                formatted.append(", ");
+            Object parameter = parameters[i];
+            if(parameter == null)
+                formatted.append("NULL");
+            else if(parameter instanceof String)
+                formatted.append(redact ? REDACTED : "'" + truncate(parameter) + "'");
+            else
+                formatted.append(truncate(parameter));
+        }
+        if(shown < parameters.length)
+            formatted.append(", ... ").append(parameters.length - shown).append(" more");
+        return formatted.append(']').toString();
+    }
+
+    private static String truncate(Object parameter)
+    {
+        String text = String.valueOf(parameter);
+        return text.length() <= MAX_PARAMETER_CHARS ? text : text.substring(0, MAX_PARAMETER_CHARS) + "...";
+    }
+
+    /**
+     * The counters of one SQL text, shared by the statements prepared for it on every connection.
+     */
+    static class Entry
+    {
+        private final String sql;
+        private final String displaySql;
+        private final LongAdder calls = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+        private final LongAdder rows = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final LongAdder slowCalls = new LongAdder();
+        private long maxNanos;
+        private Object[] slowestParameters;
+
+        private Entry(String sql)
+        {
+            this.sql = sql;
+            this.displaySql = sql.replaceAll("\\s+", " ").trim();
+        }
+
+        /**
+         * @return The SQL text on one line.
+         */
+        String getDisplaySql()
+        {
+            return displaySql;
+        }
+
+        private void reset()
+        {
+            calls.reset();
+            errors.reset();
+            rows.reset();
+            totalNanos.reset();
+            slowCalls.reset();
+            synchronized(this)
+            {
+                maxNanos = 0;
+                slowestParameters = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package se.kth.iv1351.bankjdbc.integration;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The prepared statements of one pooled connection. A statement is prepared the first
+ * time it is used on the connection and then handed out again to every later unit of
+ * work that runs the same SQL on that connection, so only the statements a session
+ * actually runs are ever prepared. The registry lives and dies with its connection.
+ * When a broken connection is thrown away, its statements go with it, and the
+ * connection that replaces it prepares them again on first use.
+ *
+ * Every statement is wrapped by the pool's <code>StatementProfiler</code>, so that its
+ * executions are timed.
+ *
+ * A connection is only used by one thread at a time, so the registry is not thread safe.
+ * The counters are shared by all registries of a pool.
+ */
+class StatementRegistry
+{
+    private final Connection connection;
+    private final Counters counters;
+    private final StatementProfiler profiler;
+    private final Map<String, PreparedStatement> statements = new HashMap<>();
+    private int prepared;
+
+    StatementRegistry(Connection connection, Counters counters, StatementProfiler profiler)
+    {
+        this.connection = connection;
+        this.counters = counters;
+        this.profiler = profiler;
+    }
+
+    /**
+     * Returns the statement for the specified SQL, preparing it if this connection has
+     * not prepared it before. The statement must not be closed by the caller.
+     *
+     * @param sql       The statement.
+     * @param fetchSize The number of rows fetched in each round trip, 0 to fetch all rows at once.
+     * @return The prepared statement.
+     */
+    PreparedStatement prepare(String sql, int fetchSize) throws SQLException
+    {
+        PreparedStatement statement = statements.get(sql);
+        if(statement == null || statement.isClosed())
+        {
+            long start = System.nanoTime();
+            statement = profiler.wrap(connection.prepareStatement(sql), sql);
+            counters.prepared.increment();
+            counters.prepareNanos.add(System.nanoTime() - start);
+            statements.put(sql, statement);
+            prepared++;
+        }
+        else
+        {
+            counters.reused.increment();
+        }
+        statement.setFetchSize(fetchSize);
+        return statement;
+    }
+
+    /**
+     * @return The number of statements this registry has prepared, used to tell whether a
+     *         unit of work had to prepare any.
+     */
+    int preparedCount()
+    {
+        return prepared;
+    }
+
+    /**
+     * Records how long a unit of work that used this connection took.
+     *
+     * @param nanos The duration of the unit.
+     * @param cold  <code>true</code> if the unit prepared at least one statement.
+     */
+    void recordUnit(long nanos, boolean cold)
+    {
+        if(cold)
+        {
+            counters.coldUnits.increment();
+            counters.coldNanos.add(nanos);
+        }
+        else
+        {
+            counters.warmUnits.increment();
+            counters.warmNanos.add(nanos);
+        }
+    }
+
+    /**
+     * Closes all statements, called when the connection is closed.
+     */
+    void close()
+    {
+        for(PreparedStatement statement : statements.values())
+        {
+            try
+            {
+                statement.close();
+            }
+            catch(SQLException sqlE)
+            {
+                // The connection is closed right after, which releases the statement anyway.
+            }
+        }
+        statements.clear();
+    }
+
+    /**
+     * The counters of all registries in one pool.
+     */
+    static class Counters
+    {
+        private final LongAdder prepared = new LongAdder();
+        private final LongAdder reused = new LongAdder();
+        private final LongAdder prepareNanos = new LongAdder();
+        private final LongAdder coldUnits = new LongAdder();
+        private final LongAdder coldNanos = new LongAdder();
+        private final LongAdder warmUnits = new LongAdder();
+        private final LongAdder warmNanos = new LongAdder();
+
+        StatementMetrics snapshot()
+        {
+            return new StatementMetrics(prepared.sum(), reused.sum(), prepareNanos.sum(), coldUnits.sum(),
+                                        coldNanos.sum(), warmUnits.sum(), warmNanos.sum());
+        }
+    }
+}
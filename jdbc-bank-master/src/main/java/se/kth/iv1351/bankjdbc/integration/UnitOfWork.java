@@ -0,0 +1,198 @@
+package se.kth.iv1351.bankjdbc.integration;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyManager;
+
+/**
+ * One business operation's use of a pooled connection. A read-only unit runs each
+ * statement in auto commit mode with the connection marked read only, so a lookup
+ * costs one round trip and never leaves a transaction open. A read-write unit runs
+ * all its statements in one transaction, that is committed once with
+ * <code>commit</code>. Every unit must be ended with <code>end</code>, which gives
+ * back the connection and rolls back anything that was not committed.
+ *
+ * Read-only units may run on a read replica, read-write units always run on the primary.
+ */
+class UnitOfWork
+{
+    private final ConnectionRouter router;
+    private final ConnectionPool pool;
+    private final Connection connection;
+    private final boolean readOnly;
+    private final StatementRegistry statements;
+    private final int preparedBefore;
+    private final long startNanos = System.nanoTime();
+    private boolean commitStarted = false;
+    private boolean broken = false;
+
+    private UnitOfWork(ConnectionRouter router, boolean readOnly) throws SQLException
+    {
+        this.router = router;
+        this.readOnly = readOnly;
+        if(readOnly)
+        {
+            ConnectionRouter.Borrowed borrowed = router.borrowForRead();
+            this.pool = borrowed.pool;
+            this.connection = borrowed.connection;
+        }
+        else
+        {
+            this.pool = router.primary();
+            this.connection = pool.borrow();
+        }
+        try
+        {
+            if(readOnly)
+            {
+                connection.setAutoCommit(true);
+                connection.setReadOnly(true);
+            }
+        }
+        catch(SQLException sqlE)
+        {
+            pool.discard(connection);
+            throw sqlE;
+        }
+        statements = pool.statementsOf(connection);
+        preparedBefore = statements.preparedCount();
+    }
+
+    /**
+     * Starts a unit that only reads.
+     *
+     * @param router Chooses the database to read from.
+     * @return The started unit.
+     * @throws SQLException If no connection could be borrowed.
+     */
+    static UnitOfWork readOnly(ConnectionRouter router) throws SQLException
+    {
+        return new UnitOfWork(router, true);
+    }
+
+    /**
+     * Starts a unit that writes, all its statements run in one transaction on the primary.
+     *
+     * @param router Gives the primary to write to.
+     * @return The started unit.
+     * @throws SQLException If no connection could be borrowed.
+     */
+    static UnitOfWork readWrite(ConnectionRouter router) throws SQLException
+    {
+        return new UnitOfWork(router, false);
+    }
+
+    /**
+     * Returns the connection's statement for the specified SQL, which is prepared the first
+     * time the connection runs it. The statement belongs to the connection and must not be
+     * closed, but its result sets must be. If the calling thread is tracing, each
+     * execution of the statement is recorded as a span.
+     *
+     * @param sql The statement.
+     * @return The prepared statement.
+     */
+    PreparedStatement prepareStatement(String sql) throws SQLException
+    {
+        return statements.prepare(sql, 0);
+    }
+
+    /**
+     * Prepares a statement that is used once and not kept on the connection, such as a
+     * diagnostic query. It is neither profiled nor traced, and the caller must close it.
+     *
+     * @param sql The statement.
+     * @return The prepared statement.
+     */
+    PreparedStatement prepareOnce(String sql) throws SQLException
+    {
+        return connection.prepareStatement(sql);
+    }
+
+    /**
+     * @return The driver's <code>COPY</code> API for the unit's connection. A copy into a
+     *         table is part of the unit's transaction, like any other statement.
+     */
+    CopyManager copyManager() throws SQLException
+    {
+        return connection.unwrap(PGConnection.class).getCopyAPI();
+    }
+
+    /**
+     * Prepares a query whose rows are fetched from the database a few at a time while
+     * they are read, instead of all at once. The driver can only do that inside a
+     * transaction, so a read-only unit starts a read-only transaction, that is rolled
+     * back when the unit ends. Like <code>prepareStatement</code>, the query must not be closed.
+     *
+     * @param sql       The query.
+     * @param fetchSize The number of rows fetched in each round trip.
+     * @return The prepared query.
+     */
+    PreparedStatement prepareCursor(String sql, int fetchSize) throws SQLException
+    {
+        connection.setAutoCommit(false);
+        return statements.prepare(sql, fetchSize);
+    }
+
+    /**
+     * Commits everything done in a read-write unit. Nothing happens in a read-only unit,
+     * where each statement is committed on its own.
+     */
+    void commit() throws SQLException
+    {
+        if(readOnly)
+            return;
+        commitStarted = true;
+        connection.commit();
+        router.wrote();
+    }
+
+    /**
+     * Rolls back everything done in a read-write unit since the last commit. Nothing
+     * happens in a read-only unit.
+     */
+    void rollback() throws SQLException
+    {
+        if(!readOnly)
+            connection.rollback();
+    }
+
+    /**
+     * Tells whether the unit can be run again from the start after it failed. A read-write
+     * unit can not, once it has started to commit, since the commit may have succeeded.
+     *
+     * @return <code>true</code> if running the unit again can not store anything twice.
+     */
+    boolean mayRunAgain()
+    {
+        return readOnly || !commitStarted;
+    }
+
+    /**
+     * Records that the unit's connection was lost, so that it is closed when the unit ends
+     * instead of being given back to the pool.
+     */
+    void markBroken()
+    {
+        broken = true;
+    }
+
+    /**
+     * Gives back the connection of the specified unit, or closes it if it was lost, and
+     * records how long the unit took and whether it had to prepare any statements.
+     *
+     * @param work The unit to end, nothing happens if it is <code>null</code>.
+     */
+    static void end(UnitOfWork work)
+    {
+        if(work == null)
+            return;
+        work.statements.recordUnit(System.nanoTime() - work.startNanos, work.statements.preparedCount() > work.preparedBefore);
+        if(work.broken)
+            work.pool.discard(work.connection);
+        else
+            work.pool.release(work.connection);
+    }
+}
@@ -0,0 +1,106 @@
+package se.kth.iv1351.bankjdbc.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of durations in nanoseconds, laid out like HdrHistogram. Durations below
+ * 32 ns have a bucket each, and every power of two above that is split into 32 buckets
+ * of equal width, so a percentile read from the histogram is never more than about 3 %
+ * larger than the true value, whether it is microseconds or minutes. The histogram has
+ * a fixed size of about 15 kB.
+ *
+ * Recording is lock free and can be done by many threads at once. A percentile read
+ * while durations are recorded may or may not include them.
+ */
+public class LatencyHistogram
+{
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = SUB_BUCKETS + (63 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    /**
+     * @param nanos The duration to record, negative durations are recorded as zero.
+     */
+    public void record(long nanos)
+    {
+        long value = Math.max(0, nanos);
+        counts.incrementAndGet(indexOf(value));
+        count.increment();
+        totalNanos.add(value);
+        maxNanos.accumulateAndGet(value, Math::max);
+    }
+
+    /**
+     * @return The number of recorded durations.
+     */
+    public long getCount()
+    {
+        return count.sum();
+    }
+
+    /**
+     * @return The sum of all recorded durations, in nanoseconds.
+     */
+    public long getTotalNanos()
+    {
+        return totalNanos.sum();
+    }
+
+    /**
+     * @return The longest recorded duration, in nanoseconds.
+     */
+    public long getMaxNanos()
+    {
+        return maxNanos.get();
+    }
+
+    /**
+     * @param percentile The percentile, between 0 and 100.
+     * @return The duration that the specified percentage of the recorded durations are no
+     *         longer than, in nanoseconds, or 0 if nothing has been recorded.
+     */
+    public long getValueAtPercentile(double percentile)
+    {
+        long total = 0;
+        for(int index = 0; index < BUCKETS; index++)
+        {
+            total += counts.get(index);
+        }
+        if(total == 0)
+            return 0;
+        long wanted = Math.max(1, (long)Math.ceil(percentile / 100 * total));
+        long seen = 0;
+        for(int index = 0; index < BUCKETS; index++)
+        {
+            seen += counts.get(index);
+            if(seen >= wanted)
+                return Math.min(highestValueIn(index), getMaxNanos());
+        }
+        return getMaxNanos();
+    }
+
+    private static int indexOf(long value)
+    {
+        if(value < SUB_BUCKETS)
+            return (int)value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int)(value >>> (exponent - SUB_BUCKET_BITS)) - SUB_BUCKETS;
+        return SUB_BUCKETS + (exponent - SUB_BUCKET_BITS) * SUB_BUCKETS + subBucket;
+    }
+
+    private static long highestValueIn(int index)
+    {
+        if(index < SUB_BUCKETS)
+            return index;
+        int exponent = (index - SUB_BUCKETS) / SUB_BUCKETS + SUB_BUCKET_BITS;
+        int subBucket = (index - SUB_BUCKETS) % SUB_BUCKETS;
+        return ((long)(SUB_BUCKETS + subBucket + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+}
@@ -0,0 +1,74 @@
+package se.kth.iv1351.bankjdbc.metrics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The number of calls, the number of failed calls and a latency histogram for each
+ * named operation of one layer, for example each public method of the controller.
+ * Operations are registered the first time they are recorded.
+ */
+public class OperationMetrics
+{
+    private final String layer;
+    private final Map<String, Operation> operations = new ConcurrentHashMap<>();
+
+    /**
+     * @param layer The name of the layer whose operations are recorded, such as <code>controller</code>.
+     */
+    public OperationMetrics(String layer)
+    {
+        this.layer = layer;
+    }
+
+    /**
+     * @return The name of the layer whose operations are recorded.
+     */
+    public String getLayer()
+    {
+        return layer;
+    }
+
+    /**
+     * Records one call of an operation.
+     *
+     * @param operation  The name of the operation.
+     * @param startNanos The value of <code>System.nanoTime()</code> when the call started.
+     * @param failed     <code>true</code> if the call failed.
+     */
+    public void record(String operation, long startNanos, boolean failed)
+    {
+        long nanos = System.nanoTime() - startNanos;
+        Operation recorded = operations.computeIfAbsent(operation, name -> new Operation());
+        recorded.latency.record(nanos);
+        if(failed)
+            recorded.errors.increment();
+    }
+
+    /**
+     * @return A snapshot of each recorded operation, ordered by name.
+     */
+    public List<OperationStats> getStats()
+    {
+        List<OperationStats> stats = new ArrayList<>();
+        for(Map.Entry<String, Operation> entry : operations.entrySet())
+        {
+            LatencyHistogram latency = entry.getValue().latency;
+            stats.add(new OperationStats(layer, entry.getKey(), latency.getCount(), entry.getValue().errors.sum(),
+                                         latency.getTotalNanos(), latency.getValueAtPercentile(50),
+                                         latency.getValueAtPercentile(99), latency.getValueAtPercentile(99.9),
+                                         latency.getMaxNanos()));
+        }
+        stats.sort((first, second) -> first.getOperation().compareTo(second.getOperation()));
+        return stats;
+    }
+
+    private static class Operation
+    {
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private final LongAdder errors = new LongAdder();
+    }
+}
@@ -0,0 +1,109 @@
+package se.kth.iv1351.bankjdbc.metrics;
+
+/**
+ * A snapshot of the counters and latency percentiles of one operation, taken when
+ * <code>OperationMetrics.getStats()</code> was called.
+ */
+public class OperationStats
+{
+    private final String layer;
+    private final String operation;
+    private final long calls;
+    private final long errors;
+    private final long totalNanos;
+    private final long p50Nanos;
+    private final long p99Nanos;
+    private final long p999Nanos;
+    private final long maxNanos;
+
+    OperationStats(String layer, String operation, long calls, long errors, long totalNanos, long p50Nanos,
+                   long p99Nanos, long p999Nanos, long maxNanos)
+    {
+        this.layer = layer;
+        this.operation = operation;
+        this.calls = calls;
+        this.errors = errors;
+        this.totalNanos = totalNanos;
+        this.p50Nanos = p50Nanos;
+        this.p99Nanos = p99Nanos;
+        this.p999Nanos = p999Nanos;
+        this.maxNanos = maxNanos;
+    }
+
+    /**
+     * @return The layer of the operation, such as <code>controller</code> or <code>dao</code>.
+     */
+    public String getLayer()
+    {
+        return layer;
+    }
+
+    public String getOperation()
+    {
+        return operation;
+    }
+
+    /**
+     * @return The number of calls, failed or not.
+     */
+    public long getCalls()
+    {
+        return calls;
+    }
+
+    /**
+     * @return The number of calls that failed.
+     */
+    public long getErrors()
+    {
+        return errors;
+    }
+
+    /**
+     * @return The total time of all calls, in seconds.
+     */
+    public double getTotalSeconds()
+    {
+        return totalNanos / 1e9;
+    }
+
+    /**
+     * @return The median latency, in milliseconds.
+     */
+    public double getP50Millis()
+    {
+        return p50Nanos / 1e6;
+    }
+
+    /**
+     * @return The 99th percentile latency, in milliseconds.
+     */
+    public double getP99Millis()
+    {
+        return p99Nanos / 1e6;
+    }
+
+    /**
+     * @return The 99.9th percentile latency, in milliseconds.
+     */
+    public double getP999Millis()
+    {
+        return p999Nanos / 1e6;
+    }
+
+    /**
+     * @return The longest latency, in milliseconds.
+     */
+    public double getMaxMillis()
+    {
+        return maxNanos / 1e6;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("%s.%s calls: %d, errors: %d, p50: %.3f ms, p99: %.3f ms, p99.9: %.3f ms, max: %.3f ms",
+                             layer, operation, calls, errors, getP50Millis(), getP99Millis(), getP999Millis(),
+                             getMaxMillis());
+    }
+}
@@ -0,0 +1,66 @@
+package se.kth.iv1351.bankjdbc.model;
+
+/**
+ * How many instruments of one type and brand are available for rent, and what they cost.
+ */
+public class AvailabilitySummary
+{
+    private final String type;
+    private final String brand;
+    private final int availableInstruments;
+    private final long freeUnits;
+    private final double minPrice;
+    private final double maxPrice;
+
+    public AvailabilitySummary(String type, String brand, int availableInstruments, long freeUnits, double minPrice, double maxPrice)
+    {
+        this.type = type;
+        this.brand = brand;
+        this.availableInstruments = availableInstruments;
+        this.freeUnits = freeUnits;
+        this.minPrice = minPrice;
+        this.maxPrice = maxPrice;
+    }
+
+    public String getType()
+    {
+        return type;
+    }
+
+    public String getBrand()
+    {
+        return brand;
+    }
+
+    /**
+     * @return The number of instruments with at least one unit that is not rented out.
+     */
+    public int getAvailableInstruments()
+    {
+        return availableInstruments;
+    }
+
+    /**
+     * @return The number of units that are not rented out, summed over all instruments.
+     */
+    public long getFreeUnits()
+    {
+        return freeUnits;
+    }
+
+    /**
+     * @return The lowest price of the available instruments.
+     */
+    public double getMinPrice()
+    {
+        return minPrice;
+    }
+
+    /**
+     * @return The highest price of the available instruments.
+     */
+    public double getMaxPrice()
+    {
+        return maxPrice;
+    }
+}
@@ -0,0 +1,58 @@
+package se.kth.iv1351.bankjdbc.model;
+
+/**
+ * The outcome of one item in a batch operation. A batch is not all or nothing,
+ * each item either succeeds or fails with its own reason.
+ *
+ * @param <T> The type of the items in the batch.
+ */
+public class BatchResult<T>
+{
+    private final T item;
+    private final boolean successful;
+    private final String failureReason;
+
+    private BatchResult(T item, boolean successful, String failureReason)
+    {
+        this.item = item;
+        this.successful = successful;
+        this.failureReason = failureReason;
+    }
+
+    /**
+     * @param item The item that was handled.
+     * @return A result telling that the item was handled successfully.
+     */
+    public static <T> BatchResult<T> success(T item)
+    {
+        return new BatchResult<>(item, true, null);
+    }
+
+    /**
+     * @param item   The item that could not be handled.
+     * @param reason Why the item could not be handled.
+     * @return A result telling that the item could not be handled.
+     */
+    public static <T> BatchResult<T> failure(T item, String reason)
+    {
+        return new BatchResult<>(item, false, reason);
+    }
+
+    public T getItem()
+    {
+        return item;
+    }
+
+    public boolean isSuccessful()
+    {
+        return successful;
+    }
+
+    /**
+     * @return Why the item could not be handled, or <code>null</code> if it was handled successfully.
+     */
+    public String getFailureReason()
+    {
+        return failureReason;
+    }
+}
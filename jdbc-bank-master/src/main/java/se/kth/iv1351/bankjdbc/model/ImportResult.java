@@ -0,0 +1,110 @@
+package se.kth.iv1351.bankjdbc.model;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The outcome of a bulk import. Rows that break a constraint of the table are rejected
+ * one by one and do not stop the import. If the database refuses a chunk, the chunks
+ * committed before it stay imported and the import stops.
+ */
+public class ImportResult
+{
+    private final String table;
+    private final long rowsRead;
+    private final long rowsImported;
+    private final long rowsRejected;
+    private final int chunksCommitted;
+    private final List<String> rejections;
+    private final String failure;
+    private final long nanos;
+
+    /**
+     * @param table           The table the rows were imported to.
+     * @param rowsRead        The number of rows read from the input.
+     * @param rowsImported    The number of rows committed to the table.
+     * @param rowsRejected    The number of rows that broke a constraint.
+     * @param chunksCommitted The number of transactions the rows were committed in.
+     * @param rejections      The line and reason of the first rejected rows.
+     * @param failure         Why the import stopped early, or <code>null</code> if it did not.
+     * @param nanos           How long the import took.
+     */
+    public ImportResult(String table, long rowsRead, long rowsImported, long rowsRejected, int chunksCommitted,
+                        List<String> rejections, String failure, long nanos)
+    {
+        this.table = table;
+        this.rowsRead = rowsRead;
+        this.rowsImported = rowsImported;
+        this.rowsRejected = rowsRejected;
+        this.chunksCommitted = chunksCommitted;
+        this.rejections = Collections.unmodifiableList(rejections);
+        this.failure = failure;
+        this.nanos = nanos;
+    }
+
+    public String getTable()
+    {
+        return table;
+    }
+
+    public long getRowsRead()
+    {
+        return rowsRead;
+    }
+
+    public long getRowsImported()
+    {
+        return rowsImported;
+    }
+
+    public long getRowsRejected()
+    {
+        return rowsRejected;
+    }
+
+    public int getChunksCommitted()
+    {
+        return chunksCommitted;
+    }
+
+    /**
+     * @return The line number and reason of the first rejected rows, not all of them if
+     *         there were many.
+     */
+    public List<String> getRejections()
+    {
+        return rejections;
+    }
+
+    /**
+     * @return <code>true</code> if the whole input was read, even if some rows were rejected.
+     */
+    public boolean isComplete()
+    {
+        return failure == null;
+    }
+
+    /**
+     * @return Why the import stopped before the end of the input, or <code>null</code>.
+     */
+    public String getFailure()
+    {
+        return failure;
+    }
+
+    /**
+     * @return How long the import took, in seconds.
+     */
+    public double getSeconds()
+    {
+        return nanos / 1e9;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("%s: %d rows read, %d imported in %d chunks, %d rejected, %.1f s (%.0f rows/s)%s",
+                             table, rowsRead, rowsImported, chunksCommitted, rowsRejected, getSeconds(),
+                             nanos == 0 ? 0 : rowsImported / getSeconds(), failure == null ? "" : ", stopped: " + failure);
+    }
+}
@@ -43,6 +43,16 @@ public class Instrument implements InstrumentDTO
         this.numberRented = numberRented;
     }
 
+    /**
+     * Creates an instrument with all of the columns listed in the catalog.
+     */
+    public static Instrument of(int id, String type, String brand, double price)
+    {
+        Instrument instrument = new Instrument(brand, price, type);
+        instrument.id = id;
+        return instrument;
+    }
+
     public String getBrand()
     {
         return brand;
@@ -5,6 +5,11 @@ package se.kth.iv1351.bankjdbc.model;
  */
 public interface InstrumentDTO {
 
+    /**
+     * @return The id of an instrument
+     */
+    public int getId();
+
     /**
      * @return The brand of an instrument
      */
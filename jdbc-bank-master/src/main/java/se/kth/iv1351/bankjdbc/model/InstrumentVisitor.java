@@ -0,0 +1,18 @@
+package se.kth.iv1351.bankjdbc.model;
+
+/**
+ * Receives instruments one at a time as their fields, so that a large number of
+ * instruments can be listed without creating an object for each of them.
+ */
+public interface InstrumentVisitor {
+
+    /**
+     * Called once for each listed instrument.
+     *
+     * @param id    The id of the instrument
+     * @param type  The type of the instrument
+     * @param brand The brand of the instrument
+     * @param price The price of the instrument
+     */
+    public void visit(int id, String type, String brand, double price);
+}
@@ -0,0 +1,31 @@
+package se.kth.iv1351.bankjdbc.model;
+
+import java.sql.Date;
+
+/**
+ * A rental agreement that also knows the brand and type of the rented instrument,
+ * so that the instrument does not have to be looked up separately.
+ */
+public class RentalAgreementDetails extends RentalAgreement implements RentalAgreementDetailsDTO
+{
+    private String instrumentBrand;
+    private String instrumentType;
+
+    public RentalAgreementDetails(int rentalId, int studentId, int instrumentId, Date startDate, Date endDate, boolean terminated, int length,
+                                  double estimatedPrice, String instrumentBrand, String instrumentType)
+    {
+        super(rentalId, studentId, instrumentId, startDate, endDate, terminated, length, estimatedPrice);
+        this.instrumentBrand = instrumentBrand;
+        this.instrumentType = instrumentType;
+    }
+
+    public String getInstrumentBrand()
+    {
+        return instrumentBrand;
+    }
+
+    public String getInstrumentType()
+    {
+        return instrumentType;
+    }
+}
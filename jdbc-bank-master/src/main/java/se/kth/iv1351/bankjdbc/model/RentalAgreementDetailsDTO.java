@@ -0,0 +1,18 @@
+package se.kth.iv1351.bankjdbc.model;
+
+/**
+ * RentalAgreementDetailsDTO, a rental agreement together with the brand and type
+ * of the rented instrument.
+ */
+public interface RentalAgreementDetailsDTO extends RentalAgreementDTO {
+
+    /**
+     * @return The brand of the rented instrument
+     */
+    public String getInstrumentBrand();
+
+    /**
+     * @return The type of the rented instrument
+     */
+    public String getInstrumentType();
+}
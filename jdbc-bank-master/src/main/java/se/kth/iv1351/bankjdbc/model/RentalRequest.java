@@ -0,0 +1,44 @@
+package se.kth.iv1351.bankjdbc.model;
+
+/**
+ * A request from a student to rent an instrument of a certain type and brand,
+ * used when many rentals are made at once.
+ */
+public class RentalRequest
+{
+    private final int studentId;
+    private final String type;
+    private final String brand;
+    private final int length;
+
+    public RentalRequest(int studentId, String type, String brand, int length)
+    {
+        this.studentId = studentId;
+        this.type = type;
+        this.brand = brand;
+        this.length = length;
+    }
+
+    public int getStudentId()
+    {
+        return studentId;
+    }
+
+    public String getType()
+    {
+        return type;
+    }
+
+    public String getBrand()
+    {
+        return brand;
+    }
+
+    /**
+     * @return The length of the rental in months
+     */
+    public int getLength()
+    {
+        return length;
+    }
+}
@@ -0,0 +1,26 @@
+package se.kth.iv1351.bankjdbc.model;
+
+/**
+ * Thrown when the diagnostics of a profiled SQL statement, such as its plan, can not be read.
+ */
+public class StatementException extends Exception{
+
+     /**
+     * Create a new instance thrown because of the specified reason.
+     *
+     * @param reason Why the exception was thrown.
+     */
+    public StatementException(String reason) {
+        super(reason);
+    }
+
+    /**
+     * Create a new instance thrown because of the specified reason and exception.
+     *
+     * @param reason    Why the exception was thrown.
+     * @param rootCause The exception that caused this exception to be thrown.
+     */
+    public StatementException(String reason, Throwable rootCause) {
+        super(reason, rootCause);
+    }
+}
@@ -0,0 +1,39 @@
+package se.kth.iv1351.bankjdbc.model;
+
+import java.util.List;
+
+/**
+ * Everything shown on one student's screen at the desk: the student, the student's
+ * active rental agreements and the instruments of the wanted type that can be rented.
+ */
+public class StudentDashboard
+{
+    private final Student student;
+    private final List<RentalAgreementDetails> agreements;
+    private final List<Instrument> availableInstruments;
+
+    public StudentDashboard(Student student, List<RentalAgreementDetails> agreements, List<Instrument> availableInstruments)
+    {
+        this.student = student;
+        this.agreements = agreements;
+        this.availableInstruments = availableInstruments;
+    }
+
+    /**
+     * @return The student, or <code>null</code> if there is no student with the requested id.
+     */
+    public Student getStudent()
+    {
+        return student;
+    }
+
+    public List<RentalAgreementDetails> getAgreements()
+    {
+        return agreements;
+    }
+
+    public List<Instrument> getAvailableInstruments()
+    {
+        return availableInstruments;
+    }
+}
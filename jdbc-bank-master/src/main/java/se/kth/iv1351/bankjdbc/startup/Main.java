@@ -24,23 +24,74 @@
 
 package se.kth.iv1351.bankjdbc.startup;
 
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
 import se.kth.iv1351.bankjdbc.controller.Controller;
 import se.kth.iv1351.bankjdbc.integration.BankDBException;
 import se.kth.iv1351.bankjdbc.view.BlockingInterpreter;
+import se.kth.iv1351.bankjdbc.view.CommandServer;
+import se.kth.iv1351.bankjdbc.view.MetricsServer;
 
 /**
  * Starts the bank client.
  */
 public class Main {
+    private static final int DEFAULT_PORT = 4711;
+    private static final String METRICS_PORT_PROPERTY = "soundgood.metrics.port";
+    private static final String BIND_ADDRESS_PROPERTY = "soundgood.server.bindAddress";
+    private static final String FILE_DIRECTORY_PROPERTY = "soundgood.server.fileDirectory";
+
     /**
-     * @param args There are no command line arguments.
+     * @param args No arguments starts the command line interpreter. The arguments
+     *             <code>serve [port]</code> instead serve the interpreter's commands
+     *             over TCP, on port 4711 unless another port is specified, and only
+     *             on the loopback interface unless the system property
+     *             <code>soundgood.server.bindAddress</code> is set. Clients can only
+     *             import and export files in the directory named by
+     *             <code>soundgood.server.fileDirectory</code>, if it is set. Metrics
+     *             are served in the Prometheus text format, on the loopback interface,
+     *             if the system property <code>soundgood.metrics.port</code> is set.
      */
     public static void main(String[] args) {
+        Controller ctrl = null;
+        MetricsServer metrics = null;
         try {
-        new BlockingInterpreter(new Controller()).handleCmds();
+            ctrl = new Controller();
+            System.out.printf("Connected in %.1f ms%n", ctrl.getStartupMillis());
+            String metricsPort = System.getProperty(METRICS_PORT_PROPERTY);
+            if (metricsPort != null) {
+                metrics = new MetricsServer(ctrl);
+                metrics.start(Integer.parseInt(metricsPort));
+                System.out.println("Serving metrics on localhost port " + metricsPort);
+            }
+            if (args.length > 0 && args[0].equalsIgnoreCase("serve")) {
+                int port = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_PORT;
+                String bindAddress = System.getProperty(BIND_ADDRESS_PROPERTY);
+                InetAddress address = bindAddress == null ? InetAddress.getLoopbackAddress() : InetAddress.getByName(bindAddress);
+                String fileDirectory = System.getProperty(FILE_DIRECTORY_PROPERTY);
+                Path files = fileDirectory == null ? null : Paths.get(fileDirectory);
+                System.out.println("Serving commands on " + address.getHostAddress() + " port " + port);
+                new CommandServer(ctrl, files).serve(address, port);
+            } else {
+                new BlockingInterpreter(ctrl).handleCmds();
+            }
+            System.out.println("Statements: " + ctrl.getStatementMetrics());
         } catch(BankDBException bdbe) {
             System.out.println("Could not connect to Bank db.");
             bdbe.printStackTrace();
+        } catch(IOException ioe) {
+            System.out.println("Could not serve commands.");
+            ioe.printStackTrace();
+        } finally {
+            if (metrics != null) {
+                metrics.stop();
+            }
+            if (ctrl != null) {
+                ctrl.close();
+            }
         }
     }
 }
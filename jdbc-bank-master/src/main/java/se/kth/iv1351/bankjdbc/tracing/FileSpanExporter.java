@@ -0,0 +1,39 @@
+package se.kth.iv1351.bankjdbc.tracing;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/**
+ * Appends spans to a file, one OTLP span in JSON per line.
+ */
+public class FileSpanExporter implements SpanExporter
+{
+    private final Path file;
+
+    /**
+     * @param file The file that spans are appended to. It is created if it does not exist.
+     */
+    public FileSpanExporter(Path file)
+    {
+        this.file = file;
+    }
+
+    @Override
+    public void export(List<Span> spans) throws IOException
+    {
+        try(BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+                                                            StandardOpenOption.APPEND))
+        {
+            for(Span span : spans)
+            {
+                writer.write(span.toJson());
+                writer.newLine();
+            }
+        }
+    }
+}
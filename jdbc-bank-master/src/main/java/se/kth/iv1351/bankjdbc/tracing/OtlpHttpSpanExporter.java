@@ -0,0 +1,69 @@
+package se.kth.iv1351.bankjdbc.tracing;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Posts spans to an OpenTelemetry collector, or anything else that accepts OTLP over HTTP
+ * in JSON, such as <code>http://localhost:4318/v1/traces</code>.
+ */
+public class OtlpHttpSpanExporter implements SpanExporter
+{
+    private static final int TIMEOUT_MILLIS = 5000;
+
+    private final URL endpoint;
+    private final String serviceName;
+
+    /**
+     * @param endpoint    Where the spans are posted.
+     * @param serviceName The service the spans are reported for.
+     */
+    public OtlpHttpSpanExporter(URL endpoint, String serviceName)
+    {
+        this.endpoint = endpoint;
+        this.serviceName = serviceName;
+    }
+
+    @Override
+    public void export(List<Span> spans) throws IOException
+    {
+        StringBuilder json = new StringBuilder();
+        json.append("{\"resourceSpans\":[{\"resource\":{\"attributes\":[{\"key\":\"service.name\",\"value\":{\"stringValue\":\"")
+            .append(serviceName)
+            .append("\"}}]},\"scopeSpans\":[{\"scope\":{\"name\":\"se.kth.iv1351.bankjdbc\"},\"spans\":[");
+        for(int i = 0; i < spans.size(); i++)
+        {
+            if(i > 0)
+                json.append(',');
+            json.append(spans.get(i).toJson());
+        }
+        json.append("]}]}]}");
+        byte[] body = json.toString().getBytes(StandardCharsets.UTF_8);
+
+        HttpURLConnection connection = (HttpURLConnection)endpoint.openConnection();
+        try
+        {
+            connection.setConnectTimeout(TIMEOUT_MILLIS);
+            connection.setReadTimeout(TIMEOUT_MILLIS);
+            connection.setRequestMethod("POST");
+            connection.setRequestProperty("Content-Type", "application/json");
+            connection.setDoOutput(true);
+            connection.setFixedLengthStreamingMode(body.length);
+            try(OutputStream out = connection.getOutputStream())
+            {
+                out.write(body);
+            }
+            int status = connection.getResponseCode();
+            if(status / 100 != 2)
+                throw new IOException("The collector answered " + status + " " + connection.getResponseMessage());
+        }
+        finally
+        {
+            connection.disconnect();
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package se.kth.iv1351.bankjdbc.tracing;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * One timed step of a traced command, such as a controller call, a DAO method or a single
+ * SQL statement. Spans are started by the <code>Tracer</code>, which also exports them
+ * when they end. A command that is not sampled only gets the shared no-op span, whose
+ * methods do nothing.
+ */
+public class Span
+{
+    static final Span NOOP = new Span(null, null, null, null, null);
+
+    private final String traceId;
+    private final String spanId;
+    private final Span parent;
+    private final Span previous;
+    private final String name;
+    private final long startNanos = System.nanoTime();
+    private final Map<String, Object> attributes = new LinkedHashMap<>();
+    private long endNanos;
+    private boolean failed;
+
+    Span(String traceId, String spanId, Span parent, Span previous, String name)
+    {
+        this.traceId = traceId;
+        this.spanId = spanId;
+        this.parent = parent;
+        this.previous = previous;
+        this.name = name;
+    }
+
+    /**
+     * @return <code>true</code> if this span is recorded and exported, <code>false</code>
+     *         if it is the no-op span of a command that was not sampled.
+     */
+    public boolean isSampled()
+    {
+        return this != NOOP;
+    }
+
+    /**
+     * Adds an attribute, such as the SQL text or the number of rows, to this span.
+     *
+     * @param key   The name of the attribute.
+     * @param value The value of the attribute.
+     * @return This span.
+     */
+    public Span tag(String key, Object value)
+    {
+        if(isSampled())
+            attributes.put(key, value);
+        return this;
+    }
+
+    /**
+     * Ends this span and hands it to the exporter. If the span is the current span of the
+     * calling thread, the span that was current before it becomes current again.
+     *
+     * @param failed <code>true</code> if the step failed.
+     */
+    public void end(boolean failed)
+    {
+        if(!isSampled() || endNanos != 0)
+            return;
+        this.failed = failed;
+        endNanos = System.nanoTime();
+        Tracer.ended(this);
+    }
+
+    Span getPrevious()
+    {
+        return previous;
+    }
+
+    String getTraceId()
+    {
+        return traceId;
+    }
+
+    String getSpanId()
+    {
+        return spanId;
+    }
+
+    /**
+     * @return The span as an OTLP span in JSON.
+     */
+    String toJson()
+    {
+        StringBuilder json = new StringBuilder();
+        json.append("{\"traceId\":\"").append(traceId).append("\",\"spanId\":\"").append(spanId).append('"');
+        if(parent != null)
+            json.append(",\"parentSpanId\":\"").append(parent.spanId).append('"');
+        json.append(",\"name\":");
+        appendString(json, name);
+        json.append(",\"startTimeUnixNano\":\"").append(Tracer.toEpochNanos(startNanos))
+            .append("\",\"endTimeUnixNano\":\"").append(Tracer.toEpochNanos(endNanos)).append('"');
+        json.append(",\"attributes\":[");
+        boolean first = true;
+        for(Map.Entry<String, Object> attribute : attributes.entrySet())
+        {
+            if(!first)
+                json.append(',');
+            first = false;
+            json.append("{\"key\":");
+            appendString(json, attribute.getKey());
+            json.append(",\"value\":");
+            appendValue(json, attribute.getValue());
+            json.append('}');
+        }
+        json.append("],\"status\":{\"code\":").append(failed ? 2 : 1).append("}}");
+        return json.toString();
+    }
+
+    private static void appendValue(StringBuilder json, Object value)
+    {
+        if(value instanceof Integer || value instanceof Long)
+        {
+            json.append("{\"intValue\":\"").append(value).append("\"}");
+        }
+        else if(value instanceof Number)
+        {
+            json.append("{\"doubleValue\":").append(value).append('}');
+        }
+        else if(value instanceof Boolean)
+        {
+            json.append("{\"boolValue\":").append(value).append('}');
+        }
+        else
+        {
+            json.append("{\"stringValue\":");
+            appendString(json, String.valueOf(value));
+            json.append('}');
+        }
+    }
+
+    private static void appendString(StringBuilder json, String value)
+    {
+        json.append('"');
+        for(int i = 0; i < value.length(); i++)
+        {
+            char c = value.charAt(i);
+            switch(c)
+            {
+                case '"':
+                    json.append("\\\"");
+                    break;
+                case '\\':
+                    json.append("\\\\");
+                    break;
+                case '\n':
+                    json.append("\\n");
+                    break;
+                case '\r':
+                    json.append("\\r");
+                    break;
+                case '\t':
+                    json.append("\\t");
+                    break;
+                default:
+                    if(c < 0x20)
+                        json.append(String.format("\\u%04x", (int)c));
+                    else
+                        json.append(c);
+            }
+        }
+        json.append('"');
+    }
+}
@@ -0,0 +1,17 @@
+package se.kth.iv1351.bankjdbc.tracing;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Sends ended spans somewhere they can be looked at. Exporters are called by one thread
+ * at a time.
+ */
+public interface SpanExporter
+{
+    /**
+     * @param spans The spans, in the order they ended.
+     * @throws IOException If the spans could not be sent. They are then dropped.
+     */
+    void export(List<Span> spans) throws IOException;
+}
@@ -0,0 +1,250 @@
+package se.kth.iv1351.bankjdbc.tracing;
+
+import java.io.IOException;
+import java.net.URL;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Starts spans and exports them when they end. A command run by a user starts a trace
+ * with <code>startTrace</code>, and every step it takes on the same thread starts a child
+ * of the current span with <code>startSpan</code>.
+ *
+ * Tracing is configured with system properties. <code>soundgood.tracing.sampleRate</code>
+ * is the share of commands that are traced, between 0 and 1, and is 0 by default, which
+ * turns tracing off. Spans are appended to the file <code>soundgood.tracing.file</code>,
+ * <code>traces.jsonl</code> by default, unless <code>soundgood.tracing.endpoint</code> is
+ * the URL of an OTLP collector. Spans are exported in batches by a background thread, so
+ * the traced thread never waits for the exporter. If the exporter falls behind, spans
+ * are dropped.
+ *
+ * When tracing is off, or the current command was not sampled, every method returns the
+ * shared no-op span without touching anything else.
+ */
+public final class Tracer
+{
+    private static final String PROPERTY_PREFIX = "soundgood.tracing.";
+    private static final int QUEUE_CAPACITY = 10_000;
+    private static final int BATCH_SIZE = 512;
+    private static final long POLL_MILLIS = 200;
+    private static final long FLUSH_TIMEOUT_MILLIS = 5000;
+
+    private static final double SAMPLE_RATE = Double.parseDouble(System.getProperty(PROPERTY_PREFIX + "sampleRate", "0"));
+    private static final boolean ENABLED = SAMPLE_RATE > 0;
+    private static final long EPOCH_OFFSET_NANOS = System.currentTimeMillis() * 1_000_000 - System.nanoTime();
+    private static final ThreadLocal<Span> CURRENT = new ThreadLocal<>();
+    private static final BlockingQueue<Span> ENDED = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private static final LongAdder DROPPED = new LongAdder();
+    private static final SpanExporter EXPORTER;
+
+    private static volatile boolean stopping = false;
+
+    static
+    {
+        EXPORTER = ENABLED ? createExporter() : null;
+        if(ENABLED)
+        {
+            Thread exporterThread = new Thread(Tracer::exportEnded, "span-exporter");
+            exporterThread.setDaemon(true);
+            exporterThread.start();
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> flush(exporterThread), "span-exporter-flush"));
+        }
+    }
+
+    private Tracer()
+    {
+    }
+
+    /**
+     * Starts the root span of a new trace, if the trace is sampled. The span becomes the
+     * current span of the calling thread.
+     *
+     * @param name The name of the span.
+     * @return The started span, or the no-op span if the trace is not sampled.
+     */
+    public static Span startTrace(String name)
+    {
+        if(!ENABLED || ThreadLocalRandom.current().nextDouble() >= SAMPLE_RATE)
+            return Span.NOOP;
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        String traceId = String.format("%016x%016x", random.nextLong(), random.nextLong());
+        Span span = new Span(traceId, newSpanId(), null, CURRENT.get(), name);
+        CURRENT.set(span);
+        return span;
+    }
+
+    /**
+     * Starts a child of the current span of the calling thread, which it then replaces as
+     * the current span until it ends.
+     *
+     * @param name The name of the span.
+     * @return The started span, or the no-op span if the thread is not tracing.
+     */
+    public static Span startSpan(String name)
+    {
+        return startSpan(name, true);
+    }
+
+    /**
+     * Starts a child of the current span of the calling thread, which does not become the
+     * current span. It is meant for a step that may still run when the next step starts,
+     * such as a query whose rows are read while other statements run.
+     *
+     * @param name The name of the span.
+     * @return The started span, or the no-op span if the thread is not tracing.
+     */
+    public static Span startChildSpan(String name)
+    {
+        return startSpan(name, false);
+    }
+
+    /**
+     * @return <code>true</code> if the calling thread is running a sampled trace.
+     */
+    public static boolean isTracing()
+    {
+        return ENABLED && CURRENT.get() != null;
+    }
+
+    /**
+     * @return The current span of the calling thread, or the no-op span if it is not tracing.
+     */
+    public static Span current()
+    {
+        if(!ENABLED)
+            return Span.NOOP;
+        Span current = CURRENT.get();
+        return current == null ? Span.NOOP : current;
+    }
+
+    /**
+     * Makes the specified span the current span of the calling thread, so that a step
+     * handed to another thread continues the trace of the thread that started it.
+     *
+     * @param span The span to continue, as returned by <code>current</code>.
+     * @return The span that was current before, to be given back to <code>attach</code>
+     *         when the step is done.
+     */
+    public static Span attach(Span span)
+    {
+        if(!ENABLED)
+            return Span.NOOP;
+        Span previous = current();
+        CURRENT.set(span.isSampled() ? span : null);
+        return previous;
+    }
+
+    /**
+     * @return The number of spans that were dropped because the exporter fell behind.
+     */
+    public static long getDroppedSpans()
+    {
+        return DROPPED.sum();
+    }
+
+    static Span startSpan(String name, boolean makeCurrent)
+    {
+        if(!ENABLED)
+            return Span.NOOP;
+        Span parent = CURRENT.get();
+        if(parent == null)
+            return Span.NOOP;
+        Span span = new Span(parent.getTraceId(), newSpanId(), parent, makeCurrent ? parent : null, name);
+        if(makeCurrent)
+            CURRENT.set(span);
+        return span;
+    }
+
+    static void ended(Span span)
+    {
+        if(CURRENT.get() == span)
+        {
+            Span previous = span.getPrevious();
+            if(previous == null)
+                CURRENT.remove();
+            else
+                CURRENT.set(previous);
+        }
+        if(!ENDED.offer(span))
+            DROPPED.increment();
+    }
+
+    static long toEpochNanos(long nanoTime)
+    {
+        return EPOCH_OFFSET_NANOS + nanoTime;
+    }
+
+    private static String newSpanId()
+    {
+        return String.format("%016x", ThreadLocalRandom.current().nextLong());
+    }
+
+    private static SpanExporter createExporter()
+    {
+        String endpoint = System.getProperty(PROPERTY_PREFIX + "endpoint");
+        if(endpoint == null)
+            return new FileSpanExporter(Paths.get(System.getProperty(PROPERTY_PREFIX + "file", "traces.jsonl")));
+        try
+        {
+            return new OtlpHttpSpanExporter(new URL(endpoint), System.getProperty(PROPERTY_PREFIX + "serviceName", "soundgood"));
+        }
+        catch(IOException ioe)
+        {
+            throw new IllegalArgumentException("Invalid tracing endpoint " + endpoint, ioe);
+        }
+    }
+
+    private static void exportEnded()
+    {
+        while(!stopping || !ENDED.isEmpty())
+        {
+            try
+            {
+                Span first = ENDED.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if(first != null)
+                {
+                    List<Span> batch = new ArrayList<>();
+                    batch.add(first);
+                    ENDED.drainTo(batch, BATCH_SIZE - 1);
+                    export(batch);
+                }
+            }
+            catch(InterruptedException ie)
+            {
+                return;
+            }
+        }
+    }
+
+    private static void flush(Thread exporterThread)
+    {
+        stopping = true;
+        try
+        {
+            exporterThread.join(FLUSH_TIMEOUT_MILLIS);
+        }
+        catch(InterruptedException ie)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void export(List<Span> batch)
+    {
+        try
+        {
+            EXPORTER.export(batch);
+        }
+        catch(IOException ioe)
+        {
+            DROPPED.add(batch.size());
+            System.err.println("Could not export " + batch.size() + " spans: " + ioe.getMessage());
+        }
+    }
+}
@@ -24,33 +24,107 @@
 
 package se.kth.iv1351.bankjdbc.view;
 
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.lang.System.Logger;
+import java.lang.System.Logger.Level;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
 import java.util.List;
 import java.util.Scanner;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
 
 
 import se.kth.iv1351.bankjdbc.controller.Controller;
-import se.kth.iv1351.bankjdbc.model.InstrumentDTO;
-import se.kth.iv1351.bankjdbc.model.RentalAgreement;
-import se.kth.iv1351.bankjdbc.model.RentalAgreementDTO;
+import se.kth.iv1351.bankjdbc.integration.ImportFormat;
+import se.kth.iv1351.bankjdbc.integration.StatementProfile;
+import se.kth.iv1351.bankjdbc.metrics.OperationStats;
+import se.kth.iv1351.bankjdbc.model.AvailabilitySummary;
+import se.kth.iv1351.bankjdbc.model.ImportResult;
+import se.kth.iv1351.bankjdbc.model.RentalAgreementDetails;
+import se.kth.iv1351.bankjdbc.model.RentalAgreementDetailsDTO;
 import se.kth.iv1351.bankjdbc.model.Student;
+import se.kth.iv1351.bankjdbc.tracing.Span;
+import se.kth.iv1351.bankjdbc.tracing.Tracer;
 
 /**
  * Reads and interprets user commands. This command interpreter is blocking, the user
  * interface does not react to user input while a command is being executed.
  */
 public class BlockingInterpreter {
+    private static final Logger LOGGER = System.getLogger(BlockingInterpreter.class.getName());
     private static final String PROMPT = "> ";
-    private final Scanner console = new Scanner(System.in);
+    private static final int SHOW_PAGE_SIZE = 100;
+    private static final String SUMMARY_FLAG = "--summary";
+    private static final String EXPLAIN_ARGUMENT = "explain";
+    private static final String RESET_ARGUMENT = "reset";
+    private static final String INSTRUMENTS_ARGUMENT = "instruments";
+    private static final String STUDENTS_ARGUMENT = "students";
+    private static final String STANDARD_OUTPUT_ARGUMENT = "-";
+    private static final String GZIP_SUFFIX = ".gz";
+    private static final int EXPORT_BUFFER_SIZE = 1 << 16;
+    private final Scanner console;
+    private final PrintStream out;
+    private final boolean remote;
+    private final Path fileDirectory;
     private Controller ctrl;
-    private boolean keepReceivingCmds = false;
+    private volatile boolean keepReceivingCmds = false;
 
     /**
-     * Creates a new instance that will use the specified controller for all operations.
+     * Creates a new instance that will use the specified controller for all operations,
+     * and that reads commands from <code>System.in</code> and prints to <code>System.out</code>.
      * 
      * @param ctrl The controller used by this instance.
      */
     public BlockingInterpreter(Controller ctrl) {
+        this(ctrl, System.in, System.out, false, null);
+    }
+
+    /**
+     * Creates a new instance that will use the specified controller for all operations,
+     * and that reads commands from and prints to the specified streams. Used to serve a
+     * client connected over the network, that can not import or export files.
+     * 
+     * @param ctrl The controller used by this instance.
+     * @param in   Where commands are read.
+     * @param out  Where prompts and results are printed.
+     */
+    public BlockingInterpreter(Controller ctrl, InputStream in, PrintStream out) {
+        this(ctrl, in, out, true, null);
+    }
+
+    /**
+     * Creates a new instance that will use the specified controller for all operations,
+     * and that reads commands from and prints to the specified streams. Used to serve a
+     * client connected over the network, that can only import and export files in the
+     * specified directory.
+     * 
+     * @param ctrl          The controller used by this instance.
+     * @param in            Where commands are read.
+     * @param out           Where prompts and results are printed.
+     * @param fileDirectory The directory files are imported from and exported to,
+     *                      <code>null</code> if files can not be imported or exported.
+     */
+    public BlockingInterpreter(Controller ctrl, InputStream in, PrintStream out, Path fileDirectory) {
+        this(ctrl, in, out, true, fileDirectory);
+    }
+
+    private BlockingInterpreter(Controller ctrl, InputStream in, PrintStream out, boolean remote, Path fileDirectory) {
         this.ctrl = ctrl;
+        this.console = new Scanner(in);
+        this.out = out;
+        this.remote = remote;
+        this.fileDirectory = fileDirectory;
     }
 
     /**
@@ -63,20 +137,28 @@ public class BlockingInterpreter {
     /**
      * Interprets and performs user commands. This method will not return until the
      * UI has been stopped. The UI is stopped either when the user gives the
-     * "quit" command, or when the method <code>stop()</code> is called.
+     * "quit" command, when there is no more input, or when the method
+     * <code>stop()</code> is called. Each command is the root span of a trace, if
+     * tracing is on and the command is sampled.
      */
     public void handleCmds() {
         keepReceivingCmds = true;
         while (keepReceivingCmds) {
+            String line = readNextLine();
+            Span trace = Tracer.startTrace("command");
+            boolean failed = false;
             try {
-                CmdLine cmdLine = new CmdLine(readNextLine());
+                Span parse = Tracer.startSpan("CmdLine.parse");
+                CmdLine cmdLine = new CmdLine(line);
+                parse.end(false);
+                trace.tag("command", cmdLine.getCmd().name());
                 switch (cmdLine.getCmd()) {
                     case HELP:
                         for (Command command : Command.values()) {
                             if (command == Command.ILLEGAL_COMMAND) {
                                 continue;
                             }
-                            System.out.println(command.toString().toLowerCase());
+                            out.println(command.toString().toLowerCase());
                         }
                         break;
                     case QUIT:
@@ -91,58 +173,269 @@ public class BlockingInterpreter {
                     case TERMINATE:
                         terminateRental(cmdLine);
                         break;
+                    case STATS:
+                        printStats();
+                        break;
+                    case PROFILE:
+                        profileStatements(cmdLine);
+                        break;
+                    case IMPORT:
+                        importRows(cmdLine);
+                        break;
+                    case EXPORT:
+                        exportAgreements(cmdLine);
+                        break;
                     default:
-                        System.out.println("illegal command");
+                        out.println("illegal command");
                 }
             } catch (Exception e) {
-                System.out.println("Operation failed");
-                System.out.println(e.getMessage());
-                e.printStackTrace();
+                failed = true;
+                reportFailure(e);
+            } finally {
+                trace.end(failed);
             }
         }
     }
 
+    /**
+     * Prints why a command failed to the client, with the message of each cause, since the
+     * client may be remote and never see the server's output. The stack trace is only
+     * logged, at debug level.
+     */
+    private void reportFailure(Exception failure) {
+        out.println("Operation failed");
+        out.println(failure.getMessage());
+        for (Throwable cause = failure.getCause(); cause != null; cause = cause.getCause()) {
+            out.println("Caused by: " + cause.getMessage());
+        }
+        LOGGER.log(Level.DEBUG, "Command failed", failure);
+    }
+
     private String readNextLine() {
-        System.out.print(PROMPT);
+        out.print(PROMPT);
+        out.flush();
+        if (!console.hasNextLine()) {
+            keepReceivingCmds = false;
+            return Command.QUIT.name();
+        }
         return console.nextLine();
     }
 
     private void listInstruments(CmdLine cmdLine) throws Exception
     {
-        List<? extends InstrumentDTO> instruments = null;
-        if(cmdLine.getParameter(0).equals(""))
+        if(SUMMARY_FLAG.equals(cmdLine.getParameter(0)))
+        {
+            summarizeAvailability();
+        }
+        else
+        {
+            listInstrumentPages(cmdLine.getParameter(0).equals("") ? null : cmdLine.getParameter(0));
+        }
+    }
+
+    /**
+     * Prints the instruments a page at a time, and flushes after each page, so that a
+     * remote client sees the first instruments before the last ones have been read.
+     */
+    private void listInstrumentPages(String typeOfInstrument) throws Exception
+    {
+        int[] lastId = {0};
+        int shown;
+        do
+        {
+            shown = ctrl.forEachInstrumentPage(typeOfInstrument, lastId[0], SHOW_PAGE_SIZE, (id, type, brand, price) -> {
+                lastId[0] = id;
+                if(typeOfInstrument == null)
+                {
+                    out.print("Type: ");
+                    out.print(type);
+                    out.print(", ");
+                }
+                out.print("Brand: ");
+                out.print(brand);
+                out.print(", Price: ");
+                out.println(price);
+            });
+            out.flush();
+        }
+        while(shown == SHOW_PAGE_SIZE);
+    }
+
+    private void summarizeAvailability() throws Exception
+    {
+        for(AvailabilitySummary summary : ctrl.summarizeAvailability())
+        {
+            out.println("Type: " + summary.getType() + ", Brand: " + summary.getBrand()
+                        + ", Available: " + summary.getAvailableInstruments() + " (" + summary.getFreeUnits() + " units)"
+                        + ", Price: " + summary.getMinPrice() + " - " + summary.getMaxPrice());
+        }
+    }
+
+    private void printStats()
+    {
+        for(OperationStats stats : ctrl.getOperationStats())
+        {
+            out.println(stats);
+        }
+        out.println("Pool: " + ctrl.getPoolMetrics());
+        out.println("Statements: " + ctrl.getStatementMetrics());
+        out.println("Retries: " + ctrl.getRetryMetrics());
+        out.println("Failed partition maintenance runs: " + ctrl.getPartitionMaintenanceFailures());
+        out.println("Catalog: " + ctrl.getCatalogCacheMetrics());
+    }
+
+    private void profileStatements(CmdLine cmdLine) throws Exception
+    {
+        List<StatementProfile> profiles = ctrl.getStatementProfiles();
+        if(EXPLAIN_ARGUMENT.equals(cmdLine.getParameter(0)))
         {
-            instruments = ctrl.listAllInstruments();
-            for(InstrumentDTO instrument : instruments)
+            int rank = Integer.parseInt(cmdLine.getParameter(1));
+            if(rank < 1 || rank > profiles.size())
             {
-                System.out.println("Type: " + instrument.getType() + ", "
-                                + "Brand: " + instrument.getBrand() + ", "
-                                + "Price: " + instrument.getPrice());
+                out.println("No statement number " + rank);
+                return;
             }
+            for(String line : ctrl.explainStatement(profiles.get(rank - 1).getSql()))
+            {
+                out.println(line);
+            }
+        }
+        else if(RESET_ARGUMENT.equals(cmdLine.getParameter(0)))
+        {
+            ctrl.resetStatementProfiles();
+            out.println("Statement profiles reset");
         }
         else
         {
-            instruments = ctrl.listInstruments(cmdLine.getParameter(0));
-            for(InstrumentDTO instrument : instruments)
+            int rank = 1;
+            for(StatementProfile profile : profiles)
             {
-                System.out.println("Brand: " + instrument.getBrand() + ", "
-                                + "Price: " + instrument.getPrice());
+                out.println(rank++ + ": " + profile);
+                out.println("   " + profile.getSql().replaceAll("\\s+", " ").trim());
+                if(profile.getSlowCalls() > 0)
+                    out.println("   slowest parameters: " + profile.getSlowestParameters());
             }
         }
     }
 
+    private void importRows(CmdLine cmdLine) throws Exception
+    {
+        String table = cmdLine.getParameter(0);
+        String file = cmdLine.getParameter(1);
+        if(file == null || !(INSTRUMENTS_ARGUMENT.equals(table) || STUDENTS_ARGUMENT.equals(table)))
+        {
+            out.println("Usage: import instruments|students <file.csv|file.ndjson>");
+            return;
+        }
+        ImportResult result;
+        try(Reader in = Files.newBufferedReader(resolveFile(file), StandardCharsets.UTF_8))
+        {
+            if(INSTRUMENTS_ARGUMENT.equals(table))
+                result = ctrl.importInstruments(in, ImportFormat.of(file));
+            else
+                result = ctrl.importStudents(in, ImportFormat.of(file));
+        }
+        out.println(result);
+        for(String rejection : result.getRejections())
+        {
+            out.println("   rejected " + rejection);
+        }
+    }
+
+    /**
+     * Exports the agreements to a file, compressed if its name ends in <code>.gz</code>,
+     * or to <code>out</code> if the file is <code>-</code>. The dates are optional.
+     */
+    private void exportAgreements(CmdLine cmdLine) throws Exception
+    {
+        String file = cmdLine.getParameter(0);
+        if(file == null)
+        {
+            out.println("Usage: export <file.csv|file.csv.gz|-> [<from yyyy-mm-dd> [<until yyyy-mm-dd>]]");
+            return;
+        }
+        LocalDate from = cmdLine.getParameter(1) == null ? null : LocalDate.parse(cmdLine.getParameter(1));
+        LocalDate until = cmdLine.getParameter(2) == null ? null : LocalDate.parse(cmdLine.getParameter(2));
+        if(STANDARD_OUTPUT_ARGUMENT.equals(file))
+        {
+            OutputStream buffered = new BufferedOutputStream(out, EXPORT_BUFFER_SIZE);
+            ctrl.exportAgreements(from, until, buffered);
+            buffered.flush();
+            return;
+        }
+        long startNanos = System.nanoTime();
+        long rows;
+        Path path = resolveFile(file);
+        OutputStream fileOut = openExportFile(path);
+        try(fileOut)
+        {
+            rows = ctrl.exportAgreements(from, until, fileOut);
+        }
+        catch(Exception e)
+        {
+            Files.deleteIfExists(path);
+            throw e;
+        }
+        out.printf("Exported %d agreements to %s (%d bytes) in %.1f s%n", rows, file, Files.size(path),
+                   (System.nanoTime() - startNanos) / 1e9);
+    }
+
+    /**
+     * Compresses at the fastest level, so that writing the file and not compressing it
+     * limits the export. An existing file is never overwritten, so a failed export only
+     * deletes the file it created.
+     */
+    private OutputStream openExportFile(Path path) throws IOException
+    {
+        OutputStream fileOut;
+        try
+        {
+            fileOut = new BufferedOutputStream(Files.newOutputStream(path, StandardOpenOption.CREATE_NEW), EXPORT_BUFFER_SIZE);
+        }
+        catch(FileAlreadyExistsException exists)
+        {
+            throw new IOException(path + " already exists.", exists);
+        }
+        if(!path.toString().endsWith(GZIP_SUFFIX))
+            return fileOut;
+        return new GZIPOutputStream(fileOut, EXPORT_BUFFER_SIZE)
+        {
+            {
+                def.setLevel(Deflater.BEST_SPEED);
+            }
+        };
+    }
+
+    /**
+     * A local session can name any file. A remote session can only name files in the file
+     * directory, also after following links, and no files if there is no file directory.
+     */
+    private Path resolveFile(String file) throws IOException
+    {
+        if(!remote)
+            return Paths.get(file);
+        if(fileDirectory == null)
+            throw new IOException("Files can not be imported or exported over the network.");
+        Path directory = fileDirectory.toRealPath();
+        Path path = directory.resolve(file).normalize();
+        Path existing = Files.exists(path) ? path : path.getParent();
+        if(!path.startsWith(directory) || existing == null || !existing.toRealPath().startsWith(directory))
+            throw new IOException(file + " is not in the file directory.");
+        return path;
+    }
+
     private void rentInstrument(CmdLine cmdLine) throws Exception
     {
         Student student = ctrl.getStudent(Integer.parseInt(cmdLine.getParameter(0)));
         if(student.getNrRented() >= 2)
         {
-            System.out.println("You have already rented the max amount of instruments");
+            out.println("You have already rented the max amount of instruments");
         }
             
         else
         {
             ctrl.rentInstrument(cmdLine.getParameter(1), cmdLine.getParameter(2), student, Integer.parseInt(cmdLine.getParameter(3)));
-            System.out.println("You have successfully rented your instument");
+            out.println("You have successfully rented your instument");
         }
     }
 
@@ -150,32 +443,31 @@ public class BlockingInterpreter {
     {
         Student student = ctrl.getStudent(Integer.parseInt(cmdLine.getParameter(0)));
         if(student.getNrRented() <=0)
-            System.out.println("You have no active rentals and can therefore not terminate any");
+            out.println("You have no active rentals and can therefore not terminate any");
         else
         {
             int rentalToTerminate;
             int count = 1;
-            List<RentalAgreement> rentals = ctrl.getRentalAgreement(Integer.parseInt(cmdLine.getParameter(0)));
+            List<RentalAgreementDetails> rentals = ctrl.getRentalAgreementDetails(Integer.parseInt(cmdLine.getParameter(0)));
             
-            for (RentalAgreementDTO rental : rentals) 
+            for (RentalAgreementDetailsDTO rental : rentals) 
             {
-                InstrumentDTO instrument = ctrl.getInstrumentById(rental.getInstrumentId());
-                System.out.println(count++ + ": Brand of instrument: " + instrument.getBrand() + ", type of instrument: " + instrument.getType() + ", start date for agreement: " + rental.getStartDate() 
+                out.println(count++ + ": Brand of instrument: " + rental.getInstrumentBrand() + ", type of instrument: " + rental.getInstrumentType() + ", start date for agreement: " + rental.getStartDate() 
                                   + ", end date for agreement: " + rental.getEndDate() + ", price if agreement if fulfilled: " + rental.getEstimatedPrice());
             }
-            System.out.print("Which agreement do you want terminate? \n");
+            out.print("Which agreement do you want terminate? \n");
             rentalToTerminate = Integer.parseInt(readNextLine());
             switch(rentalToTerminate)
             {
                 case 1:
                     ctrl.terminateRental(rentals.get(0));
-                    System.out.println("You have successfully removed the selected agreement");
+                    out.println("You have successfully removed the selected agreement");
                     break;
                 case 2:
                     ctrl.terminateRental(rentals.get(1));
-                    System.out.println("You have successfully removed the selected agreement");
+                    out.println("You have successfully removed the selected agreement");
                     break;
-                default: System.out.println("Not an alternative");
+                default: out.println("Not an alternative");
             }
         }
     }
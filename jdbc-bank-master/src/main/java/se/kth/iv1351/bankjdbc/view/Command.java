@@ -48,6 +48,24 @@ public enum Command {
      * terminates one of the rental agreements
      */
     TERMINATE,
+    /**
+     * shows call counts, errors and latency percentiles of each operation
+     */
+    STATS,
+    /**
+     * shows how often each SQL statement has run and how long it took, explains the plan
+     * of one of them or starts counting from zero again
+     */
+    PROFILE,
+    /**
+     * imports instruments or students in bulk from a CSV or NDJSON file
+     */
+    IMPORT,
+    /**
+     * exports the rental agreements that started in a period to a CSV file, compressed if
+     * its name ends in .gz, or to the screen
+     */
+    EXPORT,
     /**
      * None of the valid command above was specified.
      */
@@ -0,0 +1,159 @@
+package se.kth.iv1351.bankjdbc.view;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import se.kth.iv1351.bankjdbc.controller.Controller;
+
+/**
+ * Serves the interpreter's commands over TCP, so that many desks can use the same
+ * controller at once. The protocol is the same line protocol as the command line,
+ * each client sends one command per line and the server answers with the command's
+ * output followed by the prompt. Every client is served by its own thread, all
+ * clients share the controller.
+ *
+ * Clients are not authenticated, so the server only listens on the loopback interface
+ * unless another address is given, and clients can only import and export files in
+ * the file directory, if there is one.
+ */
+public class CommandServer
+{
+    private final Controller ctrl;
+    private final Path fileDirectory;
+    private final ExecutorService clientExecutor;
+    private final AtomicInteger clientCount = new AtomicInteger();
+    private final Set<Socket> connectedClients = ConcurrentHashMap.newKeySet();
+    private volatile ServerSocket serverSocket;
+
+    /**
+     * Creates a new instance that serves clients with the specified controller. Clients
+     * can not import or export files.
+     *
+     * @param ctrl The controller shared by all clients.
+     */
+    public CommandServer(Controller ctrl)
+    {
+        this(ctrl, null);
+    }
+
+    /**
+     * Creates a new instance that serves clients with the specified controller.
+     *
+     * @param ctrl          The controller shared by all clients.
+     * @param fileDirectory The directory that clients can import files from and export
+     *                      files to, <code>null</code> if they can not.
+     */
+    public CommandServer(Controller ctrl, Path fileDirectory)
+    {
+        this.ctrl = ctrl;
+        this.fileDirectory = fileDirectory;
+        this.clientExecutor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "client-" + clientCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Accepts clients on the specified port of the loopback interface. This method does
+     * not return until <code>stop()</code> is called.
+     *
+     * @param port The port to listen on.
+     * @throws IOException If the port could not be opened.
+     */
+    public void serve(int port) throws IOException
+    {
+        serve(InetAddress.getLoopbackAddress(), port);
+    }
+
+    /**
+     * Accepts clients on the specified address and port. This method does not return
+     * until <code>stop()</code> is called.
+     *
+     * @param address The address to listen on, the wildcard address listens on all interfaces.
+     * @param port    The port to listen on.
+     * @throws IOException If the port could not be opened.
+     */
+    public void serve(InetAddress address, int port) throws IOException
+    {
+        try(ServerSocket listeningSocket = new ServerSocket(port, 1024, address))
+        {
+            serverSocket = listeningSocket;
+            while(!listeningSocket.isClosed())
+            {
+                Socket client;
+                try
+                {
+                    client = listeningSocket.accept();
+                }
+                catch(IOException acceptFailed)
+                {
+                    if(listeningSocket.isClosed())
+                        break;
+                    throw acceptFailed;
+                }
+                clientExecutor.execute(() -> serveClient(client));
+            }
+        }
+        finally
+        {
+            clientExecutor.shutdownNow();
+        }
+    }
+
+    /**
+     * Stops accepting clients. Clients that are connected are disconnected.
+     */
+    public void stop()
+    {
+        closeQuietly(serverSocket);
+        for(Socket client : connectedClients)
+        {
+            closeQuietly(client);
+        }
+    }
+
+    private void serveClient(Socket client)
+    {
+        connectedClients.add(client);
+        try(client)
+        {
+            client.setTcpNoDelay(true);
+            PrintStream out = new PrintStream(client.getOutputStream(), false, StandardCharsets.UTF_8);
+            new BlockingInterpreter(ctrl, client.getInputStream(), out, fileDirectory).handleCmds();
+            out.flush();
+        }
+        catch(IOException ioe)
+        {
+            // The client disconnected, there is no one left to tell.
+        }
+        finally
+        {
+            connectedClients.remove(client);
+        }
+    }
+
+    private void closeQuietly(Closeable closeable)
+    {
+        try
+        {
+            if(closeable != null)
+                closeable.close();
+        }
+        catch(IOException ioe)
+        {
+            // It is being closed anyway.
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package se.kth.iv1351.bankjdbc.view;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import se.kth.iv1351.bankjdbc.controller.Controller;
+import se.kth.iv1351.bankjdbc.integration.CatalogCacheMetrics;
+import se.kth.iv1351.bankjdbc.integration.PoolMetrics;
+import se.kth.iv1351.bankjdbc.integration.RetryMetrics;
+import se.kth.iv1351.bankjdbc.integration.StatementMetrics;
+import se.kth.iv1351.bankjdbc.integration.StatementProfile;
+import se.kth.iv1351.bankjdbc.metrics.OperationStats;
+
+/**
+ * Serves the controller's metrics in the Prometheus text format on
+ * <code>http://localhost:&lt;port&gt;/metrics</code>, so that they can be scraped while the
+ * application runs. The latency of each controller and DAO operation is exported as a
+ * summary with the 50th, 99th and 99.9th percentiles, next to counters of calls and
+ * errors and the counters of the connection pool, the statement registry, the slow
+ * statements, the retries, the rental partition maintenance and the catalog cache.
+ */
+public class MetricsServer
+{
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private final Controller ctrl;
+    private HttpServer server;
+
+    /**
+     * @param ctrl The controller whose metrics are served.
+     */
+    public MetricsServer(Controller ctrl)
+    {
+        this.ctrl = ctrl;
+    }
+
+    /**
+     * Starts serving metrics on a background thread, on the specified port of the
+     * loopback interface.
+     *
+     * @param port The port to listen on.
+     * @throws IOException If the port could not be opened.
+     */
+    public void start(int port) throws IOException
+    {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/metrics", this::serveMetrics);
+        server.start();
+    }
+
+    /**
+     * Stops serving metrics.
+     */
+    public void stop()
+    {
+        if(server != null)
+            server.stop(0);
+    }
+
+    private void serveMetrics(HttpExchange exchange) throws IOException
+    {
+        byte[] body = format().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+        exchange.sendResponseHeaders(200, body.length);
+        try(OutputStream out = exchange.getResponseBody())
+        {
+            out.write(body);
+        }
+    }
+
+    /**
+     * @return All metrics in the Prometheus text format.
+     */
+    String format()
+    {
+        StringBuilder text = new StringBuilder();
+        header(text, "soundgood_operation_latency_seconds", "summary", "Latency of each controller and DAO operation.");
+        for(OperationStats stats : ctrl.getOperationStats())
+        {
+            String labels = "layer=\"" + stats.getLayer() + "\",operation=\"" + stats.getOperation() + "\"";
+            sample(text, "soundgood_operation_latency_seconds{" + labels + ",quantile=\"0.5\"}", stats.getP50Millis() / 1000);
+            sample(text, "soundgood_operation_latency_seconds{" + labels + ",quantile=\"0.99\"}", stats.getP99Millis() / 1000);
+            sample(text, "soundgood_operation_latency_seconds{" + labels + ",quantile=\"0.999\"}", stats.getP999Millis() / 1000);
+            sample(text, "soundgood_operation_latency_seconds_sum{" + labels + "}", stats.getTotalSeconds());
+            sample(text, "soundgood_operation_latency_seconds_count{" + labels + "}", stats.getCalls());
+        }
+        header(text, "soundgood_operation_errors_total", "counter", "Failed calls of each controller and DAO operation.");
+        for(OperationStats stats : ctrl.getOperationStats())
+        {
+            sample(text, "soundgood_operation_errors_total{layer=\"" + stats.getLayer() + "\",operation=\""
+                         + stats.getOperation() + "\"}", stats.getErrors());
+        }
+
+        PoolMetrics pool = ctrl.getPoolMetrics();
+        gauge(text, "soundgood_pool_active_connections", "Connections currently borrowed.", pool.getActive());
+        gauge(text, "soundgood_pool_idle_connections", "Open connections waiting in the pool.", pool.getIdle());
+        counter(text, "soundgood_pool_checkouts_total", "Successful borrows.", pool.getCheckouts());
+        counter(text, "soundgood_pool_timeouts_total", "Borrows that timed out.", pool.getTimeouts());
+
+        StatementMetrics statements = ctrl.getStatementMetrics();
+        counter(text, "soundgood_statements_prepared_total", "Statements prepared.", statements.getPrepared());
+        counter(text, "soundgood_statements_reused_total", "Uses of already prepared statements.", statements.getReused());
+        long slowStatements = 0;
+        for(StatementProfile profile : ctrl.getStatementProfiles())
+        {
+            slowStatements += profile.getSlowCalls();
+        }
+        counter(text, "soundgood_slow_statements_total", "Executions slower than the slow-query threshold.", slowStatements);
+
+        RetryMetrics retries = ctrl.getRetryMetrics();
+        header(text, "soundgood_retries_total", "counter", "Retries of transient database failures.");
+        sample(text, "soundgood_retries_total{cause=\"connection\"}", retries.getConnectionRetries());
+        sample(text, "soundgood_retries_total{cause=\"serialization\"}", retries.getSerializationRetries());
+        sample(text, "soundgood_retries_total{cause=\"deadlock\"}", retries.getDeadlockRetries());
+        header(text, "soundgood_retries_given_up_total", "counter", "Transient failures that were not retried.");
+        sample(text, "soundgood_retries_given_up_total{reason=\"exhausted\"}", retries.getExhausted());
+        sample(text, "soundgood_retries_given_up_total{reason=\"over_budget\"}", retries.getOverBudget());
+        sample(text, "soundgood_retries_given_up_total{reason=\"unsafe\"}", retries.getUnsafe());
+
+        counter(text, "soundgood_partition_maintenance_failures_total", "Scheduled rental partition maintenance runs that failed.",
+                ctrl.getPartitionMaintenanceFailures());
+
+        CatalogCacheMetrics catalog = ctrl.getCatalogCacheMetrics();
+        counter(text, "soundgood_catalog_hits_total", "Catalog reads answered from the cache.", catalog.getHits());
+        counter(text, "soundgood_catalog_misses_total", "Catalog reads that went to the database.", catalog.getMisses());
+        counter(text, "soundgood_catalog_loads_total", "Reads of the whole catalog.", catalog.getLoads());
+        gauge(text, "soundgood_catalog_size", "Instruments in the cached catalog.", catalog.getSize());
+        return text.toString();
+    }
+
+    private void gauge(StringBuilder text, String name, String help, double value)
+    {
+        header(text, name, "gauge", help);
+        sample(text, name, value);
+    }
+
+    private void counter(StringBuilder text, String name, String help, double value)
+    {
+        header(text, name, "counter", help);
+        sample(text, name, value);
+    }
+
+    private void header(StringBuilder text, String name, String type, String help)
+    {
+        text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        text.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private void sample(StringBuilder text, String name, double value)
+    {
+        text.append(name).append(' ').append(String.format(Locale.ROOT, "%.9g", value)).append('\n');
+    }
+}
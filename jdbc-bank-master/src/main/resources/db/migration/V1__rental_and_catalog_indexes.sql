@@ -0,0 +1,18 @@
+-- Indexes matching the prepared statements in BankDAO. The tables only had
+-- primary keys, so every lookup below was a sequential scan.
+
+-- listAgreements and listAgreementsWithInstruments: student_id = ? AND terminated = false
+CREATE INDEX IF NOT EXISTS rental_active_by_student
+    ON rental_agreement_for_instrument (student_id)
+    WHERE terminated = false;
+
+-- listInstruments (type = ?) and the rental statement (type = ? AND brand = ?),
+-- both restricted to instruments that are not rented out.
+CREATE INDEX IF NOT EXISTS instrument_free_by_type_brand
+    ON instrument (type, brand)
+    WHERE number_rented = 0;
+
+-- listAllInstruments: number_rented = 0
+CREATE INDEX IF NOT EXISTS instrument_free_by_id
+    ON instrument (id)
+    WHERE number_rented = 0;
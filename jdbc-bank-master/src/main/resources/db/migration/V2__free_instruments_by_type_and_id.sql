@@ -0,0 +1,6 @@
+-- Keyset pagination of the free instruments of one type: type = ? AND id > ?
+-- ORDER BY id. The index on (type, brand) can find the rows but not return them
+-- in id order, so every page would sort all free instruments of the type.
+CREATE INDEX IF NOT EXISTS instrument_free_by_type_id
+    ON instrument (type, id)
+    WHERE number_rented = 0;
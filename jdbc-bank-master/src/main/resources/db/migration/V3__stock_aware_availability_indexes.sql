@@ -0,0 +1,22 @@
+-- An instrument is available while number_rented < full_stock, no longer only
+-- while number_rented = 0, so the partial indexes on free instruments are
+-- rebuilt with the new predicate. The queries in BankDAO must use the same
+-- predicate, written the same way, for the planner to use these indexes.
+DROP INDEX IF EXISTS instrument_free_by_type_brand;
+DROP INDEX IF EXISTS instrument_free_by_id;
+DROP INDEX IF EXISTS instrument_free_by_type_id;
+
+-- listInstruments (type = ?) and the rental statement (type = ? AND brand = ?)
+CREATE INDEX IF NOT EXISTS instrument_available_by_type_brand
+    ON instrument (type, brand)
+    WHERE number_rented < full_stock;
+
+-- listAllInstruments and its pages: id > ? ORDER BY id
+CREATE INDEX IF NOT EXISTS instrument_available_by_id
+    ON instrument (id)
+    WHERE number_rented < full_stock;
+
+-- Pages of one type: type = ? AND id > ? ORDER BY id
+CREATE INDEX IF NOT EXISTS instrument_available_by_type_id
+    ON instrument (type, id)
+    WHERE number_rented < full_stock;
@@ -0,0 +1,76 @@
+-- The number of available instruments and free units per type, brand and price,
+-- kept up to date by a trigger on instrument. SHOW --summary groups these rows by
+-- type and brand, so it reads a few rows per type instead of every free instrument.
+-- Renting and returning change number_rented on instrument, which fires the
+-- trigger, so rental_agreement_for_instrument needs no trigger of its own.
+--
+-- Each group is split over eight slots, picked by id, so that concurrent rentals
+-- of the same type and brand seldom wait for each other's lock on the summary row.
+-- The slots are summed when the summary is read.
+LOCK TABLE instrument IN SHARE ROW EXCLUSIVE MODE;
+
+CREATE TABLE IF NOT EXISTS instrument_availability (
+    type VARCHAR(50) NOT NULL,
+    brand VARCHAR(50) NOT NULL,
+    price NUMERIC(32) NOT NULL,
+    slot SMALLINT NOT NULL,
+    available_instruments INT NOT NULL,
+    free_units BIGINT NOT NULL,
+    PRIMARY KEY (type, brand, price, slot)
+);
+
+CREATE OR REPLACE FUNCTION add_instrument_availability(p_type VARCHAR, p_brand VARCHAR, p_price NUMERIC, p_id INT,
+                                                       p_instruments INT, p_units BIGINT) RETURNS void AS $$
+BEGIN
+    IF p_instruments = 0 AND p_units = 0 THEN
+        RETURN;
+    END IF;
+    INSERT INTO instrument_availability AS a (type, brand, price, slot, available_instruments, free_units)
+        VALUES (p_type, p_brand, p_price, p_id % 8, p_instruments, p_units)
+        ON CONFLICT (type, brand, price, slot) DO UPDATE
+        SET available_instruments = a.available_instruments + EXCLUDED.available_instruments,
+            free_units = a.free_units + EXCLUDED.free_units;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION maintain_instrument_availability() RETURNS trigger AS $$
+BEGIN
+    IF TG_OP = 'UPDATE' AND NEW.type = OLD.type AND NEW.brand = OLD.brand AND NEW.price = OLD.price
+       AND NEW.id = OLD.id THEN
+        PERFORM add_instrument_availability(NEW.type, NEW.brand, NEW.price, NEW.id,
+            (NEW.number_rented < NEW.full_stock)::int - (OLD.number_rented < OLD.full_stock)::int,
+            GREATEST(NEW.full_stock - NEW.number_rented, 0) - GREATEST(OLD.full_stock - OLD.number_rented, 0));
+        RETURN NULL;
+    END IF;
+    IF TG_OP IN ('UPDATE', 'DELETE') THEN
+        PERFORM add_instrument_availability(OLD.type, OLD.brand, OLD.price, OLD.id,
+            -(OLD.number_rented < OLD.full_stock)::int, -GREATEST(OLD.full_stock - OLD.number_rented, 0));
+    END IF;
+    IF TG_OP IN ('UPDATE', 'INSERT') THEN
+        PERFORM add_instrument_availability(NEW.type, NEW.brand, NEW.price, NEW.id,
+            (NEW.number_rented < NEW.full_stock)::int, GREATEST(NEW.full_stock - NEW.number_rented, 0));
+    END IF;
+    RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+-- Rebuilds the summary from scratch, for use after bulk loads made with the
+-- trigger disabled, and after TRUNCATE, which does not fire row triggers.
+CREATE OR REPLACE FUNCTION rebuild_instrument_availability() RETURNS void AS $$
+BEGIN
+    DELETE FROM instrument_availability;
+    INSERT INTO instrument_availability (type, brand, price, slot, available_instruments, free_units)
+        SELECT type, brand, price, id % 8,
+               count(*) FILTER (WHERE number_rented < full_stock),
+               sum(GREATEST(full_stock - number_rented, 0))
+        FROM instrument
+        GROUP BY type, brand, price, id % 8;
+END;
+$$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS instrument_availability_trigger ON instrument;
+CREATE TRIGGER instrument_availability_trigger
+    AFTER INSERT OR UPDATE OR DELETE ON instrument
+    FOR EACH ROW EXECUTE PROCEDURE maintain_instrument_availability();
+
+SELECT rebuild_instrument_availability();
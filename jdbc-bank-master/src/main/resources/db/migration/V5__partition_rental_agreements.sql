@@ -0,0 +1,86 @@
+-- Splits rental_agreement_for_instrument by terminated, and the terminated rows
+-- further by the month of their start date. Agreements are never deleted, so
+-- the table only grows, but the DAO only ever reads and updates active
+-- agreements, and those are a few per student. With the table partitioned, a
+-- query with terminated = false in its WHERE clause only reads rental_active,
+-- however many terminated agreements there are. Terminating an agreement moves
+-- it from rental_active to the month it started in.
+--
+-- Months are added ahead of time, and months past their retention are moved to
+-- the rental_archive schema, by RentalPartitionMaintenance. Rows of a month that
+-- has no partition land in rental_terminated_default and are moved to their own
+-- month on its next run.
+--
+-- A primary key on a partitioned table must contain the partition keys, so the
+-- key is (id, terminated, start_date), and start_date becomes NOT NULL. The DAO
+-- always sets it, and an agreement without one gets its end date, or today. The
+-- key alone allows the same id in two months, so rental_active also has a unique
+-- index on id. Every id is drawn from the sequence while the agreement is active,
+-- where it is unique, and terminating an agreement only moves it.
+LOCK TABLE rental_agreement_for_instrument IN ACCESS EXCLUSIVE MODE;
+
+ALTER TABLE rental_agreement_for_instrument RENAME TO rental_agreement_unpartitioned;
+ALTER SEQUENCE rental_agreement_for_instrument_id_seq OWNED BY NONE;
+
+CREATE TABLE rental_agreement_for_instrument (
+ id INT NOT NULL DEFAULT nextval('rental_agreement_for_instrument_id_seq'),
+ length INT,
+ start_date DATE NOT NULL,
+ end_date DATE,
+ student_id INT NOT NULL,
+ instrument_id INT NOT NULL,
+ estimated_price NUMERIC(32) NOT NULL,
+ actual_price NUMERIC(32),
+ terminated BOOLEAN NOT NULL
+) PARTITION BY LIST (terminated);
+
+ALTER SEQUENCE rental_agreement_for_instrument_id_seq OWNED BY rental_agreement_for_instrument.id;
+
+CREATE TABLE rental_active PARTITION OF rental_agreement_for_instrument FOR VALUES IN (false);
+
+CREATE TABLE rental_terminated PARTITION OF rental_agreement_for_instrument FOR VALUES IN (true)
+    PARTITION BY RANGE (start_date);
+
+CREATE TABLE rental_terminated_default PARTITION OF rental_terminated DEFAULT;
+
+-- One partition per month from the first terminated agreement to three months
+-- ahead, named rental_terminated_yyyy_mm.
+DO $$
+DECLARE
+    first_day DATE;
+    last_first_day DATE := (date_trunc('month', current_date) + interval '3 months')::date;
+BEGIN
+    SELECT min(COALESCE(start_date, end_date, current_date)) INTO first_day FROM rental_agreement_unpartitioned WHERE terminated;
+    first_day := date_trunc('month', LEAST(COALESCE(first_day, current_date), current_date))::date;
+    WHILE first_day <= last_first_day LOOP
+        EXECUTE format('CREATE TABLE %I PARTITION OF rental_terminated FOR VALUES FROM (%L) TO (%L)',
+                       'rental_terminated_' || to_char(first_day, 'YYYY_MM'), first_day,
+                       (first_day + interval '1 month')::date);
+        first_day := (first_day + interval '1 month')::date;
+    END LOOP;
+END;
+$$;
+
+INSERT INTO rental_agreement_for_instrument (id, length, start_date, end_date, student_id, instrument_id,
+                                             estimated_price, actual_price, terminated)
+    SELECT id, length, COALESCE(start_date, end_date, current_date), end_date, student_id, instrument_id, estimated_price,
+           actual_price, terminated
+    FROM rental_agreement_unpartitioned;
+
+DROP TABLE rental_agreement_unpartitioned;
+
+ALTER TABLE rental_agreement_for_instrument ADD CONSTRAINT PK_rental_agreement_for_instrument
+    PRIMARY KEY (id, terminated, start_date);
+
+-- terminateRental: id = ? AND terminated = false
+CREATE UNIQUE INDEX rental_active_id ON rental_active (id);
+
+-- listAgreements and listAgreementsWithInstruments: student_id = ? AND terminated = false
+CREATE INDEX rental_active_by_student ON rental_active (student_id);
+
+ALTER TABLE rental_agreement_for_instrument ADD CONSTRAINT FK_rental_agreement_for_instrument_0
+    FOREIGN KEY (student_id) REFERENCES student (student_id);
+ALTER TABLE rental_agreement_for_instrument ADD CONSTRAINT FK_rental_agreement_for_instrument_1
+    FOREIGN KEY (instrument_id) REFERENCES instrument (id);
+
+ANALYZE rental_agreement_for_instrument;
@@ -0,0 +1,136 @@
+package se.kth.iv1351.bankjdbc.integration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import se.kth.iv1351.bankjdbc.model.RentalAgreement;
+import se.kth.iv1351.bankjdbc.model.Student;
+
+/**
+ * Explains every statement run by the DAO methods that serve the desks, and fails if a
+ * plan reads a large table with a sequential scan, which means that a query no longer
+ * matches its index, for example because its availability predicate was written
+ * differently from the one in the <code>V3</code> migration, or that a rental query no
+ * longer prunes the partitions of terminated agreements.
+ */
+class HotQueryPlanTest
+{
+    private static final int INSTRUMENTS = 100_000;
+    private static final int STUDENTS = 50_000;
+    private static final int TERMINATED_AGREEMENTS = 200_000;
+    private static final int ACTIVE_AGREEMENTS = 20_000;
+
+    /**
+     * A table with fewer rows may be scanned, the planner rightly prefers that to an index
+     * on a few pages.
+     */
+    private static final long LARGE_TABLE_ROWS = 10_000;
+
+    private static final Pattern SEQ_SCAN = Pattern.compile("Seq Scan on (\\S+)");
+    private static final String TABLE_ROWS_SQL = "SELECT reltuples FROM pg_class WHERE relname = ?";
+
+    private static BankDAO dao;
+
+    /**
+     * One instrument in ten has a free unit, ten types of twenty brands each. Every
+     * student has a few terminated agreements, spread over two years, and the first
+     * <code>ACTIVE_AGREEMENTS</code> students have one active agreement. The data is added
+     * before the migrations, as in a database that is upgraded, and analyzed after them.
+     */
+    @BeforeAll
+    static void createDatabase() throws Exception
+    {
+        PoolConfig config = TestDatabase.createSchema(4);
+        TestDatabase.execute("INSERT INTO instrument (brand, type, number_rented, full_stock, price) "
+                             + "SELECT 'brand' || i % 20, 'type' || i % 10, CASE WHEN i % 10 = 0 THEN 0 ELSE 2 END, 2, 100 "
+                             + "FROM generate_series(1, ?) i", INSTRUMENTS);
+        TestDatabase.execute("INSERT INTO parent (first_name, last_name) SELECT 'Parent', 'P' || i FROM generate_series(1, ?) i",
+                             STUDENTS);
+        TestDatabase.execute("INSERT INTO student (first_name, last_name, age, personal_number, current_skill, "
+                             + "number_of_instruments_rented, parent_id) SELECT 'Student', 'S' || i, '15', lpad(i::text, 12, '0'), "
+                             + "'beginner', CASE WHEN i <= ? THEN 1 ELSE 0 END, i FROM generate_series(1, ?) i",
+                             ACTIVE_AGREEMENTS, STUDENTS);
+        TestDatabase.execute("INSERT INTO rental_agreement_for_instrument (length, start_date, end_date, student_id, instrument_id, "
+                             + "estimated_price, actual_price, terminated) SELECT 1, current_date - i % 730, current_date - i % 730 + 30, "
+                             + "1 + i % ?, 1 + i % ?, 100, 100, true FROM generate_series(1, ?) i",
+                             STUDENTS, INSTRUMENTS, TERMINATED_AGREEMENTS);
+        TestDatabase.execute("INSERT INTO rental_agreement_for_instrument (length, start_date, end_date, student_id, instrument_id, "
+                             + "estimated_price, actual_price, terminated) SELECT 1, current_date, current_date + 30, i, 1 + i * 7 % ?, "
+                             + "100, null, false FROM generate_series(1, ?) i", INSTRUMENTS, ACTIVE_AGREEMENTS);
+        dao = new BankDAO(config);
+        TestDatabase.execute("ANALYZE");
+    }
+
+    @AfterAll
+    static void closeDatabase()
+    {
+        if(dao != null)
+            dao.close();
+    }
+
+    @Test
+    void hotStatementsUseIndexes() throws Exception
+    {
+        dao.resetStatementProfiles();
+        dao.listInstruments("type3");
+        dao.listInstrumentsPage("type3", 0, 50);
+        dao.listInstrumentsPage(null, 0, 50);
+        dao.findInstrument(INSTRUMENTS / 2);
+        Student student = dao.findStudent(STUDENTS);
+        dao.rentInstrument("brand0", "type0", student, 1);
+        List<RentalAgreement> agreements = dao.listAgreements(student.getId());
+        dao.listAgreementsWithInstruments(student.getId());
+        assertEquals(1, agreements.size());
+        dao.terminateRental(agreements.get(0));
+
+        List<StatementProfile> profiles = dao.getStatementProfiles();
+        assertTrue(profiles.size() >= 8, "only " + profiles.size() + " statements were profiled");
+        List<String> scans = new ArrayList<>();
+        for(StatementProfile profile : profiles)
+        {
+            List<String> plan = dao.explainStatement(profile.getSql());
+            for(String table : scannedLargeTables(plan))
+            {
+                scans.add(table + " in " + profile.getSql() + "\n" + String.join("\n", plan));
+            }
+        }
+        assertTrue(scans.isEmpty(), "Sequential scans of large tables:\n" + String.join("\n\n", scans));
+    }
+
+    private static Set<String> scannedLargeTables(List<String> plan) throws SQLException
+    {
+        Set<String> tables = new HashSet<>();
+        try(Connection connection = TestDatabase.connect();
+            PreparedStatement tableRows = connection.prepareStatement(TABLE_ROWS_SQL))
+        {
+            for(String line : plan)
+            {
+                Matcher scan = SEQ_SCAN.matcher(line);
+                if(!scan.find())
+                    continue;
+                tableRows.setString(1, scan.group(1));
+                try(ResultSet rows = tableRows.executeQuery())
+                {
+                    if(rows.next() && rows.getLong(1) > LARGE_TABLE_ROWS)
+                        tables.add(scan.group(1));
+                }
+            }
+        }
+        return tables;
+    }
+}
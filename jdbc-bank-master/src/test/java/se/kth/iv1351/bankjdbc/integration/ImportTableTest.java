@@ -0,0 +1,134 @@
+package se.kth.iv1351.bankjdbc.integration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks rows against the constraints of the imported tables and encodes them for
+ * <code>COPY</code>, without a database.
+ */
+class ImportTableTest
+{
+    private static final BitSet PARENTS = new BitSet();
+
+    static
+    {
+        PARENTS.set(1);
+        PARENTS.set(3);
+    }
+
+    @Test
+    void copySqlListsEveryColumn()
+    {
+        assertEquals("COPY instrument (brand, type, number_rented, full_stock, price) FROM STDIN WITH (FORMAT csv)",
+                     ImportTable.INSTRUMENT.getCopySql());
+    }
+
+    @Test
+    void missingColumnsGetTheirDefaultsAndTextIsQuoted()
+    {
+        assertEncoded("\"Acme\",\"guitar\",0,1,100\n", ImportTable.INSTRUMENT, null,
+                      row("brand", "Acme", "type", "guitar", "price", " 100 "));
+        assertEncoded("\"Say \"\"hi\"\"\",\"a,\nb\",2,3,99.50\n", ImportTable.INSTRUMENT, null,
+                      row("brand", "Say \"hi\"", "type", "a,\nb", "number_rented", "2", "full_stock", "3", "price", "99.50"));
+    }
+
+    @Test
+    void nullAndEmptyTextStayApart()
+    {
+        assertEncoded("\"Ann\",\"Lee\",\"15\",\"200001011234\",\"\",,,,\"beginner\",0,1\n", ImportTable.STUDENT, PARENTS,
+                      student("street_name", ""));
+    }
+
+    @Test
+    void rowsThatBreakAColumnConstraintAreRejected()
+    {
+        assertRejected("unknown column colour", ImportTable.INSTRUMENT, null,
+                       row("brand", "Acme", "type", "guitar", "price", "100", "colour", "red"));
+        assertRejected("brand is missing", ImportTable.INSTRUMENT, null, row("type", "guitar", "price", "100"));
+        assertRejected("price is missing", ImportTable.INSTRUMENT, null, row("brand", "Acme", "type", "guitar", "price", null));
+        assertRejected("brand is longer than 50 characters", ImportTable.INSTRUMENT, null,
+                       row("brand", "x".repeat(51), "type", "guitar", "price", "100"));
+        assertRejected("full_stock is not an integer: 2.5", ImportTable.INSTRUMENT, null,
+                       row("brand", "Acme", "type", "guitar", "price", "100", "full_stock", "2.5"));
+        assertRejected("number_rented is negative", ImportTable.INSTRUMENT, null,
+                       row("brand", "Acme", "type", "guitar", "price", "100", "number_rented", "-1"));
+        assertRejected("price is not a number: cheap", ImportTable.INSTRUMENT, null,
+                       row("brand", "Acme", "type", "guitar", "price", "cheap"));
+        assertRejected("price is negative", ImportTable.INSTRUMENT, null, row("brand", "Acme", "type", "guitar", "price", "-0.5"));
+        assertRejected("price has more than 32 digits", ImportTable.INSTRUMENT, null,
+                       row("brand", "Acme", "type", "guitar", "price", "1" + "0".repeat(32)));
+        assertRejected("zip is longer than 5 characters", ImportTable.STUDENT, PARENTS, student("zip", "123456"));
+    }
+
+    @Test
+    void valuesAtTheirLimitsAreAccepted()
+    {
+        String brand = "x".repeat(50);
+        String price = "9".repeat(32);
+        assertEncoded("\"" + brand + "\",\"guitar\",0,1," + price + ".4\n", ImportTable.INSTRUMENT, null,
+                      row("brand", brand, "type", "guitar", "price", price + ".4"));
+        assertRejected("price has more than 32 digits", ImportTable.INSTRUMENT, null,
+                       row("brand", brand, "type", "guitar", "price", price + ".5"));
+    }
+
+    @Test
+    void anInstrumentCanNotBeRentedMoreThanItIsStocked()
+    {
+        assertRejected("number_rented 3 is larger than full_stock 2", ImportTable.INSTRUMENT, null,
+                       row("brand", "Acme", "type", "guitar", "price", "100", "number_rented", "3", "full_stock", "2"));
+        assertRejected("number_rented 2 is larger than full_stock 1", ImportTable.INSTRUMENT, null,
+                       row("brand", "Acme", "type", "guitar", "price", "100", "number_rented", "2"));
+    }
+
+    @Test
+    void aStudentMustHaveAParentThatExists()
+    {
+        assertRejected("parent_id 2 does not exist", ImportTable.STUDENT, PARENTS, student("parent_id", "2"));
+        assertRejected("parent_id 1000000 does not exist", ImportTable.STUDENT, PARENTS, student("parent_id", "1000000"));
+        assertRejected("parent_id is missing", ImportTable.STUDENT, PARENTS, student("parent_id", null));
+        assertEncoded("\"Ann\",\"Lee\",\"15\",\"200001011234\",,,,,\"beginner\",0,3\n", ImportTable.STUDENT, PARENTS,
+                      student("parent_id", "3"));
+    }
+
+    private static void assertEncoded(String expected, ImportTable table, BitSet referencedIds, Map<String, String> row)
+    {
+        StringBuilder copyData = new StringBuilder();
+        assertNull(table.encode(row, referencedIds, copyData));
+        assertEquals(expected, copyData.toString());
+    }
+
+    private static void assertRejected(String expected, ImportTable table, BitSet referencedIds, Map<String, String> row)
+    {
+        StringBuilder copyData = new StringBuilder();
+        assertEquals(expected, table.encode(row, referencedIds, copyData));
+        assertEquals("", copyData.toString(), "copy data of a rejected row");
+    }
+
+    /**
+     * @return A valid student of parent 1, with the specified column replaced.
+     */
+    private static Map<String, String> student(String name, String value)
+    {
+        Map<String, String> student = row("first_name", "Ann", "last_name", "Lee", "age", "15", "personal_number", "200001011234",
+                                          "current_skill", "beginner", "parent_id", "1");
+        student.put(name, value);
+        return student;
+    }
+
+    private static Map<String, String> row(String... namesAndValues)
+    {
+        Map<String, String> row = new LinkedHashMap<>();
+        for(int i = 0; i < namesAndValues.length; i += 2)
+        {
+            row.put(namesAndValues[i], namesAndValues[i + 1]);
+        }
+        return row;
+    }
+}
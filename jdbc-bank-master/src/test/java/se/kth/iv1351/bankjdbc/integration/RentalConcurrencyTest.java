@@ -0,0 +1,297 @@
+package se.kth.iv1351.bankjdbc.integration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import se.kth.iv1351.bankjdbc.model.BatchResult;
+import se.kth.iv1351.bankjdbc.model.RentalAgreement;
+import se.kth.iv1351.bankjdbc.model.RentalRequest;
+import se.kth.iv1351.bankjdbc.model.Student;
+
+/**
+ * Rents the same few instruments from many threads at once, and checks that no
+ * instrument is rented more times than it is stocked, and that the rental counts of
+ * instruments and students always equal their active agreements.
+ */
+class RentalConcurrencyTest
+{
+    private static final String TYPE = "guitar";
+    private static final String BRAND = "Gibson";
+    private static final int INSTRUMENTS = 12;
+    private static final int STUDENTS = 200;
+    private static final int THREADS = 32;
+
+    private static BankDAO dao;
+    private static int units;
+
+    @BeforeAll
+    static void createDatabase() throws Exception
+    {
+        PoolConfig config = TestDatabase.createSchema(THREADS);
+        TestDatabase.execute("INSERT INTO parent (first_name, last_name) SELECT 'Parent', 'P' || i FROM generate_series(1, ?) i",
+                             STUDENTS);
+        TestDatabase.execute("INSERT INTO student (first_name, last_name, age, personal_number, current_skill, "
+                             + "number_of_instruments_rented, parent_id) SELECT 'Student', 'S' || i, '15', lpad(i::text, 12, '0'), "
+                             + "'beginner', 0, i FROM generate_series(1, ?) i", STUDENTS);
+        dao = new BankDAO(config);
+    }
+
+    @AfterAll
+    static void closeDatabase()
+    {
+        if(dao != null)
+            dao.close();
+    }
+
+    /**
+     * Every test starts with no agreements, and with one to three units of each instrument,
+     * plus instruments of another brand that must not be rented.
+     */
+    @BeforeEach
+    void stockInstruments() throws Exception
+    {
+        TestDatabase.execute("DELETE FROM rental_agreement_for_instrument");
+        TestDatabase.execute("DELETE FROM instrument");
+        TestDatabase.execute("UPDATE student SET number_of_instruments_rented = 0");
+        TestDatabase.execute("INSERT INTO instrument (brand, type, number_rented, full_stock, price) "
+                             + "SELECT '" + BRAND + "', '" + TYPE + "', 0, 1 + i % 3, 100 FROM generate_series(1, ?) i", INSTRUMENTS);
+        TestDatabase.execute("INSERT INTO instrument (brand, type, number_rented, full_stock, price) "
+                             + "SELECT 'Fender', '" + TYPE + "', 0, 1, 100 FROM generate_series(1, ?) i", INSTRUMENTS);
+        units = (int)TestDatabase.queryForLong("SELECT sum(full_stock) FROM instrument WHERE brand = '" + BRAND + "'");
+    }
+
+    /**
+     * A rental that waited for another one to finish may find its instrument rented out,
+     * and fail even though another instrument still had a unit. The units left after the
+     * concurrent rentals must then still be rentable, one at a time.
+     */
+    @Test
+    void concurrentRentalsNeverRentMoreThanTheStock() throws Exception
+    {
+        List<Callable<Boolean>> rentals = new ArrayList<>();
+        for(int studentId = 1; studentId <= STUDENTS; studentId++)
+        {
+            int id = studentId;
+            rentals.add(() -> rent(id));
+        }
+        int rented = countSuccesses(runConcurrently(rentals));
+
+        assertTrue(rented <= units, rented + " rentals of " + units + " units");
+        TestDatabase.assertRentalCountsMatchAgreements();
+        assertEquals(0, TestDatabase.queryForLong("SELECT count(*) FROM rental_agreement_for_instrument r JOIN instrument i "
+                                                  + "ON i.id = r.instrument_id WHERE i.brand <> '" + BRAND + "'"),
+                     "rentals of another brand");
+        assertEquals(0, TestDatabase.queryForLong("SELECT count(*) FROM (SELECT student_id FROM rental_agreement_for_instrument "
+                                                  + "GROUP BY student_id HAVING count(*) > 1) twice"),
+                     "students with more than the one rental they asked for");
+
+        for(int studentId = 1; studentId <= STUDENTS && rent(studentId); studentId++)
+        {
+            rented++;
+        }
+        assertEquals(units, TestDatabase.queryForLong("SELECT count(*) FROM rental_agreement_for_instrument WHERE terminated = false"));
+        assertEquals(units, TestDatabase.queryForLong("SELECT sum(number_rented) FROM instrument"));
+        TestDatabase.assertRentalCountsMatchAgreements();
+    }
+
+    /**
+     * Each student repeatedly rents an instrument and terminates it again, while the
+     * others do the same, so that terminations free units that other rentals are waiting for.
+     */
+    @Test
+    void concurrentRentalsAndTerminationsKeepTheCountsConsistent() throws Exception
+    {
+        List<Callable<Boolean>> students = new ArrayList<>();
+        for(int studentId = 1; studentId <= THREADS * 2; studentId++)
+        {
+            int id = studentId;
+            students.add(() -> {
+                for(int round = 0; round < 10; round++)
+                {
+                    if(!rent(id))
+                        continue;
+                    for(RentalAgreement agreement : dao.listAgreements(id))
+                    {
+                        dao.terminateRental(agreement);
+                    }
+                }
+                return true;
+            });
+        }
+        runConcurrently(students);
+
+        TestDatabase.assertRentalCountsMatchAgreements();
+        assertEquals(0, TestDatabase.queryForLong("SELECT sum(number_rented) FROM instrument"));
+        assertTrue(TestDatabase.queryForLong("SELECT count(*) FROM rental_agreement_for_instrument") > 0, "no rental succeeded");
+    }
+
+    /**
+     * Batches of rentals, from several threads, compete for the same units as single
+     * rentals do.
+     */
+    @Test
+    void concurrentBatchRentalsNeverRentMoreThanTheStock() throws Exception
+    {
+        int batchSize = STUDENTS / THREADS;
+        List<Callable<Integer>> batches = new ArrayList<>();
+        for(int first = 1; first + batchSize - 1 <= STUDENTS; first += batchSize)
+        {
+            List<RentalRequest> requests = new ArrayList<>();
+            for(int studentId = first; studentId < first + batchSize; studentId++)
+            {
+                requests.add(new RentalRequest(studentId, TYPE, BRAND, 1));
+            }
+            batches.add(() -> {
+                int rented = 0;
+                for(BatchResult<RentalRequest> result : dao.rentInstruments(requests))
+                {
+                    if(result.isSuccessful())
+                        rented++;
+                }
+                return rented;
+            });
+        }
+        int rented = 0;
+        for(Future<Integer> batch : runConcurrently(batches))
+        {
+            rented += batch.get();
+        }
+
+        assertTrue(rented <= units, rented + " rentals of " + units + " units");
+        assertEquals(rented, TestDatabase.queryForLong("SELECT count(*) FROM rental_agreement_for_instrument WHERE terminated = false"));
+        TestDatabase.assertRentalCountsMatchAgreements();
+    }
+
+    /**
+     * A request for a student that does not exist must not take a unit, also when it is
+     * batched with requests that succeed.
+     */
+    @Test
+    void batchRentalsForUnknownStudentsRentNothing() throws Exception
+    {
+        List<RentalRequest> requests = List.of(new RentalRequest(1, TYPE, BRAND, 1),
+                                               new RentalRequest(STUDENTS + 1, TYPE, BRAND, 1),
+                                               new RentalRequest(2, TYPE, BRAND, 1),
+                                               new RentalRequest(-1, TYPE, BRAND, 1));
+        List<BatchResult<RentalRequest>> results = dao.rentInstruments(requests);
+
+        assertTrue(results.get(0).isSuccessful(), "rental for student 1");
+        assertFalse(results.get(1).isSuccessful(), "rental for an unknown student");
+        assertTrue(results.get(2).isSuccessful(), "rental for student 2");
+        assertFalse(results.get(3).isSuccessful(), "rental for an unknown student");
+        assertEquals(2, TestDatabase.queryForLong("SELECT sum(number_rented) FROM instrument"));
+        TestDatabase.assertRentalCountsMatchAgreements();
+    }
+
+    /**
+     * Concurrent single and batched rentals for the same student must not give the
+     * student more than two active rentals.
+     */
+    @Test
+    void concurrentRentalsForOneStudentStopAtTheLimit() throws Exception
+    {
+        int studentId = 1;
+        List<Callable<Integer>> rentals = new ArrayList<>();
+        for(int i = 0; i < THREADS; i++)
+        {
+            if(i % 2 == 0)
+            {
+                rentals.add(() -> rent(studentId) ? 1 : 0);
+            }
+            else
+            {
+                List<RentalRequest> requests = List.of(new RentalRequest(studentId, TYPE, BRAND, 1),
+                                                       new RentalRequest(studentId, TYPE, BRAND, 1));
+                rentals.add(() -> {
+                    int rented = 0;
+                    for(BatchResult<RentalRequest> result : dao.rentInstruments(requests))
+                    {
+                        if(result.isSuccessful())
+                            rented++;
+                    }
+                    return rented;
+                });
+            }
+        }
+        int rented = 0;
+        for(Future<Integer> rental : runConcurrently(rentals))
+        {
+            rented += rental.get();
+        }
+
+        assertEquals(2, rented);
+        assertEquals(2, TestDatabase.queryForLong("SELECT count(*) FROM rental_agreement_for_instrument WHERE terminated = false"));
+        TestDatabase.assertRentalCountsMatchAgreements();
+    }
+
+    private static boolean rent(int studentId) throws BankDBException
+    {
+        Student student = dao.findStudent(studentId);
+        try
+        {
+            dao.rentInstrument(BRAND, TYPE, student, 1);
+            return true;
+        }
+        catch(BankDBException noFreeInstrument)
+        {
+            return false;
+        }
+    }
+
+    /**
+     * Starts all tasks at the same time, each on its own thread up to <code>THREADS</code>,
+     * and waits for them to finish. A task that threw fails the test.
+     */
+    private static <T> List<Future<T>> runConcurrently(List<Callable<T>> tasks) throws Exception
+    {
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<T>> results = new ArrayList<>();
+        try
+        {
+            for(Callable<T> task : tasks)
+            {
+                results.add(executor.submit(() -> {
+                    start.await();
+                    return task.call();
+                }));
+            }
+            start.countDown();
+            for(Future<T> result : results)
+            {
+                result.get(2, TimeUnit.MINUTES);
+            }
+            return results;
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    private static int countSuccesses(List<Future<Boolean>> results) throws Exception
+    {
+        int successes = 0;
+        for(Future<Boolean> result : results)
+        {
+            if(result.get())
+                successes++;
+        }
+        return successes;
+    }
+}
@@ -0,0 +1,155 @@
+package se.kth.iv1351.bankjdbc.integration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Parses CSV and NDJSON input the way the bulk importer reads it, without a database.
+ */
+class RowReaderTest
+{
+    @Test
+    void csvQuotedFieldsMayContainCommasLineBreaksAndDoubledQuotes() throws IOException
+    {
+        BulkImporter.RowReader rows = csv("brand,type\n"
+                                          + "\"Acme, Inc\",\"electric\nguitar\"\n"
+                                          + "\"Say \"\"hi\"\"\",\"\"\"\"\n");
+
+        assertEquals(row("brand", "Acme, Inc", "type", "electric\nguitar"), rows.next());
+        assertEquals(2, rows.getLineNumber());
+        assertEquals(row("brand", "Say \"hi\"", "type", "\""), rows.next());
+        assertEquals(4, rows.getLineNumber());
+        assertNull(rows.next());
+    }
+
+    @Test
+    void csvEmptyUnquotedFieldIsNullAndEmptyQuotedFieldIsEmpty() throws IOException
+    {
+        BulkImporter.RowReader rows = csv("brand,type,price\n,\"\",100\n");
+
+        assertEquals(row("brand", null, "type", "", "price", "100"), rows.next());
+    }
+
+    @Test
+    void csvBlankLinesAreSkippedAndHeaderNamesTrimmed() throws IOException
+    {
+        BulkImporter.RowReader rows = csv(" brand , type\n\nAcme,guitar\n\n");
+
+        assertEquals(row("brand", "Acme", "type", "guitar"), rows.next());
+        assertEquals(3, rows.getLineNumber());
+        assertNull(rows.next());
+    }
+
+    @Test
+    void csvRowWithTheWrongNumberOfFieldsIsMalformedAndReadingGoesOn() throws IOException
+    {
+        BulkImporter.RowReader rows = csv("brand,type\nAcme\nAcme,guitar,extra\nAcme,guitar\n");
+
+        assertSame(BulkImporter.RowReader.MALFORMED, rows.next());
+        assertEquals("has 1 fields, the header has 2", rows.getError());
+        assertSame(BulkImporter.RowReader.MALFORMED, rows.next());
+        assertEquals("has 3 fields, the header has 2", rows.getError());
+        assertEquals(row("brand", "Acme", "type", "guitar"), rows.next());
+        assertEquals(4, rows.getLineNumber());
+    }
+
+    @Test
+    void csvUnterminatedQuotedFieldIsMalformed() throws IOException
+    {
+        BulkImporter.RowReader rows = csv("brand,type\n\"Acme,guitar\nFender,bass\n");
+
+        assertSame(BulkImporter.RowReader.MALFORMED, rows.next());
+        assertEquals("unterminated quoted field", rows.getError());
+        assertEquals(2, rows.getLineNumber());
+        assertNull(rows.next());
+    }
+
+    @Test
+    void ndjsonStringsAreUnescaped() throws IOException
+    {
+        BulkImporter.RowReader rows = ndjson("{\"brand\": \"A\\\"c\\\\m\\/e\", \"type\": \"a\\nb\\tc\\u00e9\\u2603\"}\n");
+
+        assertEquals(row("brand", "A\"c\\m/e", "type", "a\nb\tc\u00e9\u2603"), rows.next());
+    }
+
+    @Test
+    void ndjsonLiteralsAreKeptAsTextAndNullIsNull() throws IOException
+    {
+        BulkImporter.RowReader rows = ndjson("{\"price\":-12.5e3,\"full_stock\":3,\"street_name\":null,\"flag\":true}\n");
+
+        assertEquals(row("price", "-12.5e3", "full_stock", "3", "street_name", null, "flag", "true"), rows.next());
+    }
+
+    @Test
+    void ndjsonBlankLinesAreSkippedAndEmptyObjectsRead() throws IOException
+    {
+        BulkImporter.RowReader rows = ndjson("\n  \n{ }\n\n{\"brand\":\"Acme\"}");
+
+        assertEquals(row(), rows.next());
+        assertEquals(3, rows.getLineNumber());
+        assertEquals(row("brand", "Acme"), rows.next());
+        assertEquals(5, rows.getLineNumber());
+        assertNull(rows.next());
+    }
+
+    @Test
+    void ndjsonMalformedLinesAreRejectedOneByOne() throws IOException
+    {
+        BulkImporter.RowReader rows = ndjson("{\"brand\":{\"name\":\"Acme\"}}\n"
+                                             + "{\"brand\":[\"Acme\"]}\n"
+                                             + "{\"brand\":\"Acme\"} trailing\n"
+                                             + "{\"brand\":\"Acme\n"
+                                             + "{\"brand\":\"\\u12\"}\n"
+                                             + "{\"brand\":\"\\u12G4\"}\n"
+                                             + "{\"brand\":Acme}\n"
+                                             + "{\"brand\":\"Acme\" \"type\":\"guitar\"}\n"
+                                             + "{\"brand\":\"Acme\"}\n");
+
+        assertMalformed(rows, 1, "nested objects and arrays are not supported");
+        assertMalformed(rows, 2, "nested objects and arrays are not supported");
+        assertMalformed(rows, 3, "unexpected text after the object at column 18");
+        assertMalformed(rows, 4, "unterminated string");
+        assertMalformed(rows, 5, "invalid unicode escape at column 11");
+        assertMalformed(rows, 6, "invalid unicode escape at column 11");
+        assertMalformed(rows, 7, "invalid value Acme at column 10");
+        assertMalformed(rows, 8, "expected , or } at column 17");
+        assertEquals(row("brand", "Acme"), rows.next());
+        assertNull(rows.next());
+    }
+
+    private static void assertMalformed(BulkImporter.RowReader rows, long lineNumber, String error) throws IOException
+    {
+        assertSame(BulkImporter.RowReader.MALFORMED, rows.next(), "line " + lineNumber);
+        assertEquals(lineNumber, rows.getLineNumber());
+        assertEquals(error, rows.getError());
+    }
+
+    private static BulkImporter.RowReader csv(String input)
+    {
+        return new BulkImporter.CsvRowReader(new BufferedReader(new StringReader(input)));
+    }
+
+    private static BulkImporter.RowReader ndjson(String input)
+    {
+        return new BulkImporter.NdjsonRowReader(new BufferedReader(new StringReader(input)));
+    }
+
+    private static Map<String, String> row(String... namesAndValues)
+    {
+        Map<String, String> row = new LinkedHashMap<>();
+        for(int i = 0; i < namesAndValues.length; i += 2)
+        {
+            row.put(namesAndValues[i], namesAndValues[i + 1]);
+        }
+        return row;
+    }
+}
@@ -0,0 +1,161 @@
+package se.kth.iv1351.bankjdbc.integration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.Properties;
+
+import org.junit.jupiter.api.Assumptions;
+
+/**
+ * The PostgreSQL database the tests run against, named by the system properties
+ * <code>soundgood.test.db.url</code>, <code>soundgood.test.db.user</code> and
+ * <code>soundgood.test.db.password</code>. The database is created if it does not exist,
+ * and its schema is dropped and created again from <code>log-phys model.sql</code> by
+ * each test class, so it must not be a database whose data matters. If there is no
+ * server to connect to, the tests that need it are skipped.
+ */
+final class TestDatabase
+{
+    static final String URL = System.getProperty("soundgood.test.db.url", "jdbc:postgresql://localhost:5432/soundgood_test");
+    static final String USER = System.getProperty("soundgood.test.db.user", "postgres");
+    static final String PASSWORD = System.getProperty("soundgood.test.db.password", "example");
+
+    private static final String SCHEMA_RESOURCE = "/log-phys model.sql";
+    private static final String INVALID_CATALOG_NAME = "3D000";
+    private static final String MAINTENANCE_DATABASE = "postgres";
+
+    private TestDatabase()
+    {
+    }
+
+    /**
+     * Drops everything in the test database and creates the tables of
+     * <code>log-phys model.sql</code>, without rows. The migrations are applied by the
+     * first DAO created with the returned configuration.
+     *
+     * @param maxConnections The largest number of connections the DAO may open.
+     * @return The configuration of a DAO connected to the test database.
+     */
+    static PoolConfig createSchema(int maxConnections) throws SQLException, IOException
+    {
+        try(Connection connection = connectOrSkip();
+            Statement statement = connection.createStatement())
+        {
+            statement.execute("DROP SCHEMA IF EXISTS rental_archive CASCADE");
+            statement.execute("DROP SCHEMA IF EXISTS public CASCADE");
+            statement.execute("CREATE SCHEMA public");
+            statement.execute(readSchema());
+        }
+        Properties driverProperties = new Properties();
+        driverProperties.setProperty("prepareThreshold", "1");
+        return new PoolConfig(URL, USER, PASSWORD, 1, maxConnections, 300_000, 30_000, 2, 1000, true, driverProperties,
+                              List.of(), 0);
+    }
+
+    /**
+     * @return A new connection to the test database, with auto commit on.
+     */
+    static Connection connect() throws SQLException
+    {
+        return DriverManager.getConnection(URL, USER, PASSWORD);
+    }
+
+    /**
+     * Runs a statement with the specified integer parameters.
+     */
+    static void execute(String sql, int... parameters) throws SQLException
+    {
+        try(Connection connection = connect();
+            PreparedStatement statement = connection.prepareStatement(sql))
+        {
+            for(int i = 0; i < parameters.length; i++)
+            {
+                statement.setInt(i + 1, parameters[i]);
+            }
+            statement.execute();
+        }
+    }
+
+    /**
+     * @return The first column of the first row of a query.
+     */
+    static long queryForLong(String sql) throws SQLException
+    {
+        try(Connection connection = connect();
+            Statement statement = connection.createStatement();
+            ResultSet result = statement.executeQuery(sql))
+        {
+            result.next();
+            return result.getLong(1);
+        }
+    }
+
+    /**
+     * Fails unless, for every instrument and student, the rental count equals the number
+     * of active agreements, and no instrument is rented more than it is stocked.
+     */
+    static void assertRentalCountsMatchAgreements() throws SQLException
+    {
+        assertEquals(0, queryForLong("SELECT count(*) FROM instrument WHERE number_rented > full_stock"),
+                     "instruments rented more than they are stocked");
+        assertEquals(0, queryForLong("SELECT count(*) FROM instrument i WHERE full_stock < (SELECT count(*) FROM "
+                                     + "rental_agreement_for_instrument r WHERE r.instrument_id = i.id AND r.terminated = false)"),
+                     "instruments with more active agreements than units");
+        assertEquals(0, queryForLong("SELECT count(*) FROM instrument i WHERE number_rented <> (SELECT count(*) FROM "
+                                     + "rental_agreement_for_instrument r WHERE r.instrument_id = i.id AND r.terminated = false)"),
+                     "instruments whose rented count differs from their active agreements");
+        assertEquals(0, queryForLong("SELECT count(*) FROM student s WHERE COALESCE(number_of_instruments_rented, 0) <> "
+                                     + "(SELECT count(*) FROM rental_agreement_for_instrument r WHERE r.student_id = s.student_id "
+                                     + "AND r.terminated = false)"),
+                     "students whose rented count differs from their active agreements");
+    }
+
+    private static Connection connectOrSkip() throws SQLException
+    {
+        try
+        {
+            return connect();
+        }
+        catch(SQLException sqlE)
+        {
+            if(!INVALID_CATALOG_NAME.equals(sqlE.getSQLState()))
+            {
+                Assumptions.abort("No database to test against at " + URL + ": " + sqlE.getMessage());
+            }
+        }
+        createDatabase();
+        return connect();
+    }
+
+    private static void createDatabase() throws SQLException
+    {
+        int nameStart = URL.lastIndexOf('/') + 1;
+        int nameEnd = URL.indexOf('?', nameStart) < 0 ? URL.length() : URL.indexOf('?', nameStart);
+        String maintenanceUrl = URL.substring(0, nameStart) + MAINTENANCE_DATABASE + URL.substring(nameEnd);
+        try(Connection connection = DriverManager.getConnection(maintenanceUrl, USER, PASSWORD);
+            Statement statement = connection.createStatement())
+        {
+            statement.execute("CREATE DATABASE \"" + URL.substring(nameStart, nameEnd) + "\"");
+        }
+    }
+
+    private static String readSchema() throws IOException
+    {
+        try(InputStream in = TestDatabase.class.getResourceAsStream(SCHEMA_RESOURCE))
+        {
+            if(in == null)
+                throw new IOException("Could not find " + SCHEMA_RESOURCE);
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+}